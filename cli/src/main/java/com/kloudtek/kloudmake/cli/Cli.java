@@ -12,7 +12,9 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.kloudtek.kloudmake.KMContextImpl;
 import com.kloudtek.kloudmake.exception.InvalidServiceException;
+import com.kloudtek.kloudmake.host.LocalHost;
 import com.kloudtek.kloudmake.host.SshHost;
+import com.kloudtek.kloudmake.host.SshTransportProfile;
 import com.kloudtek.kloudmake.service.credstore.CredStore;
 import com.kloudtek.util.FileUtils;
 import com.kloudtek.util.StringUtils;
@@ -51,6 +53,10 @@ public class Cli {
     private String ssh;
     @Parameter(description = "SSH Key location", names = {"-sshkey"})
     private String sshKey = System.getProperty("user.home") + File.separator + ".ssh" + File.separator + "id_rsa";
+    @Parameter(description = "SSH transport profile (DEFAULT, LAN or WAN)", names = {"-sshprofile"})
+    private SshTransportProfile sshProfile = SshTransportProfile.DEFAULT;
+    @Parameter(description = "Run local commands through persistent shells instead of a new process per command", names = {"-localshell"})
+    private boolean localShell;
     @Parameter(description = "Inlined DSL", names = {"-e"})
     private String inlined;
     @Parameter(description = "Credentials file should be encrypted", names = {"-c", "--crypt"})
@@ -93,7 +99,10 @@ public class Cli {
                 }
                 byte[] sshPrivKey = FileUtils.toByteArray(sshPrivKeyFile);
                 SshHost sshHost = new SshHost(sshPrivKeyFile.getPath(), sshPrivKey, null, null, user, addr, port);
+                sshHost.setTransportProfile(sshProfile);
                 context.getServiceManager().assignService("host", sshHost);
+            } else if (localShell && context.host() instanceof LocalHost) {
+                ((LocalHost) context.host()).setPersistentShell(true);
             }
             registerLibs(context);
             CredStore credStore = configureCredStore(context);
@@ -6,9 +6,9 @@ package com.kloudtek.kloudmake;
 
 import com.kloudtek.kloudmake.annotation.Inject;
 import com.kloudtek.kloudmake.annotation.Provider;
-import com.kloudtek.kloudmake.annotation.Service;
 import com.kloudtek.kloudmake.dsl.DSLScriptingEngineFactory;
 import com.kloudtek.kloudmake.exception.*;
+import com.kloudtek.kloudmake.host.CachingHost;
 import com.kloudtek.kloudmake.host.Host;
 import com.kloudtek.kloudmake.host.LocalHost;
 import com.kloudtek.kloudmake.provider.ProviderManager;
@@ -17,6 +17,7 @@ import com.kloudtek.kloudmake.service.filestore.FileStore;
 import com.kloudtek.kloudmake.util.ListHashMap;
 import com.kloudtek.util.io.IOUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.reflections.Reflections;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,6 +43,7 @@ import static javax.script.ScriptContext.ENGINE_SCOPE;
  */
 public class KMContextImpl implements AutoCloseable, KMContext {
     private static final HashMap<String, String> scriptingSupport = new HashMap<>();
+    private static final HashMap<String, String> scriptingSupportResources = new HashMap<>();
     private static final Logger logger = LoggerFactory.getLogger(KMContextImpl.class);
     static ThreadLocal<KMContextImpl> ctx = new ThreadLocal<>();
     private KMLifecycleExecutor lifecycleExecutor = new KMLifecycleExecutor(this);
@@ -61,9 +63,14 @@ public class KMContextImpl implements AutoCloseable, KMContext {
     // Libraries
 
     final ReentrantReadWriteLock libraryLock = new ReentrantReadWriteLock();
-    boolean newLibAdded;
+    volatile boolean builtinLibraryLoaded;
+    /**
+     * Incremented every time a library is registered or loaded
+     */
+    volatile int librariesVersion;
     Reflections reflections;
     List<Library> libraries = new ArrayList<>();
+    final List<Library> pendingLibraries = new ArrayList<>();
     LibraryClassLoader libraryClassloader = new LibraryClassLoader(new URL[0], KMContextImpl.class.getClassLoader());
 
     // Resources
@@ -78,6 +85,10 @@ public class KMContextImpl implements AutoCloseable, KMContext {
     List<ResourceDefinition> resourceDefinitions = new ArrayList<>();
     HashMap<String, Resource> resourcesUidIndex = new HashMap<>();
     HashMap<Resource, List<Resource>> parentChildIndex;
+    /**
+     * Immutable snapshot of the resources, only set from the end of the prepare stage until the end of execution.
+     */
+    volatile List<Resource> frozenResources;
     /**
      * Flag indicating if element creation is allowed
      */
@@ -91,10 +102,15 @@ public class KMContextImpl implements AutoCloseable, KMContext {
     // Hosts
 
     Host host;
+    boolean hostInjected;
+    /**
+     * Hosts used by resources during execution, wrapped so that file details are only retrieved once.
+     */
+    final IdentityHashMap<Host, CachingHost> cachingHosts = new IdentityHashMap<>();
 
     // Scripting
 
-    ScriptEngineManager scriptEngineManager = new ScriptEngineManager();
+    ScriptEngineManager scriptEngineManager;
     final HashMap<String, ScriptEngine> scriptEnginesByExtCache = new HashMap<>();
 
     // Notifications
@@ -105,11 +121,7 @@ public class KMContextImpl implements AutoCloseable, KMContext {
     final LinkedList<Notification> notificationsPending = new LinkedList<>();
 
     static {
-        try {
-            scriptingSupport.put("rb", IOUtils.toString(KMContextImpl.class.getResourceAsStream("ruby/kloudmake.rb")));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        scriptingSupportResources.put("rb", "ruby/kloudmake.rb");
     }
 
     public KMContextImpl() throws InvalidResourceDefinitionException, KMRuntimeException {
@@ -118,12 +130,8 @@ public class KMContextImpl implements AutoCloseable, KMContext {
 
     public KMContextImpl(Host host) throws InvalidResourceDefinitionException, KMRuntimeException {
         this.host = host;
-        scriptEngineManager.registerEngineExtension("stl", new DSLScriptingEngineFactory(this));
         resourceManager = new ResourceManagerImpl(this);
         serviceManager = new ServiceManagerImpl(this);
-        registerLibrary(new Library());
-        providersManagementService.init(reflections);
-        inject(host);
     }
 
     // ------------------------------------------------------------------------------------------
@@ -152,35 +160,129 @@ public class KMContextImpl implements AutoCloseable, KMContext {
     public void registerLibrary(File libraryFile) throws IOException, InvalidResourceDefinitionException {
         logger.debug("Registering module {}", libraryFile.getPath());
         Library library = new Library(libraryFile);
-        registerLibrary(library);
+        libraryLock.writeLock().lock();
+        try {
+            pendingLibraries.add(library);
+            librariesVersion++;
+        } finally {
+            libraryLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Load the built-in library as well as any registered library which might contain the specified package.
+     *
+     * @param pkg Package, or null to load all registered libraries.
+     * @return true if any library was loaded.
+     * @throws InvalidResourceDefinitionException If a library is invalid.
+     */
+    public boolean loadLibraries(@Nullable String pkg) throws InvalidResourceDefinitionException {
+        return loadLibraries(pkg, null);
+    }
+
+    /**
+     * Load the built-in library as well as any registered library which might contain the specified service or
+     * function.
+     *
+     * @param service Service or function name (in lower case).
+     * @return true if any library was loaded.
+     * @throws InvalidResourceDefinitionException If a library is invalid.
+     */
+    public boolean loadServiceLibraries(@NotNull String service) throws InvalidResourceDefinitionException {
+        return loadLibraries(null, service);
     }
 
-    private void registerLibrary(Library library) throws InvalidResourceDefinitionException {
+    private boolean loadLibraries(@Nullable String pkg, @Nullable String service) throws InvalidResourceDefinitionException {
+        boolean loaded = loadBuiltinLibrary();
+        if (!hasPendingLibraries(pkg, service)) {
+            return loaded;
+        }
+        ArrayList<Library> list = new ArrayList<>();
+        resourceListLock.writeLock().lock();
         libraryLock.writeLock().lock();
         try {
-            newLibAdded = true;
-            libraries.add(library);
-            logger.debug("Adding library {} to the module classloader", library.getLocationUrl());
-            libraryClassloader.addURL(library.getLocationUrl());
-            for (Class<?> clazz : library.getResourceDefinitionClasses()) {
-                resourceManager.registerJavaResource(clazz);
-            }
-            Set<Class<?>> services = library.getReflections().getTypesAnnotatedWith(Service.class);
-            try {
-                for (Class<?> service : services) {
-                    serviceManager.registerService(service);
+            Iterator<Library> iterator = pendingLibraries.iterator();
+            while (iterator.hasNext()) {
+                Library library = iterator.next();
+                if (mayContain(library, pkg, service)) {
+                    iterator.remove();
+                    list.add(library);
                 }
-            } catch (InvalidServiceException e) {
-                throw new InvalidResourceDefinitionException(e.getMessage(), e);
             }
-            if (reflections != null) {
-                reflections.merge(library.getReflections());
-            } else {
-                reflections = library.getReflections();
+            for (Library library : list) {
+                loadLibrary(library);
             }
         } finally {
             libraryLock.writeLock().unlock();
+            resourceListLock.writeLock().unlock();
+        }
+        return loaded || !list.isEmpty();
+    }
+
+    private static boolean mayContain(Library library, @Nullable String pkg, @Nullable String service) {
+        if (service != null) {
+            return library.mayContainService(service);
+        } else {
+            return pkg == null || library.mayContainPackage(pkg);
+        }
+    }
+
+    private boolean loadBuiltinLibrary() throws InvalidResourceDefinitionException {
+        if (builtinLibraryLoaded) {
+            return false;
+        }
+        resourceListLock.writeLock().lock();
+        libraryLock.writeLock().lock();
+        try {
+            if (builtinLibraryLoaded) {
+                return false;
+            }
+            builtinLibraryLoaded = true;
+            loadLibrary(new Library());
+            return true;
+        } finally {
+            libraryLock.writeLock().unlock();
+            resourceListLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Check if {@link #loadLibraries(String)} would load any library for the specified package.
+     */
+    boolean hasUnloadedLibraries(@Nullable String pkg) {
+        return !builtinLibraryLoaded || hasPendingLibraries(pkg, null);
+    }
+
+    private boolean hasPendingLibraries(@Nullable String pkg, @Nullable String service) {
+        libraryLock.readLock().lock();
+        try {
+            for (Library library : pendingLibraries) {
+                if (mayContain(library, pkg, service)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            libraryLock.readLock().unlock();
+        }
+    }
+
+    private void loadLibrary(Library library) throws InvalidResourceDefinitionException {
+        logger.debug("Loading library {}", library.getLocationUrl());
+        library.load();
+        libraries.add(library);
+        logger.debug("Adding library {} to the module classloader", library.getLocationUrl());
+        libraryClassloader.addURL(library.getLocationUrl());
+        for (Class<?> clazz : library.getResourceDefinitionClasses()) {
+            resourceManager.registerJavaResource(clazz);
+        }
+        if (reflections != null) {
+            reflections.merge(library.getReflections());
+        } else {
+            reflections = library.getReflections();
         }
+        providersManagementService.init(library.getReflections());
+        librariesVersion++;
     }
 
     public ResourceManager getResourceManager() {
@@ -195,6 +297,12 @@ public class KMContextImpl implements AutoCloseable, KMContext {
         return providersManagementService;
     }
 
+    /**
+     * Get the libraries which have been loaded so far.
+     *
+     * @return Loaded libraries.
+     * @see #loadLibraries(String)
+     */
     public List<Library> getLibraries() {
         return Collections.unmodifiableList(libraries);
     }
@@ -290,7 +398,7 @@ public class KMContextImpl implements AutoCloseable, KMContext {
             bindings.put("ctx", this);
             bindings.put("kmsm", getServiceManager());
             bindings.put("kmrm", getResourceManager());
-            String support = scriptingSupport.get(ext);
+            String support = getScriptingSupport(ext);
             if (support != null) {
                 scriptEngine.eval(support, bindings);
             }
@@ -324,7 +432,14 @@ public class KMContextImpl implements AutoCloseable, KMContext {
         synchronized (scriptEnginesByExtCache) {
             scriptEngine = scriptEnginesByExtCache.get(ext);
             if (scriptEngine == null) {
-                scriptEngine = scriptEngineManager.getEngineByExtension(ext);
+                if (ext.equals("stl")) {
+                    scriptEngine = new DSLScriptingEngineFactory(this).getScriptEngine();
+                } else {
+                    if (scriptEngineManager == null) {
+                        scriptEngineManager = new ScriptEngineManager();
+                    }
+                    scriptEngine = scriptEngineManager.getEngineByExtension(ext);
+                }
                 if (scriptEngine == null) {
                     throw new IOException("Unable to run scripts with the extension: " + ext);
                 }
@@ -334,6 +449,21 @@ public class KMContextImpl implements AutoCloseable, KMContext {
         return scriptEngine;
     }
 
+    private static String getScriptingSupport(String ext) throws IOException {
+        String resource = scriptingSupportResources.get(ext);
+        if (resource == null) {
+            return null;
+        }
+        synchronized (scriptingSupport) {
+            String support = scriptingSupport.get(ext);
+            if (support == null) {
+                support = IOUtils.toString(KMContextImpl.class.getResourceAsStream(resource));
+                scriptingSupport.put(ext, support);
+            }
+            return support;
+        }
+    }
+
     public synchronized Stage getStage() {
         return stage;
     }
@@ -343,13 +473,24 @@ public class KMContextImpl implements AutoCloseable, KMContext {
     }
 
     public Host getHost() {
-        executionLock.readLock().lock();
-        try {
+        return host;
+    }
 
-        } finally {
-            executionLock.readLock().unlock();
+    /**
+     * Get the {@link CachingHost} used for a host during this execution.
+     */
+    CachingHost getCachingHost(Host host) {
+        if (host == null || host instanceof CachingHost) {
+            return (CachingHost) host;
+        }
+        synchronized (cachingHosts) {
+            CachingHost cachingHost = cachingHosts.get(host);
+            if (cachingHost == null) {
+                cachingHost = new CachingHost(host);
+                cachingHosts.put(host, cachingHost);
+            }
+            return cachingHost;
         }
-        return host;
     }
 
     public void setHost(Host host) throws KMRuntimeException {
@@ -367,9 +508,28 @@ public class KMContextImpl implements AutoCloseable, KMContext {
             inject(host);
 //            this.host = new AutoStartHostWrapper(host);
             this.host = host;
+            hostInjected = true;
+        } finally {
+            executionLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Inject the context host (which is deferred until it is first needed) and start it.
+     *
+     * @throws KMRuntimeException If the host failed to start.
+     */
+    void startHost() throws KMRuntimeException {
+        executionLock.writeLock().lock();
+        try {
+            if (!hostInjected) {
+                inject(host);
+                hostInjected = true;
+            }
         } finally {
             executionLock.writeLock().unlock();
         }
+        host.start();
     }
 
     public FileStore files() throws InvalidServiceException {
@@ -410,6 +570,9 @@ public class KMContextImpl implements AutoCloseable, KMContext {
         for (Library library : libraries) {
             library.close();
         }
+        for (Library library : pendingLibraries) {
+            library.close();
+        }
         serviceManager.close();
     }
 
@@ -543,7 +706,12 @@ public class KMContextImpl implements AutoCloseable, KMContext {
         }
     }
 
-    public Reflections getLibraryReflections() {
+    public Reflections getLibraryReflections() throws KMRuntimeException {
+        try {
+            loadBuiltinLibrary();
+        } catch (InvalidResourceDefinitionException e) {
+            throw new KMRuntimeException(e.getMessage(), e);
+        }
         return reflections;
     }
 
@@ -588,7 +756,7 @@ public class KMContextImpl implements AutoCloseable, KMContext {
                 Class<?> type = field.getType();
                 try {
                     if (provider != null) {
-                        ProviderManager pm = providersManagementService.getProviderManager(type.asSubclass(ProviderManager.class));
+                        ProviderManager pm = getProviderManager(type.asSubclass(ProviderManager.class));
                         if (!field.isAccessible()) {
                             field.setAccessible(true);
                         }
@@ -613,12 +781,55 @@ public class KMContextImpl implements AutoCloseable, KMContext {
         }
     }
 
+    private ProviderManager getProviderManager(Class<? extends ProviderManager> type) throws InjectException {
+        try {
+            loadBuiltinLibrary();
+            return providersManagementService.getProviderManager(type);
+        } catch (InvalidResourceDefinitionException | KMRuntimeException e) {
+            throw new InjectException(e.getMessage(), e);
+        }
+    }
+
     @Override
     public Resource add(Object javaResource) throws ResourceCreationException {
         return resourceManager.createResource(javaResource);
     }
 
 
+    /**
+     * Publish an immutable snapshot of the resource graph (resources, childrens, dependents and effective host of each
+     * resource), which will be used for all lookups until {@link #unfreeze()} is called. This must only be called
+     * once resources and their relationships can no longer be changed.
+     */
+    void freeze() {
+        HashMap<Resource, List<Resource>> dependents = new HashMap<>();
+        for (Resource resource : resources) {
+            for (Resource dependency : resource.getDependencies()) {
+                List<Resource> list = dependents.get(dependency);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    dependents.put(dependency, list);
+                }
+                list.add(resource);
+            }
+        }
+        for (Resource resource : resources) {
+            List<Resource> childrens = parentChildIndex != null ? parentChildIndex.get(resource) : null;
+            ((ResourceImpl) resource).freeze(childrens != null ? new ArrayList<>(childrens) : null, dependents.get(resource));
+        }
+        frozenResources = Collections.unmodifiableList(new ArrayList<>(resources));
+    }
+
+    void unfreeze() {
+        List<Resource> frozen = frozenResources;
+        if (frozen != null) {
+            frozenResources = null;
+            for (Resource resource : frozen) {
+                ((ResourceImpl) resource).unfreeze();
+            }
+        }
+    }
+
     List<Resource> getChildrensInternalList(Resource resource) {
         List<Resource> childrens = parentChildIndex.get(resource);
         if (childrens == null) {
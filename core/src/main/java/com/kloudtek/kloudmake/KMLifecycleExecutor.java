@@ -8,7 +8,10 @@ import com.kloudtek.kloudmake.exception.InvalidAttributeException;
 import com.kloudtek.kloudmake.exception.InvalidQueryException;
 import com.kloudtek.kloudmake.exception.KMRuntimeException;
 import com.kloudtek.kloudmake.exception.MultipleUniqueResourcesFoundException;
+import com.kloudtek.kloudmake.host.CachingHost;
+import com.kloudtek.kloudmake.host.FileInfo;
 import com.kloudtek.kloudmake.host.Host;
+import com.kloudtek.kloudmake.resource.core.FileResource;
 import com.kloudtek.kloudmake.util.SetHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
@@ -30,6 +33,8 @@ public class KMLifecycleExecutor {
 
             prepare();
 
+            context.freeze();
+
             buildIndexes();
 
             executeResources();
@@ -45,10 +50,14 @@ public class KMLifecycleExecutor {
             }
             return successful;
         } finally {
+            context.unfreeze();
             context.resourceManager.setCreateAllowed(true);
             context.executing = false;
             context.clearImports();
             context.clearResourceScope();
+            synchronized (context.cachingHosts) {
+                context.cachingHosts.clear();
+            }
             for (File tempFile : context.tempFiles) {
                 if (!tempFile.delete()) {
                     logger.warn("Failed to delete temporary file " + tempFile.getPath() + " will attempt to delete on process exit");
@@ -70,9 +79,6 @@ public class KMLifecycleExecutor {
     public void prepare() throws KMRuntimeException {
         context.resourceListLock.writeLock().lock();
         try {
-            if (context.newLibAdded) {
-                context.providersManagementService.init(context.reflections);
-            }
             for (Resource resource : context.resources) {
                 ((ResourceImpl) resource).reset();
             }
@@ -117,7 +123,11 @@ public class KMLifecycleExecutor {
                 ((ResourceImpl) resource).sortTasks();
             }
             // Sort according to dependencies
-            ResourceSorter.sort(context.resources);
+            HashSet<Resource> notificationTargets = new HashSet<>();
+            for (AutoNotify autoNotify : context.autoNotifications) {
+                notificationTargets.add(autoNotify.getTarget());
+            }
+            ResourceSorter.sort(context.resources, notificationTargets);
             for (Resource resource : context.resources) {
                 prepareResourceForExecution((ResourceImpl) resource);
             }
@@ -244,7 +254,8 @@ public class KMLifecycleExecutor {
         context.stage = EXECUTE;
         logger.debug("Starting stage EXECUTE");
         // initializing context host
-        context.getHost().start();
+        context.startHost();
+        gatherFileFacts();
         Map<Resource, List<Resource>> parentchildrens = new HashMap<>();
         for (Map.Entry<Resource, List<Resource>> entry : context.parentToPendingChildrenMap.entrySet()) {
             parentchildrens.put(entry.getKey(), new ArrayList<>(entry.getValue()));
@@ -291,6 +302,49 @@ public class KMLifecycleExecutor {
         logger.info("Finished stage EXECUTE");
     }
 
+    /**
+     * Retrieve the details of all files managed by file resources, with a single bulk operation per host, so that they
+     * don't each need to be checked separately (the results are kept by the resources' {@link CachingHost}).
+     */
+    private void gatherFileFacts() {
+        FQName fileType = new FQName(FileResource.class);
+        HashMap<Host, LinkedHashSet<String>> paths = new HashMap<>();
+        HashMap<Host, LinkedHashSet<String>> sha1Paths = new HashMap<>();
+        for (Resource resource : context.resources) {
+            String path = resource.get("path");
+            Host host = resource.getHost();
+            if (fileType.equals(resource.getType()) && isNotEmpty(path) && host != null && host.isStarted()) {
+                if (!paths.containsKey(host)) {
+                    paths.put(host, new LinkedHashSet<String>());
+                    sha1Paths.put(host, new LinkedHashSet<String>());
+                }
+                paths.get(host).add(path);
+                String ensure = resource.get("ensure");
+                if (ensure == null || ensure.equalsIgnoreCase(FileResource.Ensure.FILE.name())) {
+                    sha1Paths.get(host).add(path);
+                }
+            }
+        }
+        for (Map.Entry<Host, LinkedHashSet<String>> entry : paths.entrySet()) {
+            Host host = entry.getKey();
+            try {
+                Map<String, FileInfo> infos = host.getFileInfos(entry.getValue());
+                ArrayList<String> files = new ArrayList<>();
+                for (String path : sha1Paths.get(host)) {
+                    FileInfo fileInfo = infos.get(path);
+                    if (fileInfo != null && fileInfo.getType() == FileInfo.Type.FILE) {
+                        files.add(path);
+                    }
+                }
+                if (!files.isEmpty()) {
+                    host.getFileSha1s(files);
+                }
+            } catch (KMRuntimeException e) {
+                logger.debug("Failed to gather file facts from " + host + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
     private void executeResourceTasks(ResourceImpl resource, Stage stage, boolean postChildren) throws KMRuntimeException {
         if (resource.isFailed()) {
             logger.warn("Skipping {} due to a previous error", resource);
@@ -379,6 +433,10 @@ public class KMLifecycleExecutor {
 
     @NotNull
     private Collection<? extends Resource> getDependentOn(Resource el) {
+        Resource[] frozen = ((ResourceImpl) el).frozenDependents;
+        if (frozen != null) {
+            return Arrays.asList(frozen);
+        }
         ArrayList<Resource> list = new ArrayList<>();
         for (Resource resource : context.resourceManager) {
             if (resource.getDependencies().contains(el)) {
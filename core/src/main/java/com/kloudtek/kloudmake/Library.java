@@ -4,11 +4,14 @@
 
 package com.kloudtek.kloudmake;
 
+import com.kloudtek.kloudmake.annotation.Function;
 import com.kloudtek.kloudmake.annotation.KMResource;
+import com.kloudtek.kloudmake.annotation.Service;
 import com.kloudtek.kloudmake.exception.InvalidResourceDefinitionException;
 import com.kloudtek.kloudmake.resource.core.FileResource;
 import com.kloudtek.util.StringUtils;
 import com.kloudtek.util.xml.XPathUtils;
+import org.jetbrains.annotations.NotNull;
 import org.reflections.Reflections;
 import org.reflections.util.ClasspathHelper;
 import org.reflections.util.ConfigurationBuilder;
@@ -17,6 +20,8 @@ import org.slf4j.LoggerFactory;
 import org.xml.sax.InputSource;
 
 import javax.xml.xpath.XPathExpressionException;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -35,15 +40,22 @@ public class Library {
     private URL locationUrl;
     private ClassLoader classLoader;
     private ZipFile zipFile;
+    private Set<String> zipDirectories;
+    private List<String> packageInfoEntries;
+    private Set<String> packageInfoStrings;
+    private Set<String> serviceStrings;
+    private boolean loaded;
     private Reflections reflections;
     private List<Class<?>> resourceDefinitionClasses = new ArrayList<>();
     private HashMap<String, String> stPkgToJavaPkgMap = new HashMap<>();
     private HashMap<String, String> javaPkgToStPkgMap = new HashMap<>();
     private static Reflections classpathReflections;
+    private static final String PACKAGE_INFO = "/package-info.class";
+    private static final String SERVICE_DESCRIPTOR = "L" + Service.class.getName().replace('.', '/') + ";";
+    private static final String FUNCTION_DESCRIPTOR = "L" + Function.class.getName().replace('.', '/') + ";";
 
     public Library() throws InvalidResourceDefinitionException {
         classLoader = getClass().getClassLoader();
-        scan();
     }
 
     public Library(File localLocation) throws IOException, InvalidResourceDefinitionException {
@@ -52,12 +64,187 @@ public class Library {
             localLocationUri = localLocation.toURI();
         } else {
             localLocationUri = URI.create("jar:" + localLocation.toURI().toString() + "!/");
-            zipFile = new ZipFile(localLocation);
         }
         locationUri = localLocation.toURI();
         locationUrl = locationUri.toURL();
         classLoader = new URLClassLoader(new URL[]{locationUrl});
-        scan();
+    }
+
+    /**
+     * Open and scan the library. This is only done once, subsequent calls do nothing.
+     *
+     * @throws InvalidResourceDefinitionException If the library is invalid.
+     */
+    public synchronized void load() throws InvalidResourceDefinitionException {
+        if (!loaded) {
+            try {
+                openZipFile();
+            } catch (IOException e) {
+                throw new InvalidResourceDefinitionException("Unable to open library " + localLocation + ": " + e.getMessage(), e);
+            }
+            scan();
+            loaded = true;
+        }
+    }
+
+    /**
+     * Check if this library might contain resources or scripts for the specified package. For jar libraries this only
+     * reads the jar's index and its package-info classes, and it will never return false for a package the library
+     * actually contains.
+     *
+     * @param pkg Package
+     * @return false if the library is sure not to contain this package.
+     */
+    public synchronized boolean mayContainPackage(@NotNull String pkg) {
+        if (loaded || localLocation == null || localLocation.isDirectory()) {
+            return true;
+        }
+        try {
+            openZipFile();
+        } catch (IOException e) {
+            logger.error("Failed to open library {}: {}", localLocation.getPath(), e.getLocalizedMessage());
+            return false;
+        }
+        if (zipDirectories.contains(pkg.replace(".", "/"))) {
+            return true;
+        }
+        // package mappings are only known after scanning, so this checks if any package-info declares the package
+        if (packageInfoStrings == null) {
+            try {
+                packageInfoStrings = readPackageInfoStrings();
+            } catch (IOException e) {
+                logger.warn("Failed to read package information of library {}: {}", localLocation.getPath(), e.getLocalizedMessage());
+                return true;
+            }
+        }
+        return packageInfoStrings.contains(pkg.toLowerCase());
+    }
+
+    /**
+     * Check if this library might contain the specified service or function. For jar libraries this only reads the
+     * constants of the jar's classes, and it will never return false for a service the library actually contains.
+     *
+     * @param name Service or function name (in lower case).
+     * @return false if the library is sure not to contain it.
+     */
+    public synchronized boolean mayContainService(@NotNull String name) {
+        if (loaded || localLocation == null || localLocation.isDirectory()) {
+            return true;
+        }
+        try {
+            openZipFile();
+            if (serviceStrings == null) {
+                serviceStrings = readServiceStrings();
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to read services of library {}: {}", localLocation.getPath(), e.getLocalizedMessage());
+            return true;
+        }
+        return serviceStrings.contains(name);
+    }
+
+    private Set<String> readPackageInfoStrings() throws IOException {
+        HashSet<String> strings = new HashSet<>();
+        for (String name : packageInfoEntries) {
+            for (String constant : readConstants(name)) {
+                strings.add(constant.toLowerCase());
+            }
+        }
+        return strings;
+    }
+
+    /**
+     * Read the string constants of the classes annotated with {@link Service} or {@link Function}, which include the
+     * names of their services and functions, as well as the simple names of these classes.
+     */
+    private Set<String> readServiceStrings() throws IOException {
+        HashSet<String> strings = new HashSet<>();
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            String name = entries.nextElement().getName();
+            if (name.endsWith(".class") && !name.endsWith(PACKAGE_INFO)) {
+                List<String> constants = readConstants(name);
+                if (constants.contains(SERVICE_DESCRIPTOR) || constants.contains(FUNCTION_DESCRIPTOR)) {
+                    for (String constant : constants) {
+                        strings.add(constant.toLowerCase());
+                    }
+                    strings.add(name.substring(name.lastIndexOf('/') + 1, name.length() - 6).toLowerCase());
+                }
+            }
+        }
+        return strings;
+    }
+
+    /**
+     * Read the string constants of a class in the jar, without loading it.
+     */
+    private List<String> readConstants(String name) throws IOException {
+        ArrayList<String> strings = new ArrayList<>();
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(zipFile.getInputStream(zipFile.getEntry(name))))) {
+            is.readInt();
+            is.readUnsignedShort();
+            is.readUnsignedShort();
+            int count = is.readUnsignedShort();
+            for (int i = 1; i < count; i++) {
+                int tag = is.readUnsignedByte();
+                switch (tag) {
+                    case 1:
+                        strings.add(is.readUTF());
+                        break;
+                    case 5:
+                    case 6:
+                        is.readLong();
+                        i++;
+                        break;
+                    case 3:
+                    case 4:
+                    case 9:
+                    case 10:
+                    case 11:
+                    case 12:
+                    case 17:
+                    case 18:
+                        is.readInt();
+                        break;
+                    case 15:
+                        is.readFully(new byte[3]);
+                        break;
+                    case 7:
+                    case 8:
+                    case 16:
+                    case 19:
+                    case 20:
+                        is.readUnsignedShort();
+                        break;
+                    default:
+                        throw new IOException("Invalid constant pool tag " + tag + " in " + name);
+                }
+            }
+        }
+        return strings;
+    }
+
+    private void openZipFile() throws IOException {
+        if (zipFile == null && localLocation != null && !localLocation.isDirectory()) {
+            zipFile = new ZipFile(localLocation);
+            zipDirectories = new HashSet<>();
+            packageInfoEntries = new ArrayList<>();
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                if (name.endsWith(PACKAGE_INFO)) {
+                    packageInfoEntries.add(name);
+                }
+                int idx = name.lastIndexOf('/');
+                while (idx > 0) {
+                    name = name.substring(0, idx);
+                    if (!zipDirectories.add(name)) {
+                        break;
+                    }
+                    idx = name.lastIndexOf('/');
+                }
+            }
+        }
     }
 
     private void scan() throws InvalidResourceDefinitionException {
@@ -114,7 +301,7 @@ public class Library {
         this.locationUri = uri;
     }
 
-    public void close() {
+    public synchronized void close() {
         if (zipFile != null) {
             try {
                 zipFile.close();
@@ -16,10 +16,11 @@ import org.apache.commons.beanutils.ConvertUtils;
 import org.jetbrains.annotations.NotNull;
 
 import java.lang.annotation.Annotation;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -28,67 +29,104 @@ public class MethodInvoker {
     private final java.lang.String name;
     private final Method method;
     private final int paramCount;
-    private ArrayList<java.lang.String> paramsOrder = new ArrayList<>();
-    private LinkedHashMap<java.lang.String, MethodParam> paramsMap = new LinkedHashMap<>();
+    private final MethodParam[] params;
+    private final HashMap<java.lang.String, Integer> paramsIndex = new HashMap<>();
+    private final Object[] defaults;
+    private final MethodHandle handle;
 
     public MethodInvoker(java.lang.String serviceName, java.lang.String name, Method method) throws InvalidServiceException {
         this.serviceName = serviceName;
         this.name = name;
         this.method = method;
         Annotation[][] annotations = method.getParameterAnnotations();
+        Class<?>[] parameterTypes = method.getParameterTypes();
         paramCount = annotations.length;
+        params = new MethodParam[paramCount];
+        defaults = new Object[paramCount];
         for (int i = 0; i < annotations.length; i++) {
-            Class<?>[] parameterTypes = method.getParameterTypes();
-            Annotation[] anlist = annotations[i];
-            MethodParam param = new MethodParam(method, parameterTypes[i], anlist);
-            paramsMap.put(param.name, param);
-            paramsOrder.add(param.name);
+            MethodParam param = new MethodParam(method, parameterTypes[i], annotations[i]);
+            params[i] = param;
+            paramsIndex.put(param.name, i);
+            if (param.def != null) {
+                defaults[i] = ConvertUtils.convert(param.def, param.type);
+            }
+        }
+        try {
+            method.setAccessible(true);
+            handle = MethodHandles.lookup().unreflect(method)
+                    .asSpreader(Object[].class, paramCount)
+                    .asType(MethodType.methodType(Object.class, Object.class, Object[].class));
+        } catch (IllegalAccessException | SecurityException e) {
+            throw new InvalidServiceException("Unable to access " + ReflectionHelper.toString(method), e);
         }
     }
 
     public Object invoke(KMContextImpl ctx, @NotNull Parameters params) throws KMRuntimeException {
+        Parameter[] slots = bind(params).slots;
         Object[] plist = new Object[paramCount];
-        List<Parameter> parameters = params.getParameters();
-        if (parameters.size() > paramCount) {
-            throw new MethodInvocationException("Too many arguments provided when calling method " + name);
-        }
-        for (int i = 0; i < parameters.size(); i++) {
-            Parameter p = parameters.get(i);
-            String parameterValue = p.eval(ctx, null);
-            plist[i] = ConvertUtils.convert(parameterValue, paramsMap.get(paramsOrder.get(i)).type);
-        }
-        for (Map.Entry<java.lang.String, Parameter> entry : params.getNamedParameters().entrySet()) {
-            int idx = paramsOrder.indexOf(entry.getKey());
-            if (idx == -1) {
-                throw new MethodInvocationException("Invalid argument " + entry.getKey() + " provided when calling method " + name);
-            }
-            if (plist[idx] != null) {
-                throw new MethodInvocationException("Multiple assignments of argument " + entry.getKey() + " when calling method " + name);
+        for (int i = 0; i < paramCount; i++) {
+            Parameter p = slots[i];
+            if (p != null) {
+                String value = p.eval(ctx, null);
+                Class<?> type = this.params[i].type;
+                plist[i] = type == String.class ? value : ConvertUtils.convert(value, type);
             }
-            String paramValue = entry.getValue().eval(ctx, null);
-            Class<?> type = paramsMap.get(paramsOrder.get(idx)).type;
-            plist[idx] = ConvertUtils.convert(paramValue, type);
-        }
-        for (int i = 0; i < plist.length; i++) {
             if (plist[i] == null) {
-                MethodParam methodParam = paramsMap.get(paramsOrder.get(i));
-                String def = methodParam.def;
-                if (def != null) {
-                    plist[i] = ConvertUtils.convert(def, methodParam.type);
-                }
+                plist[i] = defaults[i];
             }
         }
+        Object service = ctx.getServiceManager().getService(serviceName);
+        if (service == null) {
+            throw new KMRuntimeException("BUG: Couldn't find service " + serviceName);
+        }
         try {
-            Object service = ctx.getServiceManager().getService(serviceName);
-            if (service == null) {
-                throw new KMRuntimeException("BUG: Couldn't find service " + serviceName);
-            }
-            return method.invoke(service, plist);
-        } catch (IllegalAccessException | InvocationTargetException | InvalidServiceException e) {
+            return (Object) handle.invokeExact(service, plist);
+        } catch (KMRuntimeException e) {
+            throw e;
+        } catch (Throwable e) {
             throw new KMRuntimeException(e.getMessage(), e);
         }
     }
 
+    /**
+     * Get the binding of a call site's parameters to this method's arguments, which is computed on the first call.
+     */
+    private Binding bind(Parameters params) throws MethodInvocationException {
+        Binding binding = params.getBinding();
+        if (binding == null || binding.invoker != this) {
+            binding = new Binding(this, params);
+            params.setBinding(binding);
+        }
+        return binding;
+    }
+
+    static class Binding {
+        private final MethodInvoker invoker;
+        private final Parameter[] slots;
+
+        private Binding(MethodInvoker invoker, Parameters params) throws MethodInvocationException {
+            this.invoker = invoker;
+            slots = new Parameter[invoker.paramCount];
+            List<Parameter> parameters = params.getParameters();
+            if (parameters.size() > invoker.paramCount) {
+                throw new MethodInvocationException("Too many arguments provided when calling method " + invoker.name);
+            }
+            for (int i = 0; i < parameters.size(); i++) {
+                slots[i] = parameters.get(i);
+            }
+            for (Map.Entry<java.lang.String, Parameter> entry : params.getNamedParameters().entrySet()) {
+                Integer idx = invoker.paramsIndex.get(entry.getKey());
+                if (idx == null) {
+                    throw new MethodInvocationException("Invalid argument " + entry.getKey() + " provided when calling method " + invoker.name);
+                }
+                if (slots[idx] != null) {
+                    throw new MethodInvocationException("Multiple assignments of argument " + entry.getKey() + " when calling method " + invoker.name);
+                }
+                slots[idx] = entry.getValue();
+            }
+        }
+    }
+
     public class MethodParam {
         private java.lang.String name;
         private java.lang.String def;
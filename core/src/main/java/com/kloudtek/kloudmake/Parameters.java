@@ -13,6 +13,7 @@ import java.util.*;
 public class Parameters {
     private final ArrayList<Parameter> parameters = new ArrayList<>();
     private final HashMap<String, Parameter> namedParameters = new HashMap<>();
+    private volatile MethodInvoker.Binding binding;
 
     public synchronized List<Parameter> getParameters() {
         return Collections.unmodifiableList(parameters);
@@ -28,10 +29,20 @@ public class Parameters {
                     "[" + location.getLine() + ":" + location.getCharPositionInLine(), null, null);
         }
         parameters.add(parameter);
+        binding = null;
     }
 
     public synchronized void addNamedParameter(String name, Parameter parameter) {
         namedParameters.put(name, parameter);
+        binding = null;
+    }
+
+    MethodInvoker.Binding getBinding() {
+        return binding;
+    }
+
+    void setBinding(MethodInvoker.Binding binding) {
+        this.binding = binding;
     }
 
     public int size() {
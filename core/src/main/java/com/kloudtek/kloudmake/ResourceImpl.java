@@ -29,6 +29,7 @@ public class ResourceImpl implements Resource {
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
     private final HashSet<Resource> childrens = new HashSet<>();
     private ArrayList<Task> tasks = new ArrayList<>();
+    private volatile TaskPlan[] taskPlans;
     private Stage stage;
     private Host hostOverride;
     private Host childrensHostOverride;
@@ -44,6 +45,10 @@ public class ResourceImpl implements Resource {
     HashSet<Resource> indirectDependencies;
     final HashSet<Resource> dependents = new HashSet<>();
     final HashMap<String, List<Resource>> requires = new HashMap<>();
+    // Snapshot of the resource graph, only set while the context is frozen (see KMContextImpl#freeze())
+    private volatile Host frozenHost;
+    volatile List<Resource> frozenChildrens;
+    volatile Resource[] frozenDependents;
     final VariableMap variables = new VariableMap(this);
 
     public ResourceImpl(KMContextImpl context, ResourceDefinition definition, String id, String uid, Resource parent) {
@@ -207,12 +212,27 @@ public class ResourceImpl implements Resource {
     // ----------------------------------------------------------------------
 
     @Override
-    public void addTask(@NotNull Task task) {
+    public synchronized void addTask(@NotNull Task task) {
         tasks.add(task);
+        taskPlans = null;
     }
 
+    /**
+     * Sort the resource's tasks, and build the execution plan for each stage.
+     */
     public synchronized void sortTasks() {
         Collections.sort(tasks);
+        Stage[] stages = Stage.values();
+        TaskPlan[] plans = new TaskPlan[stages.length * 2];
+        for (Stage stage : stages) {
+            plans[planIndex(stage, false)] = new TaskPlan(tasks, stage, false);
+            plans[planIndex(stage, true)] = new TaskPlan(tasks, stage, true);
+        }
+        taskPlans = plans;
+    }
+
+    private static int planIndex(Stage stage, boolean postChildren) {
+        return stage.ordinal() * 2 + (postChildren ? 1 : 0);
     }
 
     // ----------------------------------------------------------------------
@@ -235,7 +255,10 @@ public class ResourceImpl implements Resource {
 
     @Override
     public Host getHost() {
-        if (hostOverride != null) {
+        Host host = frozenHost;
+        if (host != null) {
+            return host;
+        } else if (hostOverride != null) {
             return hostOverride;
         } else if (parent != null && parent.getChildrensHostOverride() != null) {
             return parent.getChildrensHostOverride();
@@ -512,26 +535,32 @@ public class ResourceImpl implements Resource {
     // ----------------------------------------------------------------------
 
     public void executeTasks(Stage stage, boolean postChildren) throws KMRuntimeException {
-        HashSet<String> supportedAlternatives = new HashSet<>();
-        HashSet<String> requiredAlternatives = new HashSet<>();
-        for (Task task : tasks) {
-            if (task.getStage() == stage && task.isPostChildren() == postChildren) {
-                String alternative = task.getAlternative();
-                if (alternative != null) {
-                    requiredAlternatives.add(alternative);
+        TaskPlan[] plans = taskPlans;
+        TaskPlan plan;
+        if (plans != null) {
+            plan = plans[planIndex(stage, postChildren)];
+        } else {
+            synchronized (this) {
+                plan = new TaskPlan(tasks, stage, postChildren);
+            }
+        }
+        Task[] planTasks = plan.tasks;
+        boolean[] supportedAlternatives = plan.alternatives.length > 0 ? new boolean[plan.alternatives.length] : null;
+        for (int i = 0; i < planTasks.length; i++) {
+            Task task = planTasks[i];
+            if (task.supports(context, this)) {
+                int alternative = plan.taskAlternatives[i];
+                if (alternative != -1) {
+                    supportedAlternatives[alternative] = true;
                 }
-                if (task.supports(context, this)) {
-                    if (alternative != null) {
-                        supportedAlternatives.add(alternative);
-                    }
-                    if (task.checkExecutionRequired(context, this)) {
-                        task.execute(context, this);
-                    }
+                if (task.checkExecutionRequired(context, this)) {
+                    task.execute(context, this);
                 }
             }
         }
-        for (String requiredAlternative : requiredAlternatives) {
-            if (!supportedAlternatives.contains(requiredAlternative)) {
+        for (int i = 0; i < plan.alternatives.length; i++) {
+            if (!supportedAlternatives[i]) {
+                String requiredAlternative = plan.alternatives[i];
                 StringBuilder msg = new StringBuilder("Unable to find ").append(requiredAlternative);
                 if (!requiredAlternative.isEmpty()) {
                     msg.append(' ');
@@ -542,6 +571,18 @@ public class ResourceImpl implements Resource {
         }
     }
 
+    void freeze(List<Resource> childrens, List<Resource> dependents) {
+        frozenHost = context.getCachingHost(getHost());
+        frozenChildrens = childrens != null ? Collections.unmodifiableList(childrens) : Collections.<Resource>emptyList();
+        frozenDependents = dependents != null ? dependents.toArray(new Resource[dependents.size()]) : new Resource[0];
+    }
+
+    void unfreeze() {
+        frozenHost = null;
+        frozenChildrens = null;
+        frozenDependents = null;
+    }
+
     public void handleNotification(Notification notification) throws KMRuntimeException {
         synchronized (notificationHandlers) {
             for (NotificationHandler handler : notificationHandlers) {
@@ -576,4 +617,39 @@ public class ResourceImpl implements Resource {
         }
         return match;
     }
+
+    /**
+     * Tasks to be executed for a given stage and postChildren flag, with the alternative (if any) each belongs to.
+     */
+    private static class TaskPlan {
+        private final Task[] tasks;
+        private final int[] taskAlternatives;
+        private final String[] alternatives;
+
+        private TaskPlan(List<Task> allTasks, Stage stage, boolean postChildren) {
+            ArrayList<Task> list = new ArrayList<>();
+            for (Task task : allTasks) {
+                if (task.getStage() == stage && task.isPostChildren() == postChildren) {
+                    list.add(task);
+                }
+            }
+            tasks = list.toArray(new Task[list.size()]);
+            taskAlternatives = new int[tasks.length];
+            ArrayList<String> alternativesList = new ArrayList<>();
+            for (int i = 0; i < tasks.length; i++) {
+                String alternative = tasks[i].getAlternative();
+                if (alternative != null) {
+                    int idx = alternativesList.indexOf(alternative);
+                    if (idx == -1) {
+                        idx = alternativesList.size();
+                        alternativesList.add(alternative);
+                    }
+                    taskAlternatives[i] = idx;
+                } else {
+                    taskAlternatives[i] = -1;
+                }
+            }
+            alternatives = alternativesList.toArray(new String[alternativesList.size()]);
+        }
+    }
 }
@@ -33,6 +33,10 @@ public class ResourceManagerImpl implements ResourceManager {
 
     @Override
     public Iterator<Resource> iterator() {
+        List<Resource> frozen = context.frozenResources;
+        if (frozen != null) {
+            return frozen.iterator();
+        }
         rlock();
         try {
             return context.resources.iterator();
@@ -58,6 +62,10 @@ public class ResourceManagerImpl implements ResourceManager {
 
     @Override
     public List<Resource> getResources() {
+        List<Resource> frozen = context.frozenResources;
+        if (frozen != null) {
+            return frozen;
+        }
         rlock();
         try {
             return Collections.unmodifiableList(context.resources);
@@ -68,6 +76,10 @@ public class ResourceManagerImpl implements ResourceManager {
 
     @Override
     public List<Resource> getChildrens(Resource resource) {
+        List<Resource> frozen = ((ResourceImpl) resource).frozenChildrens;
+        if (frozen != null) {
+            return frozen;
+        }
         rlock();
         try {
             return Collections.unmodifiableList(context.getChildrensInternalList(resource));
@@ -104,7 +116,7 @@ public class ResourceManagerImpl implements ResourceManager {
         wlock();
         try {
             this.context.createAllowed = createAllowed;
-        } catch (Exception e) {
+        } finally {
             wulock();
         }
     }
@@ -241,7 +253,9 @@ public class ResourceManagerImpl implements ResourceManager {
             throw new ResourceCreationException("Attempted to create resource using java class which is not annotated with @KMResource: " + obj.getClass().getName());
         }
         try {
-            ResourceDefinition resourceDefinition = findResourceDefinition(new FQName(clazz, null));
+            FQName fqName = new FQName(clazz, null);
+            loadLibraries(fqName, null);
+            ResourceDefinition resourceDefinition = findResourceDefinition(fqName);
             if (resourceDefinition == null) {
                 resourceDefinition = JavaResourceDefinitionFactory.create(clazz, null);
                 registerResourceDefinition(resourceDefinition);
@@ -278,27 +292,49 @@ public class ResourceManagerImpl implements ResourceManager {
     @Override
     @NotNull
     public List<Resource> findResources(@Nullable String pkg, @Nullable String name, @Nullable String id) {
+        List<Resource> frozen = context.frozenResources;
+        if (frozen != null) {
+            return findResources(frozen, pkg, name, id);
+        }
         rlock();
         try {
-            ArrayList<Resource> results = new ArrayList<>();
-            for (Resource resource : context.resources) {
-                if ((pkg != null && resource.getPkg().equalsIgnoreCase(pkg) ||
-                        (name != null && resource.getName().equalsIgnoreCase(name)) ||
-                        (isNotEmpty(id) && resource.getId().equals(id)))) {
-                    results.add(resource);
-                }
-            }
-            return results;
+            return findResources(context.resources, pkg, name, id);
         } finally {
             rulock();
         }
     }
 
+    private static List<Resource> findResources(List<Resource> resources, @Nullable String pkg, @Nullable String name, @Nullable String id) {
+        ArrayList<Resource> results = new ArrayList<>();
+        for (Resource resource : resources) {
+            if ((pkg != null && resource.getPkg().equalsIgnoreCase(pkg) ||
+                    (name != null && resource.getName().equalsIgnoreCase(name)) ||
+                    (isNotEmpty(id) && resource.getId().equals(id)))) {
+                results.add(resource);
+            }
+        }
+        return results;
+    }
+
     @NotNull
     @Override
     public ResourceDefinition findResourceDefinition(FQName name, @Nullable Collection<ResourceMatcher> importPaths) throws ResourceCreationException {
-        rlock();
+        // definitions which are already loaded are looked up under the read lock, the write lock is only needed to
+        // load libraries or scripts
+        if (!hasUnloadedLibraries(name, importPaths)) {
+            rlock();
+            try {
+                ResourceFinder rfinder = new ResourceFinder(name, importPaths);
+                if (rfinder.found()) {
+                    return rfinder.getMatch();
+                }
+            } finally {
+                rulock();
+            }
+        }
+        wlock();
         try {
+            loadLibraries(name, importPaths);
             ResourceFinder rfinder = new ResourceFinder(name, importPaths);
             if (!rfinder.found()) {
                 logger.debug("Unable to find pre-loaded resource {}, attempt to load dynamically", name);
@@ -315,7 +351,38 @@ public class ResourceManagerImpl implements ResourceManager {
             }
             return rfinder.getMatch();
         } finally {
-            rulock();
+            wulock();
+        }
+    }
+
+    private boolean hasUnloadedLibraries(FQName name, @Nullable Collection<ResourceMatcher> importPaths) {
+        if (name.getPkg() != null) {
+            return context.hasUnloadedLibraries(name.getPkg());
+        } else if (importPaths != null) {
+            for (ResourceMatcher importPath : importPaths) {
+                if (context.hasUnloadedLibraries(importPath.getPkg())) {
+                    return true;
+                }
+            }
+            return false;
+        } else {
+            return context.hasUnloadedLibraries(null);
+        }
+    }
+
+    private void loadLibraries(FQName name, @Nullable Collection<ResourceMatcher> importPaths) throws ResourceCreationException {
+        try {
+            if (name.getPkg() != null) {
+                context.loadLibraries(name.getPkg());
+            } else if (importPaths != null) {
+                for (ResourceMatcher importPath : importPaths) {
+                    context.loadLibraries(importPath.getPkg());
+                }
+            } else {
+                context.loadLibraries(null);
+            }
+        } catch (InvalidResourceDefinitionException e) {
+            throw new ResourceCreationException(e.getMessage(), e);
         }
     }
 
@@ -340,20 +407,28 @@ public class ResourceManagerImpl implements ResourceManager {
 
     @Override
     public List<Resource> findResourcesById(@NotNull String id) throws KMRuntimeException {
+        List<Resource> frozen = context.frozenResources;
+        if (frozen != null) {
+            return findResourcesById(frozen, id);
+        }
         rlock();
         try {
-            ArrayList<Resource> list = new ArrayList<>();
-            for (Resource resource : context.resources) {
-                if (id.equals(resource.getId())) {
-                    list.add(resource);
-                }
-            }
-            return list;
+            return findResourcesById(context.resources, id);
         } finally {
             rulock();
         }
     }
 
+    private static List<Resource> findResourcesById(List<Resource> resources, @NotNull String id) {
+        ArrayList<Resource> list = new ArrayList<>();
+        for (Resource resource : resources) {
+            if (id.equals(resource.getId())) {
+                list.add(resource);
+            }
+        }
+        return list;
+    }
+
     @Override
     public Resource findResourcesByUid(String uid) {
         return context.resourcesUidIndex.get(uid);
@@ -10,6 +10,19 @@ import java.util.*;
 
 public class ResourceSorter {
     public static void sort(List<Resource> resources) throws InvalidDependencyException {
+        sort(resources, Collections.<Resource>emptySet());
+    }
+
+    /**
+     * Sort resources according to their dependencies. Resources which aren't ordered by dependencies keep the order
+     * in which they were created, except that resources receiving notifications are placed after the others (so that
+     * notifying resources get a chance to run first).
+     *
+     * @param resources           Resources to sort.
+     * @param notificationTargets Resources which are the target of auto-notifications.
+     * @throws InvalidDependencyException If a circular dependency was found.
+     */
+    public static void sort(List<Resource> resources, Set<Resource> notificationTargets) throws InvalidDependencyException {
         if (resources.isEmpty()) {
             return;
         }
@@ -17,7 +30,7 @@ public class ResourceSorter {
         List<Node> sortedList = new ArrayList<>();
         //  S ← Set of all nodes with no outgoing edges
         List<Node> nodes = e2n(resources);
-        HashSet<Node> edgeNodes = findEdgeNodes(nodes);
+        List<Node> edgeNodes = findEdgeNodes(nodes, notificationTargets);
         if (edgeNodes.isEmpty()) {
             throw new InvalidDependencyException("Circular dependency between all resources");
         }
@@ -84,13 +97,15 @@ public class ResourceSorter {
         return resourceList;
     }
 
-    private static HashSet<Node> findEdgeNodes(List<Node> allNodes) {
-        HashSet<Node> list = new HashSet<>();
+    private static List<Node> findEdgeNodes(List<Node> allNodes, Set<Resource> notificationTargets) {
+        ArrayList<Node> list = new ArrayList<>();
+        ArrayList<Node> targets = new ArrayList<>();
         for (Node n : allNodes) {
             if (n.inDependencies.size() == 0) {
-                list.add(n);
+                (notificationTargets.contains(n.resource) ? targets : list).add(n);
             }
         }
+        list.addAll(targets);
         return list;
     }
 
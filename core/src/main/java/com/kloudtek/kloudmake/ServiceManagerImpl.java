@@ -7,29 +7,34 @@ package com.kloudtek.kloudmake;
 import com.kloudtek.kloudmake.annotation.Function;
 import com.kloudtek.kloudmake.annotation.Service;
 import com.kloudtek.kloudmake.exception.InjectException;
+import com.kloudtek.kloudmake.exception.InvalidResourceDefinitionException;
 import com.kloudtek.kloudmake.exception.InvalidServiceException;
 import com.kloudtek.kloudmake.exception.KMRuntimeException;
 import org.jetbrains.annotations.NotNull;
+import org.reflections.Reflections;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.kloudtek.util.StringUtils.isEmpty;
 import static com.kloudtek.util.StringUtils.isNotEmpty;
 
 /**
  * Simple implementation of the {@link ServiceManager} interface.
+ * Lookups of services which are already instantiated never block, overrides are stored as immutable lists which are
+ * replaced on every change.
  */
 public class ServiceManagerImpl implements ServiceManager {
     private static final Logger logger = LoggerFactory.getLogger(ServiceManagerImpl.class);
-    private Map<String, Object> services = new HashMap<>();
-    protected HashMap<String, LinkedList<Object>> overrides = new HashMap<>();
-    protected HashMap<String, MethodInvoker> methods = new HashMap<>();
+    private final ConcurrentHashMap<String, Object> services = new ConcurrentHashMap<>();
+    protected final ConcurrentHashMap<String, List<Object>> overrides = new ConcurrentHashMap<>();
+    protected final ConcurrentHashMap<String, MethodInvoker> methods = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Class<?>, String> serviceNames = new ConcurrentHashMap<>();
+    private volatile ServiceTable serviceTable;
     private KMContextImpl ctx;
+    private boolean started;
 
     public ServiceManagerImpl(KMContextImpl ctx) {
         this.ctx = ctx;
@@ -38,6 +43,9 @@ public class ServiceManagerImpl implements ServiceManager {
     @Override
     public Object invokeMethod(String name, Parameters parameters) throws KMRuntimeException {
         MethodInvoker methodInvoker = methods.get(name.toLowerCase());
+        if (methodInvoker == null) {
+            methodInvoker = loadMethod(name.toLowerCase());
+        }
         if (methodInvoker == null) {
             throw new KMRuntimeException("There is no method named " + name);
         }
@@ -45,75 +53,161 @@ public class ServiceManagerImpl implements ServiceManager {
     }
 
     @Override
-    public synchronized final Object getService(@NotNull String id) throws InvalidServiceException {
+    public final Object getService(@NotNull String id) throws InvalidServiceException {
         id = id.toLowerCase();
-        LinkedList<Object> ovr = overrides.get(id);
-        Object service;
+        List<Object> ovr = overrides.get(id);
         if (ovr != null && !ovr.isEmpty()) {
-            service = ovr.getLast();
-        } else {
-            service = services.get(id);
-        }
-        if (service == null) {
-            Set<Class<?>> services = ctx.reflections.getTypesAnnotatedWith(Service.class);
-            for (Class<?> clazz : services) {
-                Service annotation = clazz.getAnnotation(Service.class);
-                String name = annotation.value();
-                if (isEmpty(name)) {
-                    name = clazz.getSimpleName().toLowerCase();
-                }
-                Class defaultImpl = annotation.def();
-                if (!defaultImpl.equals(ServiceManager.class)) {
-                    clazz = defaultImpl;
-                }
-                if (name.equalsIgnoreCase(id)) {
-                    try {
-                        service = clazz.newInstance();
-                        registerService(name, service);
-                    } catch (InstantiationException | IllegalAccessException e) {
-                        throw new InvalidServiceException("Unable to instantiate java service " + clazz.getName());
-                    }
-                }
-            }
+            return ovr.get(ovr.size() - 1);
+        }
+        Object service = services.get(id);
+        if (service == null && !isMissing(id)) {
+            service = createService(id);
         }
         return service;
     }
 
+    /**
+     * Check if a service is known not to exist in the libraries loaded so far (without blocking).
+     */
+    boolean isMissing(String id) {
+        ServiceTable table = serviceTable;
+        return table != null && table.version == ctx.librariesVersion && table.missing.contains(id);
+    }
+
     @Override
     @SuppressWarnings("unchecked")
-    public synchronized final <X> X getService(@NotNull Class<X> classtype) throws InvalidServiceException {
-        Service annotation = classtype.getAnnotation(Service.class);
-        String name;
+    public final <X> X getService(@NotNull Class<X> classtype) throws InvalidServiceException {
+        String name = serviceNames.get(classtype);
+        if (name == null) {
+            name = getServiceName(classtype);
+            serviceNames.put(classtype, name);
+        }
+        return (X) getService(name);
+    }
+
+    private synchronized Object createService(String id) throws InvalidServiceException {
+        Object service = services.get(id);
+        if (service != null) {
+            return service;
+        }
+        ServiceTable table = getServiceTable();
+        if (table.missing.contains(id)) {
+            return null;
+        }
+        Class<?> clazz = table.classes.get(id);
+        if (clazz == null && loadLibraries(id)) {
+            table = getServiceTable();
+            clazz = table.classes.get(id);
+        }
+        if (clazz == null) {
+            table.missing.add(id);
+            return null;
+        }
+        try {
+            service = clazz.newInstance();
+            registerService(id, service);
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new InvalidServiceException("Unable to instantiate java service " + clazz.getName());
+        }
+        if (started && service instanceof Startable) {
+            try {
+                ((Startable) service).start();
+            } catch (KMRuntimeException e) {
+                throw new InvalidServiceException("Unable to start service " + id + ": " + e.getMessage(), e);
+            }
+        }
+        return service;
+    }
+
+    private synchronized MethodInvoker loadMethod(String name) throws InvalidServiceException {
+        MethodInvoker methodInvoker = methods.get(name);
+        if (methodInvoker == null) {
+            String serviceName = getServiceTable().functions.get(name);
+            if (serviceName == null && loadLibraries(name)) {
+                serviceName = getServiceTable().functions.get(name);
+            }
+            if (serviceName != null) {
+                getService(serviceName);
+                methodInvoker = methods.get(name);
+            }
+        }
+        return methodInvoker;
+    }
+
+    /**
+     * Get the table of services available in the loaded libraries, rebuilding it if libraries were registered or
+     * loaded since it was last built (which also clears the negative lookup cache).
+     */
+    private ServiceTable getServiceTable() throws InvalidServiceException {
+        try {
+            Reflections reflections = ctx.getLibraryReflections();
+            ServiceTable table = serviceTable;
+            int version = ctx.librariesVersion;
+            if (table == null || table.version != version) {
+                table = new ServiceTable(version, reflections.getTypesAnnotatedWith(Service.class));
+                serviceTable = table;
+            }
+            return table;
+        } catch (KMRuntimeException e) {
+            throw new InvalidServiceException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Load the libraries which might contain a service or function.
+     */
+    private boolean loadLibraries(String name) throws InvalidServiceException {
+        try {
+            return ctx.loadServiceLibraries(name);
+        } catch (InvalidResourceDefinitionException e) {
+            throw new InvalidServiceException(e.getMessage(), e);
+        }
+    }
+
+    private static String getServiceName(Class<?> clazz) {
+        Service annotation = clazz.getAnnotation(Service.class);
         if (annotation != null && isNotEmpty(annotation.value())) {
-            name = annotation.value();
+            return annotation.value().toLowerCase();
         } else {
-            name = classtype.getSimpleName().toLowerCase();
+            return clazz.getSimpleName().toLowerCase();
         }
-        return (X) getService(name);
+    }
+
+    private static String getFunctionName(java.lang.reflect.Method javaMethod) {
+        Function functionAnno = javaMethod.getAnnotation(Function.class);
+        if (functionAnno == null) {
+            return null;
+        }
+        return (isEmpty(functionAnno.value()) ? javaMethod.getName() : functionAnno.value()).toLowerCase();
     }
 
     @Override
-    public synchronized void addOverride(@NotNull String id, @NotNull Object overrideService) throws InvalidServiceException {
+    public void addOverride(@NotNull String id, @NotNull Object overrideService) throws InvalidServiceException {
         id = id.toLowerCase();
-        LinkedList<Object> list = overrides.get(id);
-        if (list == null) {
-            list = new LinkedList<>();
-            overrides.put(id, list);
-        }
         try {
             ctx.inject(overrideService);
         } catch (InjectException e) {
             throw new InvalidServiceException(e.getMessage(), e);
         }
-        list.addLast(overrideService);
+        synchronized (overrides) {
+            List<Object> list = overrides.get(id);
+            ArrayList<Object> newList = list != null ? new ArrayList<>(list) : new ArrayList<>();
+            newList.add(overrideService);
+            overrides.put(id, Collections.unmodifiableList(newList));
+        }
         logger.debug("added override {} for service {}", overrideService.toString(), id);
     }
 
     @Override
-    public synchronized void removeOverride(@NotNull String id, @NotNull Object overrideService) {
-        LinkedList<Object> list = overrides.get(id.toLowerCase());
-        if (list != null) {
-            list.remove(overrideService);
+    public void removeOverride(@NotNull String id, @NotNull Object overrideService) {
+        id = id.toLowerCase();
+        synchronized (overrides) {
+            List<Object> list = overrides.get(id);
+            if (list != null) {
+                ArrayList<Object> newList = new ArrayList<>(list);
+                newList.remove(overrideService);
+                overrides.put(id, Collections.unmodifiableList(newList));
+            }
         }
         logger.debug("removed override {} for service {}", overrideService.toString(), id);
     }
@@ -146,16 +240,16 @@ public class ServiceManagerImpl implements ServiceManager {
 
     @Override
     public void registerService(String name, Object service) throws InvalidServiceException {
+        name = name.toLowerCase();
         synchronized (this) {
             Class<?> clazz = service.getClass();
             for (java.lang.reflect.Method javaMethod : clazz.getDeclaredMethods()) {
-                Function functionAnno = javaMethod.getAnnotation(Function.class);
-                if (functionAnno != null) {
-                    String name1 = (isEmpty(functionAnno.value()) ? javaMethod.getName() : functionAnno.value()).toLowerCase();
-                    if (methods.containsKey(name1)) {
-                        throw new InvalidServiceException("Service method already registered: " + name1);
+                String fname = getFunctionName(javaMethod);
+                if (fname != null) {
+                    if (methods.containsKey(fname)) {
+                        throw new InvalidServiceException("Service method already registered: " + fname);
                     }
-                    methods.put(name1, new MethodInvoker(name, name1, javaMethod));
+                    methods.put(fname, new MethodInvoker(name, fname, javaMethod));
                 }
             }
             try {
@@ -163,13 +257,23 @@ public class ServiceManagerImpl implements ServiceManager {
             } catch (InjectException e) {
                 throw new InvalidServiceException(e.getMessage(), e);
             }
+            services.put(name, service);
+            clearMissing(name);
         }
-        services.put(name, service);
     }
 
     @Override
     public void assignService(String id, Object service) {
+        id = id.toLowerCase();
         services.put(id, service);
+        clearMissing(id);
+    }
+
+    private void clearMissing(String id) {
+        ServiceTable table = serviceTable;
+        if (table != null) {
+            table.missing.remove(id);
+        }
     }
 
     @Override
@@ -186,8 +290,9 @@ public class ServiceManagerImpl implements ServiceManager {
     }
 
     @Override
-    public void start() throws KMRuntimeException {
-        for (Object service : services.values()) {
+    public synchronized void start() throws KMRuntimeException {
+        started = true;
+        for (Object service : new ArrayList<>(services.values())) {
             if (service instanceof Startable) {
                 ((Startable) service).start();
             }
@@ -195,19 +300,51 @@ public class ServiceManagerImpl implements ServiceManager {
     }
 
     @Override
-    public void stop() {
+    public synchronized void stop() {
+        started = false;
         for (Object service : services.values()) {
             if (service instanceof Stoppable) {
                 ((Stoppable) service).stop();
             }
         }
-        for (LinkedList<Object> overrideList : overrides.values()) {
-            for (Object ov : overrideList) {
-                if (ov instanceof Stoppable) {
-                    ((Stoppable) ov).stop();
+        synchronized (overrides) {
+            for (List<Object> overrideList : overrides.values()) {
+                for (Object ov : overrideList) {
+                    if (ov instanceof Stoppable) {
+                        ((Stoppable) ov).stop();
+                    }
+                }
+            }
+            overrides.clear();
+        }
+    }
+
+    /**
+     * Index of the services (and their functions) available in the loaded libraries, which doesn't change once built,
+     * along with the ids which were looked up and not found in them (which are removed when they get registered).
+     */
+    private static class ServiceTable {
+        private final int version;
+        private final Set<String> missing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final HashMap<String, Class<?>> classes = new HashMap<>();
+        private final HashMap<String, String> functions = new HashMap<>();
+
+        private ServiceTable(int version, Set<Class<?>> serviceClasses) {
+            this.version = version;
+            for (Class<?> clazz : serviceClasses) {
+                String name = getServiceName(clazz);
+                Class<?> impl = clazz.getAnnotation(Service.class).def();
+                if (impl.equals(ServiceManager.class)) {
+                    impl = clazz;
+                }
+                classes.put(name, impl);
+                for (java.lang.reflect.Method javaMethod : impl.getDeclaredMethods()) {
+                    String fname = getFunctionName(javaMethod);
+                    if (fname != null) {
+                        functions.put(fname, name);
+                    }
                 }
             }
         }
-        overrides.clear();
     }
 }
@@ -7,6 +7,7 @@ package com.kloudtek.kloudmake.exception;
 import org.slf4j.Logger;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutionException;
 
 public class KMRuntimeException extends KMException {
     public KMRuntimeException() {
@@ -48,4 +49,15 @@ public class KMRuntimeException extends KMException {
             return new KMRuntimeException(e.getMessage(), e);
         }
     }
+
+    public static KMRuntimeException getCause(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof KMRuntimeException) {
+            return (KMRuntimeException) cause;
+        } else if (cause != null) {
+            return new KMRuntimeException(cause.getMessage(), cause);
+        } else {
+            return new KMRuntimeException(e.getMessage(), e);
+        }
+    }
 }
@@ -9,20 +9,32 @@ import com.kloudtek.kloudmake.exception.KMRuntimeException;
 import com.kloudtek.kloudmake.util.DelayedLogger;
 import com.kloudtek.kryptotek.DigestUtils;
 import org.apache.commons.exec.*;
-import org.bouncycastle.util.io.TeeOutputStream;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.kloudtek.kloudmake.host.Host.Logging.*;
 import static com.kloudtek.kloudmake.util.DelayedLogger.Severity.*;
@@ -32,10 +44,13 @@ import static com.kloudtek.kloudmake.util.DelayedLogger.Severity.*;
  */
 public abstract class AbstractHost implements Host {
     private static final Logger logger = LoggerFactory.getLogger(AbstractHost.class);
+    public static final int ASYNC_THREADS = 16;
+    private static final ExecutorService defaultAsyncExecutor;
     @Provider
     protected HostProviderManager hostProviderManager;
     protected HostProvider hostProvider;
-    protected Executor executor = new DefaultExecutor();
+    protected HostFactsCache factsCache = HostFactsCache.getDefault();
+    protected HostFacts facts;
     protected long defaultTimeout = DEFAULT_TIMEOUT;
     protected Logging defaultLogging = ON_ERROR;
     protected int defaultSuccessRetCode = 0;
@@ -44,6 +59,24 @@ public abstract class AbstractHost implements Host {
     protected HashMap<String, Object> state = new HashMap<>();
     protected boolean handleQuoting = false;
     protected boolean started;
+    protected int outputMemoryLimit = OutputCapture.DEFAULT_MEMORY_LIMIT;
+    protected boolean outputSpill = true;
+    protected final AtomicLong roundTrips = new AtomicLong();
+    protected ExecutorService asyncExecutor = defaultAsyncExecutor;
+
+    static {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(ASYNC_THREADS, ASYNC_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(@NotNull Runnable r) {
+                Thread thread = new Thread(r, "kloudmake-host-async-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        defaultAsyncExecutor = pool;
+    }
 
     /**
      * {@inheritDoc}
@@ -53,11 +86,54 @@ public abstract class AbstractHost implements Host {
             return;
         }
         if (hostProvider == null) {
-            hostProvider = hostProviderManager.find(this);
+            hostProvider = hostProviderManager.find(this, getFacts());
         }
         started = true;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @NotNull
+    @Override
+    public synchronized HostFacts getFacts() throws KMRuntimeException {
+        if (facts == null) {
+            String identity = getIdentity();
+            if (identity != null && factsCache != null) {
+                facts = factsCache.get(identity);
+            }
+            if (facts == null) {
+                facts = HostFacts.gather(this);
+                if (identity != null && factsCache != null) {
+                    factsCache.put(identity, facts);
+                }
+                logger.debug("Gathered facts of {}: {}", this, facts);
+            }
+        }
+        return facts;
+    }
+
+    /**
+     * Get the identity under which this host's facts are cached.
+     *
+     * @return Identity, or null if the facts shouldn't be cached.
+     */
+    @Nullable
+    protected String getIdentity() {
+        return null;
+    }
+
+    public HostFactsCache getFactsCache() {
+        return factsCache;
+    }
+
+    /**
+     * Set the cache used for this host's facts (null to always gather them).
+     */
+    public void setFactsCache(@Nullable HostFactsCache factsCache) {
+        this.factsCache = factsCache;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -114,6 +190,12 @@ public abstract class AbstractHost implements Host {
         return exec(command, defaultTimeout, expectedRetCode, logging, null, null, null);
     }
 
+    @NotNull
+    @Override
+    public ExecutionResult execReadOnly(String command, @Nullable Integer expectedRetCode, Logging logging) throws KMRuntimeException {
+        return exec(command, expectedRetCode, logging);
+    }
+
     @NotNull
     @Override
     public ExecutionResult exec(String command, @Nullable Integer expectedRetCode, Logging logging, @Nullable Map<String, String> env) throws KMRuntimeException {
@@ -135,6 +217,33 @@ public abstract class AbstractHost implements Host {
     @Override
     public ExecutionResult exec(final String command, @Nullable Long timeout, @Nullable Integer expectedRetCode, Logging logging,
                                 String user, String workdir, @Nullable Map<String, String> env) throws KMRuntimeException {
+        return exec(command, timeout, expectedRetCode, logging, user, workdir, env, null);
+    }
+
+    @NotNull
+    @Override
+    public ExecutionResult execStreaming(String command, @Nullable Integer expectedRetCode, Logging logging, @NotNull OutputCapture.LineListener listener) throws KMRuntimeException {
+        return exec(command, defaultTimeout, expectedRetCode, logging, null, null, null, null, listener);
+    }
+
+    /**
+     * Same as {@link #exec(String, Long, Integer, Logging, String, String, Map)}, with data to pass to the command's
+     * standard input.
+     */
+    @NotNull
+    protected ExecutionResult exec(final String command, @Nullable Long timeout, @Nullable Integer expectedRetCode, Logging logging,
+                                   String user, String workdir, @Nullable Map<String, String> env, @Nullable InputStream input) throws KMRuntimeException {
+        return exec(command, timeout, expectedRetCode, logging, user, workdir, env, input, null);
+    }
+
+    /**
+     * Same as {@link #exec(String, Long, Integer, Logging, String, String, Map, InputStream)}, with a listener notified
+     * of each line of output as the command runs.
+     */
+    @NotNull
+    protected ExecutionResult exec(final String command, @Nullable Long timeout, @Nullable Integer expectedRetCode, Logging logging,
+                                   String user, String workdir, @Nullable Map<String, String> env, @Nullable InputStream input,
+                                   @Nullable OutputCapture.LineListener listener) throws KMRuntimeException {
         CommandLine cmdLine;
         if (user == null) {
             user = this.getDefaultUser();
@@ -145,17 +254,12 @@ public abstract class AbstractHost implements Host {
         } else {
             cmdLine = CommandLine.parse(command);
         }
-        final DelayedLogger delayedLogger = new DelayedLogger(logger);
-        LogOutputStream logOutputStream = new LogOutputStream() {
-            @Override
-            protected void processLine(String line, int level) {
-                delayedLogger.log(line, null, null);
-            }
-        };
-        ByteArrayOutputStream txtBuffer = new ByteArrayOutputStream();
-        PumpStreamHandler streamHandler = new PumpStreamHandler(new TeeOutputStream(logOutputStream, txtBuffer));
+        OutputCapture output = new OutputCapture(outputMemoryLimit, outputSpill, listener);
+        PooledStreamHandler streamHandler = new PooledStreamHandler(output, output, input);
+        Executor executor = createExecutor(command, user, env, timeout, input != null, listener != null);
+        roundTrips.incrementAndGet();
         executor.setStreamHandler(streamHandler);
-        ExecuteWatchdog watchdog = new ExecuteWatchdog(timeout == null ? DEFAULT_TIMEOUT : timeout) {
+        ExecuteWatchdog watchdog = new TimerWatchdog(timeout == null ? DEFAULT_TIMEOUT : timeout) {
             @Override
             public synchronized void timeoutOccured(Watchdog w) {
                 logger.error("Execution timed out: " + command);
@@ -172,17 +276,11 @@ public abstract class AbstractHost implements Host {
             if (expectedRetCode != null) {
                 result.setRetCode(executor.execute(cmdLine, env));
             } else {
-                final DoNothingExecResultHandler doNothingExecResultHandler = new DoNothingExecResultHandler(result);
-                executor.execute(cmdLine, env, doNothingExecResultHandler);
-                //noinspection SynchronizationOnLocalVariableOrMethodParameter
-                synchronized (doNothingExecResultHandler) {
-                    if (!doNothingExecResultHandler.finished) {
-                        try {
-                            doNothingExecResultHandler.wait();
-                        } catch (InterruptedException e) {
-                            throw new KMRuntimeException(e.getLocalizedMessage());
-                        }
-                    }
+                // executed synchronously, since the asynchronous variant would use yet another thread
+                try {
+                    result.setRetCode(executor.execute(cmdLine, env));
+                } catch (ExecuteException e) {
+                    result.setRetCode(e.getExitValue());
                 }
             }
             failed = expectedRetCode != null && result.getRetCode() != expectedRetCode;
@@ -190,23 +288,48 @@ public abstract class AbstractHost implements Host {
             failed = true;
             logger.error("I/O Error occured while performing operation: " + e.getMessage());
         }
-        result.setOutput(new String(txtBuffer.toByteArray()));
+        try {
+            output.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close command output: " + e.getMessage());
+        }
+        result.setCapture(output);
         if (logging != NO) {
-            if (failed) {
-                delayedLogger.setSeverity(ERROR);
-            } else if (logging == YES) {
-                delayedLogger.setSeverity(INFO);
-            } else {
-                delayedLogger.setSeverity(DEBUG);
-            }
-            delayedLogger.log();
+            logOutput(output, failed ? ERROR : logging == YES ? INFO : DEBUG);
         }
         if (failed) {
+            result.close();
             throw new KMRuntimeException(toString() + " failed to execute '" + command + "'");
         }
         return result;
     }
 
+    private static void logOutput(OutputCapture output, final DelayedLogger.Severity severity) {
+        if ((severity == ERROR && !logger.isErrorEnabled()) || (severity == INFO && !logger.isInfoEnabled())
+                || (severity == DEBUG && !logger.isDebugEnabled())) {
+            return;
+        }
+        try {
+            output.forEachLine(new OutputCapture.LineListener() {
+                @Override
+                public void onLine(String line) {
+                    switch (severity) {
+                        case ERROR:
+                            logger.error(line);
+                            break;
+                        case INFO:
+                            logger.info(line);
+                            break;
+                        default:
+                            logger.debug(line);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            logger.warn("Failed to log command output: " + e.getMessage());
+        }
+    }
+
     @Override
     public String readTextFile(String path, String encoding) throws KMRuntimeException {
         return new String(readFileData(path), Charset.forName(encoding));
@@ -226,6 +349,33 @@ public abstract class AbstractHost implements Host {
         return defaultTimeout;
     }
 
+    public void setDefaultTimeout(long defaultTimeout) {
+        this.defaultTimeout = defaultTimeout;
+    }
+
+    public int getOutputMemoryLimit() {
+        return outputMemoryLimit;
+    }
+
+    /**
+     * Set how much of a command's output is kept in memory.
+     */
+    public void setOutputMemoryLimit(int outputMemoryLimit) {
+        this.outputMemoryLimit = outputMemoryLimit;
+    }
+
+    public boolean isOutputSpill() {
+        return outputSpill;
+    }
+
+    /**
+     * Set whether output over the memory limit is spilled to a temporary file (the default), or discarded except for
+     * its tail.
+     */
+    public void setOutputSpill(boolean outputSpill) {
+        this.outputSpill = outputSpill;
+    }
+
     public Logging getDefaultLogging() {
         return defaultLogging;
     }
@@ -239,6 +389,191 @@ public abstract class AbstractHost implements Host {
         return fileExists(path) && Arrays.equals(DigestUtils.sha1(content.getBytes()), getFileSha1(path));
     }
 
+    @NotNull
+    @Override
+    public Map<String, FileInfo> getFileInfos(Collection<String> paths) throws KMRuntimeException {
+        LinkedHashMap<String, FileInfo> infos = new LinkedHashMap<>();
+        for (String path : paths) {
+            if (fileExists(path)) {
+                infos.put(path, getFileInfo(path));
+            }
+        }
+        return infos;
+    }
+
+    @NotNull
+    @Override
+    public Map<String, byte[]> getFileSha1s(Collection<String> paths) throws KMRuntimeException {
+        LinkedHashMap<String, byte[]> sha1s = new LinkedHashMap<>();
+        for (String path : paths) {
+            if (fileExists(path) && getFileInfo(path).getType() == FileInfo.Type.FILE) {
+                sha1s.put(path, getFileSha1(path));
+            }
+        }
+        return sha1s;
+    }
+
+    @NotNull
+    @Override
+    public HostBatch batch() {
+        return new HostBatch(this, defaultTimeout);
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<ExecutionResult> execAsync(final String command, @Nullable final Integer expectedRetCode, final Logging logging) {
+        return async(new AsyncOperation<ExecutionResult>() {
+            @Override
+            public ExecutionResult run() throws KMRuntimeException {
+                return exec(command, expectedRetCode, logging);
+            }
+        });
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<String> execAsync(final String command) {
+        return async(new AsyncOperation<String>() {
+            @Override
+            public String run() throws KMRuntimeException {
+                return exec(command);
+            }
+        });
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<Boolean> fileExistsAsync(final String path) {
+        return async(new AsyncOperation<Boolean>() {
+            @Override
+            public Boolean run() throws KMRuntimeException {
+                return fileExists(path);
+            }
+        });
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<FileInfo> getFileInfoAsync(final String path) {
+        return async(new AsyncOperation<FileInfo>() {
+            @Override
+            public FileInfo run() throws KMRuntimeException {
+                return getFileInfo(path);
+            }
+        });
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<byte[]> getFileSha1Async(final String path) {
+        return async(new AsyncOperation<byte[]>() {
+            @Override
+            public byte[] run() throws KMRuntimeException {
+                return getFileSha1(path);
+            }
+        });
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<byte[]> readFileDataAsync(final String path) {
+        return async(new AsyncOperation<byte[]>() {
+            @Override
+            public byte[] run() throws KMRuntimeException {
+                return readFileData(path);
+            }
+        });
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<Void> writeToFileAsync(final String path, final byte[] data) {
+        return async(new AsyncOperation<Void>() {
+            @Override
+            public Void run() throws KMRuntimeException {
+                writeToFile(path, data);
+                return null;
+            }
+        });
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<Void> writeToFileAsync(final String path, final InputStream data) {
+        return async(new AsyncOperation<Void>() {
+            @Override
+            public Void run() throws KMRuntimeException {
+                writeToFile(path, data);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Run an operation on the {@link #getAsyncExecutor() asynchronous executor}.
+     *
+     * @param operation Operation.
+     * @return Future result of the operation.
+     */
+    @NotNull
+    protected <T> CompletableFuture<T> async(final AsyncOperation<T> operation) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            asyncExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        future.complete(operation.run());
+                    } catch (Throwable e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public ExecutorService getAsyncExecutor() {
+        return asyncExecutor;
+    }
+
+    /**
+     * Set the executor used to run asynchronous operations. By default all hosts share a pool of
+     * {@value #ASYNC_THREADS} threads.
+     */
+    public void setAsyncExecutor(@NotNull ExecutorService asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    /**
+     * Wait for the result of an asynchronous operation.
+     *
+     * @param future Future result.
+     * @return Result.
+     * @throws KMRuntimeException If the operation failed.
+     */
+    public static <T> T await(Future<T> future) throws KMRuntimeException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KMRuntimeException("Interrupted while waiting for host operation", e);
+        } catch (ExecutionException e) {
+            throw KMRuntimeException.getCause(e);
+        }
+    }
+
+    /**
+     * Get the number of round trips made to the host (commands executed, and for remote hosts file transfers).
+     *
+     * @return Number of round trips.
+     */
+    public long getRoundTrips() {
+        return roundTrips.get();
+    }
+
     @Override
     public void setState(String id, Object state) {
         this.state.put(id, state);
@@ -254,32 +589,34 @@ public abstract class AbstractHost implements Host {
         return state;
     }
 
+    /**
+     * Create the executor used to run a command. The executor is configured for each execution, and commands may run
+     * concurrently, so a new instance must be returned for every call.
+     *
+     * @param input true if data will be passed to the command's standard input.
+     * @return Executor.
+     */
+    protected Executor createExecutor(boolean input) {
+        return new DefaultExecutor();
+    }
+
+    /**
+     * Create the executor for a specific command. By default this is the same as {@link #createExecutor(boolean)}.
+     *
+     * @param streaming true if the command's output must be passed on as it runs (to a listener).
+     */
+    protected Executor createExecutor(String command, String user, @Nullable Map<String, String> env, @Nullable Long timeout,
+                                      boolean input, boolean streaming) {
+        return createExecutor(input);
+    }
+
     public abstract String getCurrentUser();
 
     public abstract String getDefaultUser();
 
     protected abstract boolean execSupportsWorkDir();
 
-    private class DoNothingExecResultHandler implements ExecuteResultHandler {
-        private final ExecutionResult result;
-        private boolean finished;
-
-        public DoNothingExecResultHandler(ExecutionResult result) {
-            this.result = result;
-        }
-
-        @Override
-        public synchronized void onProcessComplete(int i) {
-            result.setRetCode(i);
-            finished = true;
-            notifyAll();
-        }
-
-        @Override
-        public synchronized void onProcessFailed(ExecuteException e) {
-            result.setRetCode(e.getExitValue());
-            finished = true;
-            notifyAll();
-        }
+    protected interface AsyncOperation<T> {
+        T run() throws KMRuntimeException;
     }
 }
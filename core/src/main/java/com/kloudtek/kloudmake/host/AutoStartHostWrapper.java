@@ -10,7 +10,9 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created by yannick on 17/08/13.
@@ -28,6 +30,12 @@ public class AutoStartHostWrapper implements Host {
         }
     }
 
+    @NotNull
+    @Override
+    public HostBatch batch() {
+        return new HostBatch(this);
+    }
+
     @Override
     public boolean isStarted() {
         return wrapped.isStarted();
@@ -95,6 +103,20 @@ public class AutoStartHostWrapper implements Host {
         return wrapped.exec(command, timeout, expectedRetCode, logging, user, workdir, env);
     }
 
+    @NotNull
+    @Override
+    public ExecutionResult execReadOnly(String command, @Nullable Integer expectedRetCode, Logging logging) throws KMRuntimeException {
+        checkStarted();
+        return wrapped.execReadOnly(command, expectedRetCode, logging);
+    }
+
+    @NotNull
+    @Override
+    public ExecutionResult execStreaming(String command, @Nullable Integer expectedRetCode, Logging logging, @NotNull OutputCapture.LineListener listener) throws KMRuntimeException {
+        checkStarted();
+        return wrapped.execStreaming(command, expectedRetCode, logging, listener);
+    }
+
     @Override
     public boolean fileExists(String path) throws KMRuntimeException {
         checkStarted();
@@ -114,6 +136,13 @@ public class AutoStartHostWrapper implements Host {
         return wrapped.getFileInfo(path);
     }
 
+    @NotNull
+    @Override
+    public Map<String, FileInfo> getFileInfos(Collection<String> paths) throws KMRuntimeException {
+        checkStarted();
+        return wrapped.getFileInfos(paths);
+    }
+
     @Override
     public boolean mkdir(String path) throws KMRuntimeException {
         checkStarted();
@@ -132,6 +161,13 @@ public class AutoStartHostWrapper implements Host {
         return wrapped.getFileSha1(path);
     }
 
+    @NotNull
+    @Override
+    public Map<String, byte[]> getFileSha1s(Collection<String> paths) throws KMRuntimeException {
+        checkStarted();
+        return wrapped.getFileSha1s(paths);
+    }
+
     @Override
     public byte[] readFileData(String path) throws KMRuntimeException {
         checkStarted();
@@ -248,4 +284,87 @@ public class AutoStartHostWrapper implements Host {
         checkStarted();
         return wrapped.getMetadata();
     }
+
+    @NotNull
+    @Override
+    public HostFacts getFacts() throws KMRuntimeException {
+        checkStarted();
+        return wrapped.getFacts();
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<ExecutionResult> execAsync(String command, @Nullable Integer expectedRetCode, Logging logging) {
+        KMRuntimeException failure = tryStart();
+        return failure != null ? AutoStartHostWrapper.<ExecutionResult>failed(failure) : wrapped.execAsync(command, expectedRetCode, logging);
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<String> execAsync(String command) {
+        KMRuntimeException failure = tryStart();
+        return failure != null ? AutoStartHostWrapper.<String>failed(failure) : wrapped.execAsync(command);
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<Boolean> fileExistsAsync(String path) {
+        KMRuntimeException failure = tryStart();
+        return failure != null ? AutoStartHostWrapper.<Boolean>failed(failure) : wrapped.fileExistsAsync(path);
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<FileInfo> getFileInfoAsync(String path) {
+        KMRuntimeException failure = tryStart();
+        return failure != null ? AutoStartHostWrapper.<FileInfo>failed(failure) : wrapped.getFileInfoAsync(path);
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<byte[]> getFileSha1Async(String path) {
+        KMRuntimeException failure = tryStart();
+        return failure != null ? AutoStartHostWrapper.<byte[]>failed(failure) : wrapped.getFileSha1Async(path);
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<byte[]> readFileDataAsync(String path) {
+        KMRuntimeException failure = tryStart();
+        return failure != null ? AutoStartHostWrapper.<byte[]>failed(failure) : wrapped.readFileDataAsync(path);
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<Void> writeToFileAsync(String path, byte[] data) {
+        KMRuntimeException failure = tryStart();
+        return failure != null ? AutoStartHostWrapper.<Void>failed(failure) : wrapped.writeToFileAsync(path, data);
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<Void> writeToFileAsync(String path, InputStream data) {
+        KMRuntimeException failure = tryStart();
+        return failure != null ? AutoStartHostWrapper.<Void>failed(failure) : wrapped.writeToFileAsync(path, data);
+    }
+
+    /**
+     * Start the wrapped host if required, returning the failure (for asynchronous operations, which report failures
+     * through their future).
+     */
+    @Nullable
+    private KMRuntimeException tryStart() {
+        try {
+            checkStarted();
+            return null;
+        } catch (KMRuntimeException e) {
+            return e;
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(KMRuntimeException e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
 }
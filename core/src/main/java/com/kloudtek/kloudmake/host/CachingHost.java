@@ -0,0 +1,569 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.kloudtek.kloudmake.exception.KMRuntimeException;
+import com.kloudtek.kloudmake.resource.core.FilePermissions;
+import com.kloudtek.kryptotek.DigestUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Host decorator which remembers whether files exist, their details and their checksums, so that they're only
+ * retrieved once per execution. Entries are updated or discarded when files are modified through this host, and all
+ * of them are discarded whenever a command is executed (except through {@link #execReadOnly(String, Integer, Logging)}),
+ * since there's no way of knowing what it changed.
+ */
+public class CachingHost implements Host {
+    private final Host wrapped;
+    private final HashMap<String, Entry> cache = new HashMap<>();
+
+    public CachingHost(@NotNull Host wrapped) {
+        this.wrapped = wrapped;
+    }
+
+    public Host getWrapped() {
+        return wrapped;
+    }
+
+    /**
+     * Discard all cached file details.
+     */
+    public synchronized void invalidate() {
+        cache.clear();
+    }
+
+    /**
+     * Discard the cached details of a file, and of the files within it.
+     */
+    public synchronized void invalidate(String path) {
+        String prefix = path.endsWith("/") ? path : path + "/";
+        Iterator<String> iterator = cache.keySet().iterator();
+        while (iterator.hasNext()) {
+            String cached = iterator.next();
+            if (cached.equals(path) || cached.startsWith(prefix)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private synchronized Entry entry(String path) {
+        Entry entry = cache.get(path);
+        if (entry == null) {
+            entry = new Entry();
+            cache.put(path, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Record that a file was created (so its parents, which may have been created with it, exist too).
+     */
+    private synchronized void setExists(String path) {
+        Entry entry = new Entry();
+        entry.exists = true;
+        cache.put(path, entry);
+        for (int idx = path.lastIndexOf('/'); idx > 0; idx = path.lastIndexOf('/', idx - 1)) {
+            Entry parent = cache.get(path.substring(0, idx));
+            if (parent != null && Boolean.FALSE.equals(parent.exists)) {
+                cache.remove(path.substring(0, idx));
+            }
+        }
+    }
+
+    @NotNull
+    @Override
+    public HostBatch batch() {
+        return new HostBatch(this);
+    }
+
+    @Override
+    public boolean isStarted() {
+        return wrapped.isStarted();
+    }
+
+    @Override
+    public void start() throws KMRuntimeException {
+        wrapped.start();
+    }
+
+    @Override
+    public void close() {
+        invalidate();
+        wrapped.close();
+    }
+
+    @Override
+    public ExecutionResult execScript(String script, ScriptType type, long timeout, @Nullable Integer expectedRetCode, Logging logging, String user) throws KMRuntimeException {
+        invalidate();
+        return wrapped.execScript(script, type, timeout, expectedRetCode, logging, user);
+    }
+
+    @Override
+    public String exec(String command) throws KMRuntimeException {
+        invalidate();
+        return wrapped.exec(command);
+    }
+
+    @Override
+    public String exec(String command, String workdir) throws KMRuntimeException {
+        invalidate();
+        return wrapped.exec(command, workdir);
+    }
+
+    @Override
+    public String exec(String command, Map<String, String> env) throws KMRuntimeException {
+        invalidate();
+        return wrapped.exec(command, env);
+    }
+
+    @Override
+    @NotNull
+    public ExecutionResult exec(String command, @Nullable Integer expectedRetCode, Logging logging) throws KMRuntimeException {
+        invalidate();
+        return wrapped.exec(command, expectedRetCode, logging);
+    }
+
+    @Override
+    @NotNull
+    public ExecutionResult exec(String command, @Nullable Integer expectedRetCode, Logging logging, @Nullable Map<String, String> env) throws KMRuntimeException {
+        invalidate();
+        return wrapped.exec(command, expectedRetCode, logging, env);
+    }
+
+    @Override
+    @NotNull
+    public ExecutionResult exec(String command, @Nullable Long timeout, @Nullable Integer expectedRetCode, Logging logging, String user) throws KMRuntimeException {
+        invalidate();
+        return wrapped.exec(command, timeout, expectedRetCode, logging, user);
+    }
+
+    @Override
+    @NotNull
+    public ExecutionResult exec(String command, @Nullable Long timeout, @Nullable Integer expectedRetCode, Logging logging, String user, String workdir, Map<String, String> env) throws KMRuntimeException {
+        invalidate();
+        return wrapped.exec(command, timeout, expectedRetCode, logging, user, workdir, env);
+    }
+
+    @Override
+    public String exec(String command, Logging logging) throws KMRuntimeException {
+        invalidate();
+        return wrapped.exec(command, logging);
+    }
+
+    @NotNull
+    @Override
+    public ExecutionResult execStreaming(String command, @Nullable Integer expectedRetCode, Logging logging, @NotNull OutputCapture.LineListener listener) throws KMRuntimeException {
+        invalidate();
+        return wrapped.execStreaming(command, expectedRetCode, logging, listener);
+    }
+
+    @NotNull
+    @Override
+    public ExecutionResult execReadOnly(String command, @Nullable Integer expectedRetCode, Logging logging) throws KMRuntimeException {
+        return wrapped.execReadOnly(command, expectedRetCode, logging);
+    }
+
+    @Override
+    public boolean fileExists(String path) throws KMRuntimeException {
+        synchronized (this) {
+            Entry entry = cache.get(path);
+            if (entry != null && entry.exists != null) {
+                return entry.exists;
+            }
+        }
+        boolean exists = wrapped.fileExists(path);
+        synchronized (this) {
+            entry(path).exists = exists;
+        }
+        return exists;
+    }
+
+    @Override
+    public String getFilePathSeparator() throws KMRuntimeException {
+        return wrapped.getFilePathSeparator();
+    }
+
+    @Override
+    @NotNull
+    public FileInfo getFileInfo(String path) throws KMRuntimeException {
+        synchronized (this) {
+            Entry entry = cache.get(path);
+            if (entry != null && entry.info != null) {
+                return entry.info;
+            }
+        }
+        FileInfo info = wrapped.getFileInfo(path);
+        synchronized (this) {
+            Entry entry = entry(path);
+            entry.exists = true;
+            entry.info = info;
+        }
+        return info;
+    }
+
+    @NotNull
+    @Override
+    public Map<String, FileInfo> getFileInfos(Collection<String> paths) throws KMRuntimeException {
+        LinkedHashMap<String, FileInfo> infos = new LinkedHashMap<>();
+        ArrayList<String> missing = new ArrayList<>();
+        synchronized (this) {
+            for (String path : paths) {
+                Entry entry = cache.get(path);
+                if (entry != null && entry.info != null) {
+                    infos.put(path, entry.info);
+                } else if (entry == null || entry.exists == null || entry.exists) {
+                    missing.add(path);
+                }
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<String, FileInfo> retrieved = wrapped.getFileInfos(missing);
+            synchronized (this) {
+                for (String path : missing) {
+                    Entry entry = entry(path);
+                    entry.info = retrieved.get(path);
+                    entry.exists = entry.info != null;
+                }
+            }
+            infos.putAll(retrieved);
+        }
+        return infos;
+    }
+
+    @Override
+    public byte[] getFileSha1(String path) throws KMRuntimeException {
+        synchronized (this) {
+            Entry entry = cache.get(path);
+            if (entry != null && entry.sha1 != null) {
+                return entry.sha1;
+            }
+        }
+        byte[] sha1 = wrapped.getFileSha1(path);
+        synchronized (this) {
+            entry(path).sha1 = sha1;
+        }
+        return sha1;
+    }
+
+    @NotNull
+    @Override
+    public Map<String, byte[]> getFileSha1s(Collection<String> paths) throws KMRuntimeException {
+        LinkedHashMap<String, byte[]> sha1s = new LinkedHashMap<>();
+        ArrayList<String> missing = new ArrayList<>();
+        synchronized (this) {
+            for (String path : paths) {
+                Entry entry = cache.get(path);
+                if (entry != null && entry.sha1 != null) {
+                    sha1s.put(path, entry.sha1);
+                } else if (entry == null || entry.exists == null || entry.exists) {
+                    missing.add(path);
+                }
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<String, byte[]> retrieved = wrapped.getFileSha1s(missing);
+            synchronized (this) {
+                for (Map.Entry<String, byte[]> sha1 : retrieved.entrySet()) {
+                    entry(sha1.getKey()).sha1 = sha1.getValue();
+                }
+            }
+            sha1s.putAll(retrieved);
+        }
+        return sha1s;
+    }
+
+    @Override
+    public boolean mkdir(String path) throws KMRuntimeException {
+        invalidate(path);
+        boolean created = wrapped.mkdir(path);
+        setExists(path);
+        return created;
+    }
+
+    @Override
+    public boolean mkdirs(String path) throws KMRuntimeException {
+        if (fileExists(path)) {
+            return false;
+        }
+        invalidate(path);
+        boolean created = wrapped.mkdirs(path);
+        setExists(path);
+        return created;
+    }
+
+    @Override
+    public byte[] readFileData(String path) throws KMRuntimeException {
+        return wrapped.readFileData(path);
+    }
+
+    @Override
+    public InputStream readFile(String path) throws KMRuntimeException {
+        return wrapped.readFile(path);
+    }
+
+    @Override
+    public String readTextFile(String path, String encoding) throws KMRuntimeException {
+        return wrapped.readTextFile(path, encoding);
+    }
+
+    @Override
+    public String readTextFile(String path) throws KMRuntimeException {
+        return wrapped.readTextFile(path);
+    }
+
+    @Override
+    public void writeToFile(String path, String data) throws KMRuntimeException {
+        invalidate(path);
+        wrapped.writeToFile(path, data);
+        setExists(path);
+    }
+
+    @Override
+    public void writeToFile(String path, byte[] data) throws KMRuntimeException {
+        invalidate(path);
+        wrapped.writeToFile(path, data);
+        synchronized (this) {
+            setExists(path);
+            entry(path).sha1 = DigestUtils.sha1(data);
+        }
+    }
+
+    @Override
+    public void writeToFile(String path, InputStream data) throws KMRuntimeException {
+        invalidate(path);
+        wrapped.writeToFile(path, data);
+        setExists(path);
+    }
+
+    @Override
+    public void deleteFile(String path, boolean recursive) throws KMRuntimeException {
+        invalidate(path);
+        wrapped.deleteFile(path, recursive);
+        synchronized (this) {
+            entry(path).exists = false;
+        }
+    }
+
+    @Override
+    public void createSymlink(String path, String target) throws KMRuntimeException {
+        invalidate(path);
+        wrapped.createSymlink(path, target);
+        setExists(path);
+    }
+
+    @Override
+    public void setFileOwner(String path, String owner) throws KMRuntimeException {
+        invalidateInfo(path);
+        wrapped.setFileOwner(path, owner);
+    }
+
+    @Override
+    public void setFileGroup(String path, String group) throws KMRuntimeException {
+        invalidateInfo(path);
+        wrapped.setFileGroup(path, group);
+    }
+
+    @Override
+    public void setFilePerms(String path, FilePermissions perms) throws KMRuntimeException {
+        invalidateInfo(path);
+        wrapped.setFilePerms(path, perms);
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<ExecutionResult> execAsync(String command, @Nullable Integer expectedRetCode, Logging logging) {
+        invalidate();
+        return invalidateOnCompletion(wrapped.execAsync(command, expectedRetCode, logging));
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<String> execAsync(String command) {
+        invalidate();
+        return invalidateOnCompletion(wrapped.execAsync(command));
+    }
+
+    /**
+     * Discard all cached details once an asynchronous command completes, since details retrieved while it was running
+     * may be out of date.
+     */
+    private <T> CompletableFuture<T> invalidateOnCompletion(CompletableFuture<T> future) {
+        return future.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T result, Throwable throwable) {
+                invalidate();
+            }
+        });
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<Boolean> fileExistsAsync(final String path) {
+        synchronized (this) {
+            Entry entry = cache.get(path);
+            if (entry != null && entry.exists != null) {
+                return CompletableFuture.completedFuture(entry.exists);
+            }
+        }
+        return wrapped.fileExistsAsync(path).thenApply(new Function<Boolean, Boolean>() {
+            @Override
+            public Boolean apply(Boolean exists) {
+                synchronized (CachingHost.this) {
+                    entry(path).exists = exists;
+                }
+                return exists;
+            }
+        });
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<FileInfo> getFileInfoAsync(final String path) {
+        synchronized (this) {
+            Entry entry = cache.get(path);
+            if (entry != null && entry.info != null) {
+                return CompletableFuture.completedFuture(entry.info);
+            }
+        }
+        return wrapped.getFileInfoAsync(path).thenApply(new Function<FileInfo, FileInfo>() {
+            @Override
+            public FileInfo apply(FileInfo info) {
+                synchronized (CachingHost.this) {
+                    Entry entry = entry(path);
+                    entry.exists = true;
+                    entry.info = info;
+                }
+                return info;
+            }
+        });
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<byte[]> getFileSha1Async(final String path) {
+        synchronized (this) {
+            Entry entry = cache.get(path);
+            if (entry != null && entry.sha1 != null) {
+                return CompletableFuture.completedFuture(entry.sha1);
+            }
+        }
+        return wrapped.getFileSha1Async(path).thenApply(new Function<byte[], byte[]>() {
+            @Override
+            public byte[] apply(byte[] sha1) {
+                synchronized (CachingHost.this) {
+                    entry(path).sha1 = sha1;
+                }
+                return sha1;
+            }
+        });
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<byte[]> readFileDataAsync(String path) {
+        return wrapped.readFileDataAsync(path);
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<Void> writeToFileAsync(final String path, final byte[] data) {
+        invalidate(path);
+        return wrapped.writeToFileAsync(path, data).whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable throwable) {
+                if (throwable == null) {
+                    synchronized (CachingHost.this) {
+                        setExists(path);
+                        entry(path).sha1 = DigestUtils.sha1(data);
+                    }
+                } else {
+                    invalidate(path);
+                }
+            }
+        });
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<Void> writeToFileAsync(final String path, InputStream data) {
+        invalidate(path);
+        return wrapped.writeToFileAsync(path, data).whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable throwable) {
+                if (throwable == null) {
+                    setExists(path);
+                } else {
+                    invalidate(path);
+                }
+            }
+        });
+    }
+
+    private synchronized void invalidateInfo(String path) {
+        Entry entry = cache.get(path);
+        if (entry != null) {
+            entry.info = null;
+        }
+    }
+
+    @Override
+    public String createTempDir() throws KMRuntimeException {
+        return wrapped.createTempDir();
+    }
+
+    @Override
+    public String createTempFile() throws KMRuntimeException {
+        return wrapped.createTempFile();
+    }
+
+    @Override
+    public boolean fileIsSame(@NotNull String path, @NotNull String content) throws KMRuntimeException {
+        return fileExists(path) && Arrays.equals(DigestUtils.sha1(content.getBytes()), getFileSha1(path));
+    }
+
+    @Override
+    public void setState(String id, Object state) {
+        wrapped.setState(id, state);
+    }
+
+    @Override
+    public Object getState(String id) {
+        return wrapped.getState(id);
+    }
+
+    @Override
+    public Map<String, Object> getState() {
+        return wrapped.getState();
+    }
+
+    @Override
+    public HostProvider getMetadata() throws KMRuntimeException {
+        return wrapped.getMetadata();
+    }
+
+    @NotNull
+    @Override
+    public HostFacts getFacts() throws KMRuntimeException {
+        return wrapped.getFacts();
+    }
+
+    @Override
+    public String toString() {
+        return wrapped.toString();
+    }
+
+    private static class Entry {
+        private Boolean exists;
+        private FileInfo info;
+        private byte[] sha1;
+    }
+}
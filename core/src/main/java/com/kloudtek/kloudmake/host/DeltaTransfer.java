@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.Adler32;
+
+/**
+ * rsync style delta encoding: given the block checksums of the file currently on the server (as generated by the
+ * kmdelta.py helper), the new content is scanned with a rolling checksum to find the blocks the server already has, so
+ * that only the other data needs to be sent along with instructions to rebuild the file.
+ */
+public class DeltaTransfer {
+    static final String HELPER = "kmdelta.py";
+    private static final int MOD_ADLER = 65521;
+    private static final int MAX_LITERAL = 1024 * 1024;
+
+    private DeltaTransfer() {
+    }
+
+    static InputStream getHelper() throws IOException {
+        InputStream helper = DeltaTransfer.class.getResourceAsStream(HELPER);
+        if (helper == null) {
+            throw new IOException("Delta helper missing: " + HELPER);
+        }
+        return helper;
+    }
+
+    /**
+     * Parse the block checksums generated by the helper's sig command.
+     *
+     * @param output Output of the sig command.
+     * @return Signature.
+     * @throws IllegalArgumentException If the output is invalid.
+     */
+    @NotNull
+    public static Signature parseSignature(String output) {
+        String[] lines = output.split("\n");
+        String[] header = lines[0].trim().split(" ");
+        if (header.length != 2) {
+            throw new IllegalArgumentException("Invalid signature header: " + lines[0]);
+        }
+        Signature signature = new Signature(Long.parseLong(header[0]), Integer.parseInt(header[1]));
+        try {
+            for (int i = 1; i < lines.length; i++) {
+                String line = lines[i].trim();
+                if (!line.isEmpty()) {
+                    int idx = line.indexOf(' ');
+                    int weak = (int) Long.parseLong(line.substring(0, idx), 16);
+                    signature.add(weak, new Block(i - 1, Hex.decodeHex(line.substring(idx + 1).toCharArray())));
+                }
+            }
+        } catch (DecoderException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid signature: " + e.getMessage(), e);
+        }
+        return signature;
+    }
+
+    /**
+     * Generate a delta.
+     *
+     * @param signature Signature of the file on the server.
+     * @param data      New file content (from its current position to its limit).
+     * @param out       Stream to write the delta to.
+     * @return Size of the delta.
+     * @throws IOException If an error occurs writing the delta.
+     */
+    public static long encode(Signature signature, ByteBuffer data, OutputStream out) throws IOException {
+        final int bs = signature.blockSize;
+        final int start = data.position();
+        final int end = data.limit();
+        Encoder encoder = new Encoder(new DataOutputStream(out), data);
+        MessageDigest sha1 = sha1();
+        int pos = start;
+        int literalStart = start;
+        int a = 0;
+        int b = 0;
+        boolean checksumValid = false;
+        while (pos + bs <= end) {
+            if (!checksumValid) {
+                int weak = adler32(data, pos, bs);
+                a = weak & 0xffff;
+                b = weak >>> 16;
+                checksumValid = true;
+            }
+            List<Block> candidates = signature.blocks.get((b << 16) | a);
+            if (candidates != null) {
+                ByteBuffer window = data.duplicate();
+                window.limit(pos + bs).position(pos);
+                sha1.update(window);
+                byte[] strong = sha1.digest();
+                Block match = null;
+                for (Block candidate : candidates) {
+                    if (Arrays.equals(candidate.sha1, strong)) {
+                        match = candidate;
+                        break;
+                    }
+                }
+                if (match != null) {
+                    encoder.literal(literalStart, pos);
+                    encoder.copy(match.index);
+                    pos += bs;
+                    literalStart = pos;
+                    checksumValid = false;
+                    continue;
+                }
+            }
+            if (pos + bs < end) {
+                // roll the checksum one byte forward
+                int out0 = data.get(pos) & 0xff;
+                int in = data.get(pos + bs) & 0xff;
+                a = mod(a - out0 + in);
+                b = mod(b - (int) ((long) bs * out0 % MOD_ADLER) + a - 1);
+            }
+            pos++;
+        }
+        encoder.literal(literalStart, end);
+        ByteBuffer all = data.duplicate();
+        all.limit(end).position(start);
+        sha1.update(all);
+        encoder.end(sha1.digest());
+        return encoder.out.size();
+    }
+
+    private static int mod(int value) {
+        value %= MOD_ADLER;
+        return value < 0 ? value + MOD_ADLER : value;
+    }
+
+    private static int adler32(ByteBuffer data, int offset, int length) {
+        Adler32 adler32 = new Adler32();
+        ByteBuffer window = data.duplicate();
+        window.limit(offset + length).position(offset);
+        adler32.update(window);
+        return (int) adler32.getValue();
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Encoder {
+        private final DataOutputStream out;
+        private final ByteBuffer data;
+        private long copyStart = -1;
+        private int copyCount;
+
+        private Encoder(DataOutputStream out, ByteBuffer data) {
+            this.out = out;
+            this.data = data;
+        }
+
+        private void copy(long index) throws IOException {
+            if (copyStart != -1 && index == copyStart + copyCount) {
+                copyCount++;
+            } else {
+                flushCopy();
+                copyStart = index;
+                copyCount = 1;
+            }
+        }
+
+        private void literal(int from, int to) throws IOException {
+            if (from >= to) {
+                return;
+            }
+            flushCopy();
+            byte[] buf = new byte[Math.min(to - from, MAX_LITERAL)];
+            for (int pos = from; pos < to; pos += buf.length) {
+                int len = Math.min(buf.length, to - pos);
+                ByteBuffer chunk = data.duplicate();
+                chunk.limit(pos + len).position(pos);
+                chunk.get(buf, 0, len);
+                out.writeByte('D');
+                out.writeInt(len);
+                out.write(buf, 0, len);
+            }
+        }
+
+        private void end(byte[] sha1) throws IOException {
+            flushCopy();
+            out.writeByte('E');
+            out.write(sha1);
+            out.flush();
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyStart != -1) {
+                out.writeByte('C');
+                out.writeLong(copyStart);
+                out.writeInt(copyCount);
+                copyStart = -1;
+            }
+        }
+    }
+
+    /**
+     * Block checksums of a file.
+     */
+    public static class Signature {
+        private final long size;
+        private final int blockSize;
+        private final HashMap<Integer, List<Block>> blocks = new HashMap<>();
+
+        public Signature(long size, int blockSize) {
+            this.size = size;
+            this.blockSize = blockSize;
+        }
+
+        private void add(int weak, Block block) {
+            List<Block> list = blocks.get(weak);
+            if (list == null) {
+                list = new ArrayList<>(1);
+                blocks.put(weak, list);
+            }
+            list.add(block);
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+    }
+
+    private static class Block {
+        private final long index;
+        private final byte[] sha1;
+
+        private Block(long index, byte[] sha1) {
+            this.index = index;
+            this.sha1 = sha1;
+        }
+    }
+}
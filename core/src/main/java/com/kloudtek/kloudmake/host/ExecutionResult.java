@@ -4,9 +4,28 @@
 
 package com.kloudtek.kloudmake.host;
 
-public class ExecutionResult {
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Result of a command. Output which was spilled to a file is deleted when it's retrieved, when the result is closed,
+ * or failing that once the result has been garbage collected (since most callers don't close results).
+ */
+public class ExecutionResult implements Closeable {
+    private static final ReferenceQueue<ExecutionResult> dropped = new ReferenceQueue<>();
+    private static final Set<SpillReference> spills = Collections.newSetFromMap(new ConcurrentHashMap<SpillReference, Boolean>());
     private int retCode;
     private String output;
+    private OutputCapture capture;
+    private SpillReference spill;
+    private boolean outputTruncated;
 
     public int getRetCode() {
         return retCode;
@@ -16,11 +35,85 @@ public class ExecutionResult {
         this.retCode = retCode;
     }
 
-    public String getOutput() {
+    /**
+     * Get the command's output, which is only materialised when this is first called.
+     */
+    public synchronized String getOutput() {
+        if (output == null && capture != null) {
+            try {
+                output = capture.getText();
+                outputTruncated = capture.isTruncated();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read command output: " + e.getMessage(), e);
+            }
+            releaseCapture();
+        }
         return output;
     }
 
-    public void setOutput(String output) {
+    public synchronized void setOutput(String output) {
+        releaseCapture();
         this.output = output;
+        outputTruncated = false;
+    }
+
+    public synchronized void setCapture(OutputCapture capture) {
+        discardDropped();
+        releaseCapture();
+        this.capture = capture;
+        output = null;
+        outputTruncated = false;
+        if (capture.isSpilled()) {
+            spill = new SpillReference(this, capture);
+            spills.add(spill);
+        }
+    }
+
+    /**
+     * Check if part of the output was discarded because it was too large (see {@link OutputCapture}).
+     */
+    public synchronized boolean isOutputTruncated() {
+        return capture != null ? capture.isTruncated() : outputTruncated;
+    }
+
+    /**
+     * Release the output if it was spilled to a file and hasn't been retrieved.
+     */
+    @Override
+    public synchronized void close() {
+        releaseCapture();
+    }
+
+    private void releaseCapture() {
+        if (capture != null) {
+            capture.discard();
+            capture = null;
+        }
+        if (spill != null) {
+            spills.remove(spill);
+            spill.clear();
+            spill = null;
+        }
+    }
+
+    /**
+     * Delete the output spilled by results which were garbage collected without being read or closed.
+     */
+    static void discardDropped() {
+        for (Reference<? extends ExecutionResult> ref = dropped.poll(); ref != null; ref = dropped.poll()) {
+            SpillReference spill = (SpillReference) ref;
+            if (spills.remove(spill)) {
+                spill.capture.discard();
+            }
+        }
+    }
+
+    private static class SpillReference extends PhantomReference<ExecutionResult> {
+        private final OutputCapture capture;
+
+        private SpillReference(ExecutionResult result, OutputCapture capture) {
+            super(result, dropped);
+            this.capture = capture;
+        }
     }
 }
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Persistent index of the SHA1 checksums of local files, so that files which haven't changed are never hashed again.
+ * Entries are keyed by the file's absolute path, and only used as long as the file's size, modification time and
+ * inode (file key) haven't changed.
+ * <p>The index is an append-only file of one entry per line (later entries override earlier ones), which is compacted
+ * when it's loaded if it contains too many obsolete entries.</p>
+ */
+public class FileHashCache {
+    private static final Logger logger = LoggerFactory.getLogger(FileHashCache.class);
+    private static final long MMAP_THRESHOLD = 4 * 1024 * 1024;
+    private static final long MMAP_CHUNK = 256 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Files modified more recently than this aren't indexed, since they could be modified again without their
+     * modification time changing.
+     */
+    private static final long RACY_PERIOD = 2000;
+    private static final FileHashCache defaultCache = new FileHashCache(
+            new File(System.getProperty("user.home"), ".kloudmake" + File.separator + "filehashes"));
+    private final File file;
+    private HashMap<String, Entry> entries;
+    private volatile boolean enabled = true;
+
+    public FileHashCache(@NotNull File file) {
+        this.file = file;
+    }
+
+    public static FileHashCache getDefault() {
+        return defaultCache;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Set whether the index is used (if not, checksums are always computed).
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Get the SHA1 checksum of a local file, from the index if it hasn't changed since it was indexed.
+     *
+     * @param path File path.
+     * @return SHA1 checksum.
+     * @throws IOException If the file couldn't be read.
+     */
+    @NotNull
+    public byte[] getSha1(@NotNull Path path) throws IOException {
+        if (!enabled) {
+            return computeSha1(path);
+        }
+        path = path.toAbsolutePath();
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        if (!attrs.isRegularFile()) {
+            return computeSha1(path);
+        }
+        String key = path.toString();
+        Entry stat = new Entry(attrs, null);
+        synchronized (this) {
+            Entry entry = getEntries().get(key);
+            if (entry != null && entry.matches(stat)) {
+                return entry.sha1.clone();
+            }
+        }
+        byte[] sha1 = computeSha1(path);
+        if (System.currentTimeMillis() - stat.modified > RACY_PERIOD && key.indexOf('\n') == -1) {
+            BasicFileAttributes after = Files.readAttributes(path, BasicFileAttributes.class);
+            if (stat.matches(new Entry(after, null))) {
+                put(key, new Entry(after, sha1));
+            }
+        }
+        return sha1;
+    }
+
+    /**
+     * Discard all indexed checksums.
+     */
+    public synchronized void clear() {
+        entries = new HashMap<>();
+        if (file.exists() && !file.delete()) {
+            logger.warn("Unable to delete file hash index " + file.getPath());
+        }
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        getEntries().put(key, entry);
+        File dir = file.getParentFile();
+        try {
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("unable to create " + dir.getPath());
+            }
+            // each entry is appended with a single write, so that concurrent runs don't corrupt each other's
+            try (OutputStream os = new FileOutputStream(file, true)) {
+                os.write(entry.toLine(key).getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to update file hash index " + file.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    private HashMap<String, Entry> getEntries() {
+        if (entries == null) {
+            entries = new HashMap<>();
+            int lines = 0;
+            if (file.exists()) {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                        lines++;
+                        String[] fields = line.split("\t", 5);
+                        if (fields.length == 5) {
+                            try {
+                                entries.put(fields[4], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                                        fields[3], Hex.decodeHex(fields[0].toCharArray())));
+                            } catch (NumberFormatException | DecoderException e) {
+                                logger.debug("Ignoring invalid file hash index entry: " + line);
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.warn("Unable to read file hash index " + file.getPath() + ": " + e.getMessage());
+                }
+            }
+            if (lines > 1000 && lines > entries.size() * 2) {
+                compact();
+            }
+        }
+        return entries;
+    }
+
+    private void compact() {
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            if (!Files.exists(Paths.get(it.next().getKey()))) {
+                it.remove();
+            }
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    w.write(entry.getValue().toLine(entry.getKey()));
+                }
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("unable to replace " + file.getPath());
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to compact file hash index: " + e.getMessage());
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Compute the SHA1 checksum of a file. Large files are memory-mapped rather than read through a buffer.
+     */
+    @NotNull
+    public static byte[] computeSha1(@NotNull Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            long size = channel.size();
+            if (size >= MMAP_THRESHOLD) {
+                for (long pos = 0; pos < size; pos += MMAP_CHUNK) {
+                    digest.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MMAP_CHUNK, size - pos)));
+                }
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 not supported", e);
+        }
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long modified;
+        private final String fileKey;
+        private final byte[] sha1;
+
+        private Entry(long size, long modified, String fileKey, byte[] sha1) {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+            this.sha1 = sha1;
+        }
+
+        private Entry(BasicFileAttributes attrs, byte[] sha1) {
+            this(attrs.size(), attrs.lastModifiedTime().toMillis(), attrs.fileKey() != null ? attrs.fileKey().toString() : "", sha1);
+        }
+
+        private boolean matches(Entry stat) {
+            return size == stat.size && modified == stat.modified && fileKey.equals(stat.fileKey);
+        }
+
+        private String toLine(String path) {
+            return new String(Hex.encodeHex(sha1)) + '\t' + size + '\t' + modified + '\t' + fileKey + '\t' + path + '\n';
+        }
+    }
+}
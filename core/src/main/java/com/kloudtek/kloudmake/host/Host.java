@@ -10,7 +10,10 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 
 /**
  * <p>The host is an abstraction layer to access the operating system of the host you wish to perform tasks against.</p>
@@ -79,6 +82,33 @@ public interface Host {
     @NotNull
     ExecutionResult exec(String command, @Nullable Long timeout, @Nullable Integer expectedRetCode, Logging logging, String user, String workdir, Map<String, String> env) throws KMRuntimeException;
 
+    /**
+     * Execute a command which doesn't modify anything on the host, so that it doesn't cause details about files to be
+     * retrieved again (see {@link CachingHost}).
+     *
+     * @param command         Command.
+     * @param expectedRetCode Optional expected return code.
+     * @param logging         Logging.
+     * @return Execution result.
+     * @throws KMRuntimeException If an error occurs while running the command.
+     */
+    @NotNull
+    ExecutionResult execReadOnly(String command, @Nullable Integer expectedRetCode, Logging logging) throws KMRuntimeException;
+
+    /**
+     * Execute a command, passing each line of its output to a listener as it runs. Only a bounded amount of the output
+     * is kept in memory (see {@link OutputCapture}).
+     *
+     * @param command         Command.
+     * @param expectedRetCode Optional expected return code.
+     * @param logging         Logging.
+     * @param listener        Listener notified of each line of output.
+     * @return Execution result.
+     * @throws KMRuntimeException If an error occurs while running the command.
+     */
+    @NotNull
+    ExecutionResult execStreaming(String command, @Nullable Integer expectedRetCode, Logging logging, @NotNull OutputCapture.LineListener listener) throws KMRuntimeException;
+
     boolean fileExists(String path) throws KMRuntimeException;
 
     String getFilePathSeparator() throws KMRuntimeException;
@@ -95,6 +125,16 @@ public interface Host {
     @NotNull
     FileInfo getFileInfo(String path) throws KMRuntimeException;
 
+    /**
+     * Retrieve the details of several files at once.
+     *
+     * @param paths File paths.
+     * @return {@link FileInfo} of each file which exists, keyed by path.
+     * @throws KMRuntimeException If an error occured while retrieving file details.
+     */
+    @NotNull
+    Map<String, FileInfo> getFileInfos(Collection<String> paths) throws KMRuntimeException;
+
     boolean mkdir(String path) throws KMRuntimeException;
 
     boolean mkdirs(String path) throws KMRuntimeException;
@@ -108,6 +148,16 @@ public interface Host {
      */
     byte[] getFileSha1(String path) throws KMRuntimeException;
 
+    /**
+     * get the SHA1 checksums of several files at once.
+     *
+     * @param paths File paths.
+     * @return SHA1 digest of each path which is a regular file, keyed by path.
+     * @throws KMRuntimeException If an error occurs calculating the checksums.
+     */
+    @NotNull
+    Map<String, byte[]> getFileSha1s(Collection<String> paths) throws KMRuntimeException;
+
     byte[] readFileData(String path) throws KMRuntimeException;
 
     InputStream readFile(String path) throws KMRuntimeException;
@@ -140,6 +190,54 @@ public interface Host {
 
     boolean fileIsSame(@NotNull String path, @NotNull String content) throws KMRuntimeException;
 
+    /**
+     * Asynchronous version of {@link #exec(String, Integer, Logging)}. Asynchronous operations allow independent
+     * operations to overlap (for example checking several files, or uploading a file while a command runs). They're
+     * run concurrently with any other operation on the host, so they must not depend on each other's side effects.
+     * Failures complete the future exceptionally, use {@link AbstractHost#await(Future)} to get the result or the
+     * {@link KMRuntimeException}.
+     *
+     * @param command         Command.
+     * @param expectedRetCode Optional expected return code.
+     * @param logging         Logging.
+     * @return Future execution result.
+     */
+    @NotNull
+    CompletableFuture<ExecutionResult> execAsync(String command, @Nullable Integer expectedRetCode, Logging logging);
+
+    @NotNull
+    CompletableFuture<String> execAsync(String command);
+
+    @NotNull
+    CompletableFuture<Boolean> fileExistsAsync(String path);
+
+    @NotNull
+    CompletableFuture<FileInfo> getFileInfoAsync(String path);
+
+    @NotNull
+    CompletableFuture<byte[]> getFileSha1Async(String path);
+
+    @NotNull
+    CompletableFuture<byte[]> readFileDataAsync(String path);
+
+    @NotNull
+    CompletableFuture<Void> writeToFileAsync(String path, byte[] data);
+
+    /**
+     * Asynchronous version of {@link #writeToFile(String, InputStream)}. The stream is read (and closed) by the thread
+     * performing the write.
+     */
+    @NotNull
+    CompletableFuture<Void> writeToFileAsync(String path, InputStream data);
+
+    /**
+     * Create a batch, which allows to run several independent commands and file operations in a single round trip.
+     *
+     * @return Empty batch.
+     */
+    @NotNull
+    HostBatch batch();
+
     void setState(String id, Object state);
 
     Object getState(String id);
@@ -148,6 +246,16 @@ public interface Host {
 
     HostProvider getMetadata() throws KMRuntimeException;
 
+    /**
+     * Get the host's facts (operating system, distribution, init system, etc). These are gathered when the host is
+     * started, or retrieved from the local {@link HostFactsCache}.
+     *
+     * @return Host facts.
+     * @throws KMRuntimeException If the facts couldn't be gathered.
+     */
+    @NotNull
+    HostFacts getFacts() throws KMRuntimeException;
+
     enum Logging {
         NO, YES, ON_ERROR
     }
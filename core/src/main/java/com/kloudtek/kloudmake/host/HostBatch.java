@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.kloudtek.kloudmake.exception.KMRuntimeException;
+import com.kloudtek.kloudmake.resource.core.FilePermissions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static com.kloudtek.kloudmake.host.Host.Logging.NO;
+
+/**
+ * Queues independent commands and file operations so they can be sent to a host as a single script, in one round
+ * trip. Each step runs in its own subshell (so a failing step doesn't prevent the following ones from running), and
+ * its output and return code are demarcated so that an {@link ExecutionResult} is returned for each of them.
+ * Obtained through {@link Host#batch()}.
+ */
+public class HostBatch {
+    private final Host host;
+    private final long timeout;
+    private final List<Step> steps = new ArrayList<>();
+
+    public HostBatch(@NotNull Host host) {
+        this(host, Host.DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param host    Host the batch runs on.
+     * @param timeout Timeout for the whole batch.
+     */
+    public HostBatch(@NotNull Host host, long timeout) {
+        this.host = host;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Queue a command, which must return 0.
+     *
+     * @param command Command.
+     * @return this batch.
+     */
+    public HostBatch exec(String command) {
+        return exec(command, 0);
+    }
+
+    /**
+     * Queue a command.
+     *
+     * @param command         Command.
+     * @param expectedRetCode Expected return code, or null if the return code should not be checked.
+     * @return this batch.
+     */
+    public HostBatch exec(String command, @Nullable Integer expectedRetCode) {
+        steps.add(new Step(command, expectedRetCode));
+        return this;
+    }
+
+    public HostBatch deleteFile(String path, boolean recursive) {
+        return exec(recursive ? "rm -rf " + path : "rm -f " + path + " || rmdir " + path);
+    }
+
+    public HostBatch mkdirs(String path) {
+        return exec("mkdir -p " + path);
+    }
+
+    public HostBatch createSymlink(String path, String target) {
+        return exec("ln -s " + target + " " + path);
+    }
+
+    public HostBatch setFileOwner(String path, String owner) {
+        return exec("chown " + owner + " " + path);
+    }
+
+    public HostBatch setFileGroup(String path, String group) {
+        return exec("chown :" + group + " " + path);
+    }
+
+    public HostBatch setFilePerms(String path, FilePermissions perms) {
+        return exec("chmod " + perms.toChmodString() + " " + path);
+    }
+
+    public int size() {
+        return steps.size();
+    }
+
+    public boolean isEmpty() {
+        return steps.isEmpty();
+    }
+
+    /**
+     * Run all queued steps (in the order they were added) as a single command, and clear the queue.
+     *
+     * @return Result of each step.
+     * @throws KMRuntimeException If running the batch failed, or if any step didn't return its expected return code
+     *                            (all steps are run regardless).
+     */
+    @NotNull
+    public List<ExecutionResult> execute() throws KMRuntimeException {
+        List<ExecutionResult> results = new ArrayList<>(steps.size());
+        if (steps.isEmpty()) {
+            return results;
+        }
+        String marker = "--kmbatch-" + UUID.randomUUID().toString() + "--";
+        StringBuilder script = new StringBuilder();
+        for (Step step : steps) {
+            script.append("(\n").append(step.command).append("\n) </dev/null 2>&1\nprintf '\\n").append(marker)
+                    .append(" %d\\n' $?\n");
+        }
+        List<Step> executed = new ArrayList<>(steps);
+        steps.clear();
+        // the script is passed as a script (which SshHost streams to bash) rather than as a command argument, so it
+        // doesn't need any quoting and isn't subject to the maximum argument length
+        String output = host.execScript(script.toString(), Host.ScriptType.BASH, timeout, null, NO, null).getOutput();
+        int idx = 0;
+        StringBuilder errors = new StringBuilder();
+        for (Step step : executed) {
+            int end = output.indexOf("\n" + marker + " ", idx);
+            if (end == -1) {
+                throw new KMRuntimeException(host + " failed to run batch, missing result for: " + step.command);
+            }
+            int eol = output.indexOf('\n', end + 1);
+            ExecutionResult result = new ExecutionResult();
+            result.setOutput(output.substring(idx, end));
+            result.setRetCode(Integer.parseInt(output.substring(end + marker.length() + 2, eol != -1 ? eol : output.length()).trim()));
+            results.add(result);
+            if (step.expectedRetCode != null && step.expectedRetCode != result.getRetCode()) {
+                errors.append("\n'").append(step.command).append("' returned ").append(result.getRetCode()).append(": ")
+                        .append(result.getOutput().trim());
+            }
+            idx = eol != -1 ? eol + 1 : output.length();
+        }
+        if (errors.length() > 0) {
+            throw new KMRuntimeException(host + " failed to execute batch:" + errors);
+        }
+        return results;
+    }
+
+    private static class Step {
+        private final String command;
+        private final Integer expectedRetCode;
+
+        private Step(String command, Integer expectedRetCode) {
+            this.command = command;
+            this.expectedRetCode = expectedRetCode;
+        }
+    }
+}
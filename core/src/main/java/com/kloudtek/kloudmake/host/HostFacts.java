@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.kloudtek.kloudmake.exception.KMRuntimeException;
+import com.kloudtek.util.io.IOUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Facts about a host (operating system, architecture, distribution, init system, package manager, default user, home
+ * and working directory), which are all gathered with a single probe script.
+ */
+public class HostFacts {
+    public static final String OS = "os";
+    public static final String ARCH = "arch";
+    public static final String DISTRIBUTION = "distribution";
+    public static final String DISTRIBUTION_VERSION = "distributionVersion";
+    public static final String INIT_SYSTEM = "initSystem";
+    public static final String PACKAGE_MANAGER = "packageManager";
+    public static final String USER = "user";
+    public static final String HOME = "home";
+    public static final String WORKING_DIR = "workingDir";
+    static final String PROBE = "hostfacts.sh";
+    /**
+     * Facts which only apply to the process which gathered them, and are therefore never cached.
+     */
+    static final Set<String> TRANSIENT = Collections.singleton(WORKING_DIR);
+    private final Map<String, String> facts;
+    private final long timestamp;
+
+    public HostFacts(Map<String, String> facts, long timestamp) {
+        this.facts = Collections.unmodifiableMap(new HashMap<>(facts));
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Run the probe script on a host.
+     *
+     * @param host Host.
+     * @return Facts gathered.
+     * @throws KMRuntimeException If the probe failed.
+     */
+    @NotNull
+    public static HostFacts gather(Host host) throws KMRuntimeException {
+        String probe;
+        try (InputStream is = HostFacts.class.getResourceAsStream(PROBE)) {
+            if (is == null) {
+                throw new IOException("Host facts probe missing: " + PROBE);
+            }
+            probe = new String(IOUtils.toByteArray(is), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new KMRuntimeException(e.getMessage(), e);
+        }
+        ExecutionResult result = host.execScript(probe, Host.ScriptType.BASH, Host.DEFAULT_TIMEOUT, 0, Host.Logging.ON_ERROR, null);
+        return parse(result.getOutput());
+    }
+
+    /**
+     * Parse the output of the probe script.
+     */
+    @NotNull
+    public static HostFacts parse(String output) {
+        HashMap<String, String> facts = new HashMap<>();
+        for (String line : output.split("\r?\n")) {
+            int idx = line.indexOf('=');
+            if (idx > 0 && idx < line.length() - 1) {
+                facts.put(line.substring(0, idx).trim(), line.substring(idx + 1).trim());
+            }
+        }
+        return new HostFacts(facts, System.currentTimeMillis());
+    }
+
+    @Nullable
+    public String get(String name) {
+        return facts.get(name);
+    }
+
+    public Map<String, String> getFacts() {
+        return facts;
+    }
+
+    /**
+     * Get the time at which the facts were gathered.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Get the kernel name (as reported by uname -s).
+     */
+    @Nullable
+    public String getOs() {
+        return facts.get(OS);
+    }
+
+    @NotNull
+    public OperatingSystem getOperatingSystem() {
+        String os = facts.get(OS);
+        if (os == null) {
+            return OperatingSystem.UNKNOWN;
+        }
+        os = os.toLowerCase();
+        if (os.equals("linux")) {
+            return OperatingSystem.LINUX;
+        } else if (os.equals("darwin")) {
+            return OperatingSystem.OSX;
+        } else if (os.equals("sunos")) {
+            return OperatingSystem.SOLARIS;
+        } else if (os.equals("aix")) {
+            return OperatingSystem.AIX;
+        } else if (os.equals("hp-ux")) {
+            return OperatingSystem.HPUX;
+        } else if (os.endsWith("bsd")) {
+            return OperatingSystem.BSD;
+        } else if (os.startsWith("cygwin") || os.startsWith("mingw") || os.startsWith("msys")) {
+            return OperatingSystem.WINDOWS;
+        } else {
+            return OperatingSystem.UNKNOWN;
+        }
+    }
+
+    @Nullable
+    public Architecture getArchitecture() {
+        String arch = facts.get(ARCH);
+        if (arch == null) {
+            return null;
+        }
+        arch = arch.toLowerCase();
+        if (arch.equals("x86_64") || arch.equals("amd64")) {
+            return Architecture.AMD64;
+        } else if (arch.matches("i[3-6]86")) {
+            return Architecture.I386;
+        } else if (arch.equals("ia64")) {
+            return Architecture.IA64;
+        } else if (arch.startsWith("arm") || arch.equals("aarch64")) {
+            return Architecture.ARM;
+        } else if (arch.startsWith("mips")) {
+            return Architecture.MIPS;
+        } else if (arch.startsWith("ppc") || arch.startsWith("powerpc")) {
+            return Architecture.POWERPC;
+        } else if (arch.startsWith("sparc") || arch.startsWith("sun4")) {
+            return Architecture.SPARC;
+        } else if (arch.startsWith("parisc")) {
+            return Architecture.HPPA;
+        } else if (arch.equals("m68k")) {
+            return Architecture.M68K;
+        } else if (arch.startsWith("sh")) {
+            return Architecture.SH;
+        } else {
+            return null;
+        }
+    }
+
+    @Nullable
+    public String getDistribution() {
+        return facts.get(DISTRIBUTION);
+    }
+
+    @Nullable
+    public String getDistributionVersion() {
+        return facts.get(DISTRIBUTION_VERSION);
+    }
+
+    /**
+     * Get the init system (systemd, upstart, launchd or sysv).
+     */
+    @Nullable
+    public String getInitSystem() {
+        return facts.get(INIT_SYSTEM);
+    }
+
+    /**
+     * Get the package manager command (apt-get, yum, brew, etc).
+     */
+    @Nullable
+    public String getPackageManager() {
+        return facts.get(PACKAGE_MANAGER);
+    }
+
+    /**
+     * Get the user commands are run as when no user is specified.
+     */
+    @Nullable
+    public String getUser() {
+        return facts.get(USER);
+    }
+
+    @Nullable
+    public String getHome() {
+        return facts.get(HOME);
+    }
+
+    /**
+     * Get the working directory of commands, which is only known if the facts were just gathered (it isn't cached).
+     */
+    @Nullable
+    public String getWorkingDir() {
+        return facts.get(WORKING_DIR);
+    }
+
+    @Override
+    public String toString() {
+        return facts.toString();
+    }
+}
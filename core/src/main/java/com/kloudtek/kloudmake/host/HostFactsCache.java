@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.kloudtek.kryptotek.DigestUtils;
+import org.apache.commons.codec.binary.Hex;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local cache of {@link HostFacts}, keyed by host identity (for example the SSH user, address and port), so that
+ * they don't need to be gathered again on every run. Each host's facts are stored in a properties file within the
+ * cache directory, and are discarded once they're older than the cache's TTL.
+ */
+public class HostFactsCache {
+    private static final Logger logger = LoggerFactory.getLogger(HostFactsCache.class);
+    public static final long DEFAULT_TTL = TimeUnit.HOURS.toMillis(24);
+    private static final String IDENTITY = "km.identity";
+    private static final String TIMESTAMP = "km.timestamp";
+    private static final HostFactsCache defaultCache = new HostFactsCache(
+            new File(System.getProperty("user.home"), ".kloudmake" + File.separator + "hostfacts"), DEFAULT_TTL);
+    private final File dir;
+    private volatile long ttl;
+
+    public HostFactsCache(@NotNull File dir, long ttl) {
+        this.dir = dir;
+        this.ttl = ttl;
+    }
+
+    public static HostFactsCache getDefault() {
+        return defaultCache;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Set how long facts are kept (0 disables the cache).
+     */
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Get the cached facts of a host.
+     *
+     * @param identity Host identity.
+     * @return Facts, or null if none are cached or they have expired.
+     */
+    @Nullable
+    public HostFacts get(@NotNull String identity) {
+        File file = getFile(identity);
+        if (ttl <= 0 || !file.exists()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream is = new FileInputStream(file)) {
+            properties.load(new InputStreamReader(is, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logger.warn("Unable to read cached host facts " + file.getPath() + ": " + e.getMessage());
+            return null;
+        }
+        if (!identity.equals(properties.getProperty(IDENTITY))) {
+            return null;
+        }
+        long timestamp;
+        try {
+            timestamp = Long.parseLong(properties.getProperty(TIMESTAMP));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (System.currentTimeMillis() - timestamp > ttl) {
+            return null;
+        }
+        HashMap<String, String> facts = new HashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            if (!name.equals(IDENTITY) && !name.equals(TIMESTAMP)) {
+                facts.put(name, properties.getProperty(name));
+            }
+        }
+        return new HostFacts(facts, timestamp);
+    }
+
+    /**
+     * Store the facts of a host (except {@link HostFacts#TRANSIENT transient} ones). Failures are only logged, since the
+     * facts can always be gathered again.
+     *
+     * @param identity Host identity.
+     * @param facts    Facts.
+     */
+    public void put(@NotNull String identity, @NotNull HostFacts facts) {
+        if (ttl <= 0) {
+            return;
+        }
+        Properties properties = new Properties();
+        for (Map.Entry<String, String> fact : facts.getFacts().entrySet()) {
+            if (!HostFacts.TRANSIENT.contains(fact.getKey())) {
+                properties.setProperty(fact.getKey(), fact.getValue());
+            }
+        }
+        properties.setProperty(IDENTITY, identity);
+        properties.setProperty(TIMESTAMP, Long.toString(facts.getTimestamp()));
+        File file = getFile(identity);
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("unable to create " + dir.getPath());
+            }
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+                properties.store(writer, null);
+            }
+            if (!tmp.renameTo(file)) {
+                if (!file.delete() || !tmp.renameTo(file)) {
+                    throw new IOException("unable to replace " + file.getPath());
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to cache host facts for " + identity + ": " + e.getMessage());
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Discard the cached facts of a host.
+     */
+    public void invalidate(@NotNull String identity) {
+        File file = getFile(identity);
+        if (file.exists() && !file.delete()) {
+            logger.warn("Unable to delete cached host facts " + file.getPath());
+        }
+    }
+
+    private File getFile(String identity) {
+        return new File(dir, new String(Hex.encodeHex(DigestUtils.sha1(identity.getBytes(StandardCharsets.UTF_8)))) + ".properties");
+    }
+}
@@ -7,10 +7,15 @@ package com.kloudtek.kloudmake.host;
 import com.kloudtek.kloudmake.exception.KMRuntimeException;
 import org.apache.commons.exec.CommandLine;
 
-import java.util.HashMap;
-
 public interface HostProvider {
-    boolean supports(Host host, HashMap<String, Object> datacache) throws KMRuntimeException;
+    /**
+     * Check if this provider supports a host.
+     *
+     * @param host  Host.
+     * @param facts Host facts.
+     * @return True if the host is supported.
+     */
+    boolean supports(Host host, HostFacts facts) throws KMRuntimeException;
 
     OperatingSystem getOperatingSystem();
 
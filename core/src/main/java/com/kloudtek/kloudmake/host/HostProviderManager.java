@@ -10,7 +10,6 @@ import com.kloudtek.kloudmake.provider.ProviderManager;
 import org.apache.commons.exec.CommandLine;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
 @Provider
 public class HostProviderManager implements ProviderManager<HostProvider> {
@@ -26,10 +25,9 @@ public class HostProviderManager implements ProviderManager<HostProvider> {
         providers.add(provider);
     }
 
-    public HostProvider find(Host host) throws KMRuntimeException {
-        HashMap<String, Object> datacache = new HashMap<>();
+    public HostProvider find(Host host, HostFacts facts) throws KMRuntimeException {
         for (HostProvider provider : providers) {
-            if (provider.supports(host, datacache)) {
+            if (provider.supports(host, facts)) {
                 return provider;
             }
         }
@@ -38,7 +36,7 @@ public class HostProviderManager implements ProviderManager<HostProvider> {
 
     class UnsupportedMetadataProvider implements HostProvider {
         @Override
-        public boolean supports(Host host, HashMap<String, Object> datacache) throws KMRuntimeException {
+        public boolean supports(Host host, HostFacts facts) throws KMRuntimeException {
             return true;
         }
 
@@ -7,27 +7,40 @@ package com.kloudtek.kloudmake.host;
 import com.kloudtek.kloudmake.exception.KMRuntimeException;
 import com.kloudtek.kloudmake.resource.core.FilePermissions;
 import com.kloudtek.kloudmake.util.ReflectionHelper;
-import com.kloudtek.kryptotek.DigestUtils;
 import com.kloudtek.util.FileUtils;
 import com.kloudtek.util.TempFile;
 import com.kloudtek.util.io.IOUtils;
+import org.apache.commons.exec.Executor;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.nio.file.FileSystems;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.nio.file.attribute.UserPrincipalLookupService;
-import java.util.Map;
+import java.util.*;
 
 import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
 
 public class LocalHost extends AbstractHost {
+    private static final Logger logger = LoggerFactory.getLogger(LocalHost.class);
     private String currentUser = System.getProperty("user.name");
+    private boolean persistentShell;
+    private FileHashCache fileHashCache = FileHashCache.getDefault();
+    private final HashMap<String, ArrayDeque<LocalShell>> shells = new HashMap<>();
+    private final HashSet<String> shellUnsupported = new HashSet<>();
 
     public LocalHost() {
     }
@@ -67,20 +80,19 @@ public class LocalHost extends AbstractHost {
     public FileInfo getFileInfo(String path) throws KMRuntimeException {
         FileInfo fileInfo = new FileInfo(path);
         try {
-            File file = new File(path);
-            Path filePath = file.toPath();
-            Map<String, Object> attrs = Files.readAttributes(filePath, "posix:*", NOFOLLOW_LINKS);
-            fileInfo.setGroup(attrs.get("group").toString());
-            fileInfo.setOwner(attrs.get("owner").toString());
-            fileInfo.setPermissions(PosixFilePermissions.toString(Files.getPosixFilePermissions(filePath, NOFOLLOW_LINKS)));
-            fileInfo.setModified(Files.getLastModifiedTime(filePath, NOFOLLOW_LINKS).toMillis());
-            if ((Boolean) attrs.get("isDirectory")) {
+            Path filePath = Paths.get(path);
+            PosixFileAttributes attrs = Files.readAttributes(filePath, PosixFileAttributes.class, NOFOLLOW_LINKS);
+            fileInfo.setGroup(attrs.group().getName());
+            fileInfo.setOwner(attrs.owner().getName());
+            fileInfo.setPermissions(PosixFilePermissions.toString(attrs.permissions()));
+            fileInfo.setModified(attrs.lastModifiedTime().toMillis());
+            if (attrs.isDirectory()) {
                 fileInfo.setType(FileInfo.Type.DIRECTORY);
-                fileInfo.setSize(Files.size(filePath));
-            } else if ((Boolean) attrs.get("isRegularFile")) {
+                fileInfo.setSize(attrs.size());
+            } else if (attrs.isRegularFile()) {
                 fileInfo.setType(FileInfo.Type.FILE);
-                fileInfo.setSize(Files.size(filePath));
-            } else if ((Boolean) attrs.get("isSymbolicLink")) {
+                fileInfo.setSize(attrs.size());
+            } else if (attrs.isSymbolicLink()) {
                 fileInfo.setType(FileInfo.Type.SYMLINK);
                 fileInfo.setLinkTarget(Files.readSymbolicLink(filePath).toString());
             } else {
@@ -118,41 +130,146 @@ public class LocalHost extends AbstractHost {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * Checksums are looked up in the {@link FileHashCache}, so unchanged files aren't read again.
+     */
     @Override
     public byte[] getFileSha1(@NotNull String path) throws KMRuntimeException {
-        try (FileInputStream is = new FileInputStream(path)) {
-            return DigestUtils.sha1(is);
+        try {
+            Path filePath = Paths.get(path);
+            return fileHashCache != null ? fileHashCache.getSha1(filePath) : FileHashCache.computeSha1(filePath);
         } catch (IOException e) {
             throw new KMRuntimeException("Error occured while reading " + path, e);
         }
     }
 
     @Override
-    public void writeToFile(@NotNull String path, @NotNull byte[] data) throws KMRuntimeException {
+    public void writeToFile(@NotNull final String path, @NotNull final byte[] data) throws KMRuntimeException {
         try {
-            try (FileOutputStream w = new FileOutputStream(path)) {
-                w.write(data);
-            }
+            write(Paths.get(path), new ContentWriter() {
+                @Override
+                public void write(FileChannel channel) throws IOException {
+                    ByteBuffer buffer = ByteBuffer.wrap(data);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+            });
         } catch (IOException e) {
             throw new KMRuntimeException(e.getMessage(), e);
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * If the data is read from a local file, it's transferred directly between the files by the kernel.
+     */
     @Override
-    public void writeToFile(@NotNull String path, @NotNull InputStream data) throws KMRuntimeException {
+    public void writeToFile(@NotNull String path, @NotNull final InputStream data) throws KMRuntimeException {
         try {
-            try (FileOutputStream w = new FileOutputStream(path)) {
-                IOUtils.copy(data, w);
-            }
+            write(Paths.get(path), new ContentWriter() {
+                @Override
+                public void write(FileChannel channel) throws IOException {
+                    if (data instanceof FileInputStream) {
+                        // transferTo rather than transferFrom, since it's the one that uses sendfile()
+                        FileChannel source = ((FileInputStream) data).getChannel();
+                        long start = source.position();
+                        long size = source.size();
+                        for (long pos = start; pos < size; ) {
+                            long transferred = source.transferTo(pos, size - pos, channel);
+                            if (transferred <= 0) {
+                                break;
+                            }
+                            pos += transferred;
+                        }
+                        source.position(size);
+                    } else {
+                        IOUtils.copy(data, Channels.newOutputStream(channel));
+                    }
+                }
+            });
         } catch (IOException e) {
             throw new KMRuntimeException("Unable to write file " + path + ": " + e.getMessage(), e);
         }
     }
 
+    /**
+     * Write a file by writing its content to a temporary file in the same directory, which then atomically replaces
+     * it (so nothing ever sees a partially written file). The permissions and ownership of the file being replaced are
+     * preserved. If a temporary file can't be used (ie. the file is a symlink, or its directory isn't writable) the
+     * file is written in place instead.
+     */
+    private void write(Path path, ContentWriter writer) throws IOException {
+        Path temp = createTempFileFor(path);
+        if (temp == null) {
+            try (FileChannel channel = FileChannel.open(path, WRITE, CREATE, TRUNCATE_EXISTING)) {
+                writer.write(channel);
+            }
+            return;
+        }
+        try {
+            try (FileChannel channel = FileChannel.open(temp, WRITE)) {
+                writer.write(channel);
+            }
+            try {
+                Files.move(temp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @Nullable
+    private Path createTempFileFor(Path path) {
+        Path dir = path.toAbsolutePath().getParent();
+        if (dir == null) {
+            return null;
+        }
+        PosixFileAttributes existing;
+        try {
+            existing = Files.readAttributes(path, PosixFileAttributes.class, NOFOLLOW_LINKS);
+            if (!existing.isRegularFile()) {
+                return null;
+            }
+        } catch (IOException e) {
+            existing = null;
+        }
+        Path temp = null;
+        try {
+            // created without explicit permissions so that new files get the same ones as if they were written directly
+            temp = Files.createFile(dir.resolve("." + path.getFileName() + "." + UUID.randomUUID() + ".kmtmp"));
+            if (existing != null) {
+                Files.setPosixFilePermissions(temp, existing.permissions());
+                PosixFileAttributeView view = Files.getFileAttributeView(temp, PosixFileAttributeView.class);
+                PosixFileAttributes created = view.readAttributes();
+                if (!created.owner().equals(existing.owner())) {
+                    view.setOwner(existing.owner());
+                }
+                if (!created.group().equals(existing.group())) {
+                    view.setGroup(existing.group());
+                }
+            }
+            return temp;
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.debug("Unable to use temporary file to write " + path + ", writing it in place: " + e.getMessage());
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ex) {
+                    logger.warn("Unable to delete temporary file " + temp);
+                }
+            }
+            return null;
+        }
+    }
+
     @Override
     public byte[] readFileData(@NotNull String path) throws KMRuntimeException {
         try {
-            return FileUtils.toByteArray(new File(path));
+            return Files.readAllBytes(Paths.get(path));
         } catch (IOException e) {
             throw new KMRuntimeException("Unable to read file " + path + ": " + e.getMessage(), e);
         }
@@ -269,6 +386,103 @@ public class LocalHost extends AbstractHost {
         return currentUser;
     }
 
+    public FileHashCache getFileHashCache() {
+        return fileHashCache;
+    }
+
+    /**
+     * Set the index used to avoid hashing unchanged files again (null to always hash them).
+     */
+    public void setFileHashCache(@Nullable FileHashCache fileHashCache) {
+        this.fileHashCache = fileHashCache;
+    }
+
+    public boolean isPersistentShell() {
+        return persistentShell;
+    }
+
+    /**
+     * Set whether commands should be run through long-lived shells (one per user) rather than by starting a new
+     * process for each of them. Commands which need their own environment, input or a non-default timeout still get
+     * their own process.
+     */
+    public void setPersistentShell(boolean persistentShell) {
+        this.persistentShell = persistentShell;
+    }
+
+    @Override
+    protected Executor createExecutor(String command, String user, @Nullable Map<String, String> env, @Nullable Long timeout,
+                                      boolean input, boolean streaming) {
+        if (persistentShell && !input && (env == null || env.isEmpty()) && (timeout == null || timeout == defaultTimeout)) {
+            LocalShell shell = acquireShell(user);
+            if (shell != null) {
+                return new LocalShellExecutor(this, shell, command);
+            }
+        }
+        return super.createExecutor(command, user, env, timeout, input, streaming);
+    }
+
+    @Nullable
+    private LocalShell acquireShell(String user) {
+        synchronized (shells) {
+            if (shellUnsupported.contains(user)) {
+                return null;
+            }
+            ArrayDeque<LocalShell> idle = shells.get(user);
+            if (idle != null && !idle.isEmpty()) {
+                return idle.pop();
+            }
+        }
+        try {
+            return LocalShell.start(user.equals(currentUser) ? null : user);
+        } catch (IOException e) {
+            logger.debug("Persistent shell not available for " + user + ", running commands in separate processes: " + e.getMessage());
+            synchronized (shells) {
+                shellUnsupported.add(user);
+            }
+            return null;
+        }
+    }
+
+    void releaseShell(LocalShell shell) {
+        String user = shell.getUser() != null ? shell.getUser() : currentUser;
+        synchronized (shells) {
+            if (shell.isAlive() && persistentShell) {
+                ArrayDeque<LocalShell> idle = shells.get(user);
+                if (idle == null) {
+                    idle = new ArrayDeque<>();
+                    shells.put(user, idle);
+                }
+                idle.push(shell);
+                return;
+            }
+        }
+        shell.close();
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        synchronized (shells) {
+            for (ArrayDeque<LocalShell> idle : shells.values()) {
+                for (LocalShell shell : idle) {
+                    shell.close();
+                }
+            }
+            shells.clear();
+            shellUnsupported.clear();
+        }
+    }
+
+    @Override
+    protected String getIdentity() {
+        try {
+            return "local:" + currentUser + "@" + InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
     public static LocalHost createStandalone() {
         LocalHost host = new LocalHost();
         HostProvider hostProvider;
@@ -290,4 +504,8 @@ public class LocalHost extends AbstractHost {
     public String toString() {
         return "Local Host #" + hashCode();
     }
+
+    private interface ContentWriter {
+        void write(FileChannel channel) throws IOException;
+    }
 }
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-lived bash process used by {@link LocalHost} to run commands without starting a new process for each of them.
+ * Each command is run in a subshell (so that changes to the working directory, variables, etc don't leak to the next
+ * command), with its output followed by a sentinel and the command's exit code. The shell can only run one command
+ * at a time.
+ * <p>Job control is enabled so that each command runs in its own process group, which allows killing the command along
+ * with any process it started (see {@link #kill(Output)}) while leaving the shell usable.</p>
+ */
+class LocalShell implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(LocalShell.class);
+    private static final ExecutorService killers = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NotNull Runnable r) {
+            Thread thread = new Thread(r, "kloudmake-shell-kill-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final String user;
+    private final Process process;
+    private final OutputStream stdin;
+    private final InputStream stdout;
+    private volatile boolean broken;
+
+    private LocalShell(@Nullable String user, Process process) {
+        this.user = user;
+        this.process = process;
+        stdin = new BufferedOutputStream(process.getOutputStream());
+        stdout = new BufferedInputStream(process.getInputStream());
+    }
+
+    /**
+     * Start a shell.
+     *
+     * @param user User to run the shell as (through sudo), or null to use the current user.
+     * @return Shell.
+     * @throws IOException If the shell couldn't be started (including if sudo requires a password).
+     */
+    @NotNull
+    public static LocalShell start(@Nullable String user) throws IOException {
+        ProcessBuilder builder = user != null ? new ProcessBuilder("sudo", "-n", "-u", user, "bash") : new ProcessBuilder("bash");
+        builder.redirectErrorStream(true);
+        LocalShell shell = new LocalShell(user, builder.start());
+        shell.stdin.write("set -m\n".getBytes(StandardCharsets.UTF_8));
+        Output output = shell.run(":", null);
+        while (output.read() != -1) {
+            logger.debug("Unexpected output from shell");
+        }
+        if (output.getExitCode() == null || output.getExitCode() != 0) {
+            shell.close();
+            throw new IOException("Unable to start shell" + (user != null ? " as " + user : ""));
+        }
+        return shell;
+    }
+
+    @Nullable
+    public String getUser() {
+        return user;
+    }
+
+    public Process getProcess() {
+        return process;
+    }
+
+    /**
+     * Check if the shell can still be used (it's broken if a command's output couldn't be read up to its sentinel,
+     * for example because it was killed after a timeout).
+     */
+    public boolean isAlive() {
+        if (broken) {
+            return false;
+        }
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Send a command to the shell. Its output (with stderr merged into stdout) must be fully read before another
+     * command is sent.
+     *
+     * @param command Command.
+     * @param workdir Directory to run the command in.
+     * @return Command output.
+     * @throws IOException If the command couldn't be sent.
+     */
+    @NotNull
+    public Output run(String command, @Nullable String workdir) throws IOException {
+        String sentinel = "KMEND" + UUID.randomUUID().toString().replace("-", "");
+        // the subshell first prints its pid, which is also its process group id (BASHPID requires bash 4)
+        StringBuilder script = new StringBuilder("( printf '%d\\n' ${BASHPID:-$(exec sh -c 'echo $PPID')}; ");
+        if (workdir != null) {
+            script.append("cd ").append(quote(workdir)).append(" && ");
+        }
+        script.append("eval ").append(quote(command)).append(" ) </dev/null 2>&1 & wait $! 2>/dev/null; printf '%s %d\\n' ")
+                .append(sentinel).append(" $?\n");
+        try {
+            stdin.write(script.toString().getBytes(StandardCharsets.UTF_8));
+            stdin.flush();
+            StringBuilder pid = new StringBuilder();
+            for (int b = stdout.read(); b != '\n'; b = stdout.read()) {
+                if (b == -1) {
+                    throw new EOFException("Shell terminated");
+                }
+                pid.append((char) b);
+            }
+            return new Output(sentinel.getBytes(StandardCharsets.US_ASCII), Integer.parseInt(pid.toString().trim()));
+        } catch (IOException | NumberFormatException e) {
+            broken = true;
+            throw e instanceof IOException ? (IOException) e : new IOException("Invalid process id returned by shell: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Kill a command and all the processes it started, which ends its output (with the exit code of a killed process).
+     * If that fails, the whole shell is destroyed instead.
+     *
+     * @param output Output of the command.
+     */
+    public void kill(Output output) {
+        String group = "-" + output.processGroup;
+        ProcessBuilder builder = user != null ? new ProcessBuilder("sudo", "-n", "-u", user, "kill", "-KILL", "--", group) :
+                new ProcessBuilder("kill", "-KILL", "--", group);
+        try {
+            if (builder.redirectErrorStream(true).start().waitFor() == 0) {
+                return;
+            }
+            logger.warn("Failed to kill process group " + output.processGroup + ", destroying shell");
+        } catch (IOException e) {
+            logger.warn("Failed to kill process group " + output.processGroup + ", destroying shell: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        close();
+    }
+
+    /**
+     * Same as {@link #kill(Output)}, but done in a separate thread (since killing requires running a process).
+     *
+     * @param output Output of the command.
+     */
+    public void killAsync(final Output output) {
+        killers.execute(new Runnable() {
+            @Override
+            public void run() {
+                kill(output);
+            }
+        });
+    }
+
+    static String quote(String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    @Override
+    public void close() {
+        broken = true;
+        try {
+            stdin.close();
+        } catch (IOException e) {
+            logger.debug("Failed to close shell input", e);
+        }
+        process.destroy();
+    }
+
+    /**
+     * Output of a command, which ends when the sentinel is reached.
+     */
+    class Output extends InputStream {
+        private final byte[] sentinel;
+        private final int processGroup;
+        private final byte[] pending;
+        private int pendingLen;
+        private int pendingIdx;
+        private int matched;
+        private boolean finished;
+        private Integer exitCode;
+
+        private Output(byte[] sentinel, int processGroup) {
+            this.sentinel = sentinel;
+            this.processGroup = processGroup;
+            pending = new byte[sentinel.length + 1];
+        }
+
+        /**
+         * Get the command's exit code, which is only available once the output has been fully read.
+         *
+         * @return Exit code, or null if the output wasn't fully read or the shell died.
+         */
+        @Nullable
+        public Integer getExitCode() {
+            return exitCode;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pendingIdx < pendingLen) {
+                return pending[pendingIdx++] & 0xFF;
+            }
+            if (finished) {
+                return -1;
+            }
+            while (true) {
+                int b = stdout.read();
+                if (b == -1) {
+                    broken = true;
+                    finished = true;
+                    if (matched == 0) {
+                        return -1;
+                    }
+                    setPending(-1);
+                    return pending[pendingIdx++] & 0xFF;
+                } else if (b == sentinel[matched]) {
+                    matched++;
+                    if (matched == sentinel.length) {
+                        finished = true;
+                        readExitCode();
+                        return -1;
+                    }
+                } else if (matched == 0) {
+                    return b;
+                } else {
+                    // only part of the sentinel matched, so it was actually output. Since the sentinel's first byte
+                    // doesn't appear anywhere else in it, the current byte can only be the start of a new match.
+                    setPending(b == sentinel[0] ? -1 : b);
+                    matched = b == sentinel[0] ? 1 : 0;
+                    return pending[pendingIdx++] & 0xFF;
+                }
+            }
+        }
+
+        private void setPending(int b) {
+            System.arraycopy(sentinel, 0, pending, 0, matched);
+            pendingLen = matched;
+            pendingIdx = 0;
+            matched = 0;
+            if (b != -1) {
+                pending[pendingLen++] = (byte) b;
+            }
+        }
+
+        private void readExitCode() throws IOException {
+            StringBuilder code = new StringBuilder();
+            for (int b = stdout.read(); b != '\n'; b = stdout.read()) {
+                if (b == -1) {
+                    broken = true;
+                    return;
+                }
+                code.append((char) b);
+            }
+            try {
+                exitCode = Integer.parseInt(code.toString().trim());
+            } catch (NumberFormatException e) {
+                broken = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import org.apache.commons.exec.*;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Implementation of Executor that runs a command in a {@link LocalShell}. The command line it's given is ignored (it's
+ * the command wrapped for a new bash process), the command passed at construction is run instead. The shell is
+ * returned to its host once the command has completed.
+ */
+class LocalShellExecutor implements Executor {
+    private static final Logger logger = LoggerFactory.getLogger(LocalShellExecutor.class);
+    private final LocalHost host;
+    private final LocalShell shell;
+    private final String command;
+    private ExecuteStreamHandler streamHandler;
+    private ExecuteWatchdog watchdog;
+    private int[] exitValues;
+    private File workingDirectory;
+    private ProcessDestroyer processDestroyer;
+
+    LocalShellExecutor(LocalHost host, LocalShell shell, String command) {
+        this.host = host;
+        this.shell = shell;
+        this.command = command;
+        this.exitValues = new int[0];
+        streamHandler = new PooledStreamHandler();
+    }
+
+    @Override
+    public int execute(CommandLine commandLine) throws IOException {
+        return execute(commandLine, (Map) null);
+    }
+
+    @Override
+    public int execute(CommandLine commandLine, Map env) throws IOException {
+        final DefaultExecuteResultHandler resultHandler = new DefaultExecuteResultHandler();
+        execute(commandLine, env, resultHandler);
+        return resultHandler.getExitValue();
+    }
+
+    @Override
+    public void execute(CommandLine commandLine, ExecuteResultHandler executeResultHandler) throws IOException {
+        execute(commandLine, null, executeResultHandler);
+    }
+
+    @Override
+    public void execute(CommandLine commandLine, @Nullable Map env, ExecuteResultHandler executeResultHandler) throws IOException {
+        logger.debug("Shell Exec: " + command);
+        Integer exitCode = null;
+        try {
+            final LocalShell.Output output = shell.run(command, workingDirectory != null ? workingDirectory.getPath() : null);
+            if (watchdog instanceof TimerWatchdog) {
+                // on timeout the command's process group is killed, which ends the output (timer tasks must be
+                // quick, so the kill is handed off to another thread)
+                ((TimerWatchdog) watchdog).start(new Runnable() {
+                    @Override
+                    public void run() {
+                        shell.killAsync(output);
+                    }
+                });
+            } else if (watchdog != null) {
+                watchdog.start(shell.getProcess());
+            }
+            try {
+                if (streamHandler instanceof PooledStreamHandler) {
+                    // the output is read in this thread, since there's nothing else to pump
+                    OutputStream out = ((PooledStreamHandler) streamHandler).getOut();
+                    byte[] buffer = new byte[8192];
+                    for (int len = output.read(buffer); len != -1; len = output.read(buffer)) {
+                        out.write(buffer, 0, len);
+                    }
+                    out.flush();
+                } else {
+                    streamHandler.setProcessInputStream(new NullOutputStream());
+                    streamHandler.setProcessErrorStream(new ByteArrayInputStream(new byte[0]));
+                    streamHandler.setProcessOutputStream(output);
+                    streamHandler.start();
+                    streamHandler.stop();
+                }
+            } finally {
+                if (watchdog != null) {
+                    watchdog.stop();
+                }
+            }
+            exitCode = output.getExitCode();
+        } finally {
+            host.releaseShell(shell);
+        }
+        if (exitCode != null) {
+            executeResultHandler.onProcessComplete(exitCode);
+        } else {
+            executeResultHandler.onProcessFailed(new ExecuteException("Shell terminated while running command", -1));
+        }
+    }
+
+    @Override
+    public ExecuteStreamHandler getStreamHandler() {
+        return streamHandler;
+    }
+
+    @Override
+    public void setStreamHandler(ExecuteStreamHandler streamHandler) {
+        this.streamHandler = streamHandler;
+    }
+
+    @Override
+    public ExecuteWatchdog getWatchdog() {
+        return watchdog;
+    }
+
+    @Override
+    public void setWatchdog(ExecuteWatchdog watchDog) {
+        this.watchdog = watchDog;
+    }
+
+    @Override
+    public ProcessDestroyer getProcessDestroyer() {
+        return this.processDestroyer;
+    }
+
+    @Override
+    public void setProcessDestroyer(ProcessDestroyer processDestroyer) {
+        this.processDestroyer = processDestroyer;
+    }
+
+    @Override
+    public File getWorkingDirectory() {
+        return workingDirectory;
+    }
+
+    @Override
+    public void setWorkingDirectory(File dir) {
+        this.workingDirectory = dir;
+    }
+
+    @Override
+    public void setExitValue(final int value) {
+        this.setExitValues(new int[]{value});
+    }
+
+    @Override
+    public void setExitValues(final int[] values) {
+        this.exitValues = (values == null ? null : values.clone());
+    }
+
+    @Override
+    public boolean isFailure(final int exitValue) {
+        if (this.exitValues == null) {
+            return false;
+        } else if (this.exitValues.length == 0) {
+            return exitValue != 0;
+        } else {
+            for (int val : this.exitValues) {
+                if (val == exitValue) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+    }
+}
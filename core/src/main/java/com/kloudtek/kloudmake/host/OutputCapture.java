@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+
+/**
+ * Captures a command's output with bounded memory usage. Output is kept in memory up to a limit, after which it's
+ * either spilled to a temporary file (so the full output remains available) or reduced to its head and a ring buffer
+ * of its tail. Lines can also be passed to a {@link LineListener} as they're written.
+ */
+public class OutputCapture extends OutputStream {
+    private static final Logger logger = LoggerFactory.getLogger(OutputCapture.class);
+    public static final int DEFAULT_MEMORY_LIMIT = 1024 * 1024;
+    public static final int DEFAULT_TAIL_SIZE = 64 * 1024;
+    private static final int MAX_LINE = 64 * 1024;
+    private final int memoryLimit;
+    private final boolean spill;
+    private final LineListener listener;
+    private byte[] head = new byte[1024];
+    private int headLen;
+    private byte[] tail;
+    private int tailPos;
+    private boolean tailFull;
+    private File spillFile;
+    private OutputStream spillOut;
+    private long size;
+    private ByteArrayOutputStream line;
+    private boolean closed;
+
+    public OutputCapture() {
+        this(DEFAULT_MEMORY_LIMIT, true, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param memoryLimit Maximum amount of output kept in memory.
+     * @param spill       If output over the memory limit should be spilled to a temporary file (otherwise only the
+     *                    tail of the output is kept).
+     * @param listener    Listener notified of each line of output.
+     */
+    public OutputCapture(int memoryLimit, boolean spill, @Nullable LineListener listener) {
+        this.memoryLimit = memoryLimit;
+        this.spill = spill;
+        this.listener = listener;
+        if (listener != null) {
+            line = new ByteArrayOutputStream();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(@NotNull byte[] b, int off, int len) throws IOException {
+        size += len;
+        if (listener != null) {
+            notifyLines(b, off, len);
+        }
+        if (spillOut != null) {
+            spillOut.write(b, off, len);
+            return;
+        }
+        int inMemory = Math.min(len, memoryLimit - headLen);
+        if (inMemory > 0) {
+            if (headLen + inMemory > head.length) {
+                byte[] newHead = new byte[Math.min(memoryLimit, Math.max(head.length * 2, headLen + inMemory))];
+                System.arraycopy(head, 0, newHead, 0, headLen);
+                head = newHead;
+            }
+            System.arraycopy(b, off, head, headLen, inMemory);
+            headLen += inMemory;
+            off += inMemory;
+            len -= inMemory;
+        }
+        if (len > 0) {
+            if (spill) {
+                spillFile = File.createTempFile("kmoutput", ".tmp");
+                spillFile.deleteOnExit();
+                spillOut = new BufferedOutputStream(new FileOutputStream(spillFile));
+                spillOut.write(head, 0, headLen);
+                spillOut.write(b, off, len);
+            } else {
+                writeTail(b, off, len);
+            }
+        }
+    }
+
+    private void writeTail(byte[] b, int off, int len) {
+        if (tail == null) {
+            tail = new byte[Math.min(DEFAULT_TAIL_SIZE, memoryLimit)];
+        }
+        if (len >= tail.length) {
+            System.arraycopy(b, off + len - tail.length, tail, 0, tail.length);
+            tailPos = 0;
+            tailFull = true;
+            return;
+        }
+        int first = Math.min(len, tail.length - tailPos);
+        System.arraycopy(b, off, tail, tailPos, first);
+        System.arraycopy(b, off + first, tail, 0, len - first);
+        tailPos += len;
+        if (tailPos >= tail.length) {
+            tailPos -= tail.length;
+            tailFull = true;
+        }
+    }
+
+    private void notifyLines(byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            if (b[i] == '\n') {
+                notifyLine();
+            } else {
+                line.write(b[i]);
+                if (line.size() >= MAX_LINE) {
+                    notifyLine();
+                }
+            }
+        }
+    }
+
+    private void notifyLine() {
+        String text = line.toString();
+        line.reset();
+        try {
+            listener.onLine(text.endsWith("\r") ? text.substring(0, text.length() - 1) : text);
+        } catch (RuntimeException e) {
+            logger.warn("Output listener failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the total size of the output (including any part of it which wasn't kept).
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Check if part of the output was discarded (which only happens when it isn't spilled to a file).
+     */
+    public synchronized boolean isTruncated() {
+        return spillFile == null && size > headLen;
+    }
+
+    /**
+     * Get the output. Truncated output consists of its head, a line indicating how much was omitted, and its tail.
+     */
+    @NotNull
+    public synchronized String getText() throws IOException {
+        if (spillFile != null) {
+            spillOut.flush();
+            return new String(Files.readAllBytes(spillFile.toPath()));
+        } else if (!isTruncated()) {
+            return new String(head, 0, headLen);
+        } else {
+            byte[] tailData = getTail();
+            StringBuilder text = new StringBuilder(new String(head, 0, headLen));
+            if (text.length() > 0 && text.charAt(text.length() - 1) != '\n') {
+                text.append('\n');
+            }
+            text.append("[... ").append(size - headLen - tailData.length).append(" bytes omitted ...]\n");
+            return text.append(new String(tailData)).toString();
+        }
+    }
+
+    private byte[] getTail() {
+        if (tail == null) {
+            return new byte[0];
+        } else if (!tailFull) {
+            byte[] data = new byte[tailPos];
+            System.arraycopy(tail, 0, data, 0, tailPos);
+            return data;
+        } else {
+            byte[] data = new byte[tail.length];
+            System.arraycopy(tail, tailPos, data, 0, tail.length - tailPos);
+            System.arraycopy(tail, 0, data, tail.length - tailPos, tailPos);
+            return data;
+        }
+    }
+
+    /**
+     * Pass each line of output to a listener, without loading spilled output in memory.
+     */
+    public synchronized void forEachLine(LineListener lineListener) throws IOException {
+        Reader reader;
+        if (spillFile != null) {
+            spillOut.flush();
+            reader = new InputStreamReader(new FileInputStream(spillFile));
+        } else {
+            reader = new StringReader(getText());
+        }
+        try (BufferedReader lines = new BufferedReader(reader)) {
+            for (String text = lines.readLine(); text != null; text = lines.readLine()) {
+                lineListener.onLine(text);
+            }
+        }
+    }
+
+    /**
+     * Signal the end of the output (the last line is passed to the listener even if it doesn't end with a newline).
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (line != null && line.size() > 0) {
+            notifyLine();
+        }
+        if (spillOut != null) {
+            spillOut.close();
+        }
+    }
+
+    /**
+     * Check if the output was spilled to a temporary file (which must then be deleted using {@link #discard()}).
+     */
+    public synchronized boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    /**
+     * Delete the spill file, if any. The output is no longer available afterwards.
+     */
+    public synchronized void discard() {
+        if (spillFile != null) {
+            try {
+                spillOut.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close spill file", e);
+            }
+            SpooledData.delete(spillFile);
+            spillFile = null;
+            spillOut = null;
+        }
+        head = new byte[0];
+        headLen = 0;
+        tail = null;
+    }
+
+    public interface LineListener {
+        void onLine(String line);
+    }
+}
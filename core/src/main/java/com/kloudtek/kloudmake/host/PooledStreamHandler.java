@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import org.apache.commons.exec.ExecuteStreamHandler;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stream handler which copies a command's streams using a shared thread pool, rather than starting new threads for
+ * every command like {@link org.apache.commons.exec.PumpStreamHandler}. Executors which can write the command's output
+ * directly (like {@link SshExecutor}) can use {@link #getOut()} and {@link #getErr()} to avoid pumping altogether.
+ * <p>Pumps block on I/O, so the pool can't make them wait for a thread (a command blocked writing to stderr would
+ * never let its stdout pump complete): once all pooled threads are busy, additional pumps get a thread of their own.</p>
+ */
+public class PooledStreamHandler implements ExecuteStreamHandler {
+    private static final Logger logger = LoggerFactory.getLogger(PooledStreamHandler.class);
+    private static final int MAX_POOLED_THREADS = 64;
+    private static final ThreadPoolExecutor pool;
+    private final OutputStream out;
+    private final OutputStream err;
+    private final InputStream input;
+    private final ArrayList<Future<?>> pumps = new ArrayList<>(3);
+    private InputStream processOut;
+    private InputStream processErr;
+    private OutputStream processIn;
+    private IOException caught;
+
+    static {
+        final AtomicInteger count = new AtomicInteger();
+        pool = new ThreadPoolExecutor(0, MAX_POOLED_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(@NotNull Runnable r) {
+                Thread thread = new Thread(r, "kloudmake-io-pump-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                Thread thread = new Thread(r, "kloudmake-io-pump-overflow");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        });
+    }
+
+    public PooledStreamHandler() {
+        this(System.out, System.err, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param out   Stream the command's standard output is written to.
+     * @param err   Stream the command's standard error is written to.
+     * @param input Data for the command's standard input (which is closed immediately if null).
+     */
+    public PooledStreamHandler(OutputStream out, OutputStream err, @Nullable InputStream input) {
+        this.out = out;
+        this.err = err;
+        this.input = input;
+    }
+
+    public OutputStream getOut() {
+        return out;
+    }
+
+    public OutputStream getErr() {
+        return err;
+    }
+
+    @Override
+    public void setProcessInputStream(OutputStream os) throws IOException {
+        if (input != null) {
+            processIn = os;
+        } else {
+            os.close();
+        }
+    }
+
+    @Override
+    public void setProcessErrorStream(InputStream is) {
+        processErr = is;
+    }
+
+    @Override
+    public void setProcessOutputStream(InputStream is) {
+        processOut = is;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (processOut != null) {
+            pumps.add(pump(processOut, out, false));
+        }
+        if (processErr != null) {
+            pumps.add(pump(processErr, err, false));
+        }
+        if (processIn != null) {
+            pumps.add(pump(input, processIn, true));
+        }
+    }
+
+    private Future<?> pump(final InputStream is, final OutputStream os, final boolean closeOutput) {
+        FutureTask<Object> task = new FutureTask<>(new Callable<Object>() {
+            @Override
+            public Object call() throws IOException {
+                try {
+                    byte[] buffer = new byte[8192];
+                    for (int len = is.read(buffer); len != -1; len = is.read(buffer)) {
+                        os.write(buffer, 0, len);
+                    }
+                } catch (IOException e) {
+                    setCaught(e);
+                } finally {
+                    if (closeOutput) {
+                        try {
+                            os.close();
+                        } catch (IOException e) {
+                            logger.debug("Failed to close process input", e);
+                        }
+                    }
+                }
+                return null;
+            }
+        });
+        pool.execute(task);
+        return task;
+    }
+
+    private synchronized void setCaught(IOException e) {
+        if (caught == null) {
+            caught = e;
+        }
+    }
+
+    /**
+     * Wait for the command's output and error streams to be fully copied.
+     */
+    @Override
+    public void stop() throws IOException {
+        ArrayList<Future<?>> started;
+        synchronized (this) {
+            started = new ArrayList<>(pumps);
+            pumps.clear();
+        }
+        try {
+            for (Future<?> pump : started) {
+                pump.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for command output");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        out.flush();
+        err.flush();
+        synchronized (this) {
+            if (caught != null) {
+                logger.debug("Error while copying command streams: " + caught.getMessage());
+            }
+        }
+    }
+}
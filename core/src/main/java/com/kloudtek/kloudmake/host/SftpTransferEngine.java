@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
+import com.kloudtek.kloudmake.exception.KMRuntimeException;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Transfers large files over several SFTP channels at once. Each channel already keeps several requests in flight (see
+ * {@link SshTransportProfile}), but a single channel is still bound by its window and round trip time, so files are
+ * split into chunks which are transferred in parallel over up to {@link #getMaxChannels()} channels.
+ * <p>Uploaded chunks are written to separate part files, which must then be concatenated on the server. Transfers are
+ * retried when a channel fails, resuming from where they stopped: upload parts are resumed (only their missing tail is
+ * sent, which also allows resuming parts left by a previous run), and downloads continue from the last byte received.
+ * </p>
+ */
+public class SftpTransferEngine {
+    private static final Logger logger = LoggerFactory.getLogger(SftpTransferEngine.class);
+    public static final int DEFAULT_MAX_CHANNELS = 4;
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final ExecutorService workers = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NotNull Runnable r) {
+            Thread thread = new Thread(r, "kloudmake-sftp-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final ChannelSource channelSource;
+    private final int maxChannels;
+    private final int chunkSize;
+
+    /**
+     * Constructor.
+     *
+     * @param channelSource Source of the channels used for transfers.
+     * @param maxChannels   Maximum number of channels used by a transfer.
+     * @param chunkSize     Size of the chunks files are split in.
+     */
+    public SftpTransferEngine(@NotNull ChannelSource channelSource, int maxChannels, int chunkSize) {
+        if (maxChannels < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException("maxChannels and chunkSize must be at least 1");
+        }
+        this.channelSource = channelSource;
+        this.maxChannels = maxChannels;
+        this.chunkSize = chunkSize;
+    }
+
+    public int getMaxChannels() {
+        return maxChannels;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Upload data as part files, one per chunk.
+     *
+     * @param data   Data.
+     * @param prefix Path prefix of the parts (which are named prefix.partN).
+     * @param resume true if parts which already exist on the server should be resumed (they must then have been
+     *               written from the same data).
+     * @return Paths of the parts, in order.
+     * @throws KMRuntimeException If the upload failed.
+     */
+    @NotNull
+    public List<String> upload(@NotNull final SpooledData data, String prefix, final boolean resume) throws KMRuntimeException {
+        final long size = data.getSize();
+        int count = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+        final ArrayList<String> parts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            parts.add(prefix + ".part" + i);
+        }
+        logger.debug("Uploading {} bytes as {} parts to {}", size, count, prefix);
+        run(count, new ChunkTransfer() {
+            @Override
+            public void transfer(ChannelSftp channel, int chunk, boolean retry) throws SftpException, IOException {
+                long offset = (long) chunk * chunkSize;
+                long length = Math.min(chunkSize, size - offset);
+                if (resume || retry) {
+                    try (InputStream is = data.open(offset, length)) {
+                        channel.put(is, parts.get(chunk), ChannelSftp.RESUME);
+                        return;
+                    } catch (SftpException e) {
+                        if (!channel.isConnected()) {
+                            throw e;
+                        }
+                        // the existing part can't be resumed (ie. it's larger than it should be), send it again
+                        logger.debug("Unable to resume {}, uploading it again: {}", parts.get(chunk), e.getMessage());
+                    }
+                }
+                try (InputStream is = data.open(offset, length)) {
+                    channel.put(is, parts.get(chunk), ChannelSftp.OVERWRITE);
+                }
+            }
+        });
+        return parts;
+    }
+
+    /**
+     * Download part of a file.
+     *
+     * @param path   File path.
+     * @param offset Offset in the file from which to download.
+     * @param dest   Buffer the data is written to.
+     * @param pos    Position in the buffer where the data is written.
+     * @param length Number of bytes to download.
+     * @throws KMRuntimeException If the download failed, or the file is shorter than expected.
+     */
+    public void download(final String path, final long offset, final byte[] dest, final int pos, final int length) throws KMRuntimeException {
+        final int count = Math.max(1, (length + chunkSize - 1) / chunkSize);
+        final int[] received = new int[count];
+        logger.debug("Downloading {} bytes of {} in {} chunks", length, path, count);
+        run(count, new ChunkTransfer() {
+            @Override
+            public void transfer(ChannelSftp channel, int chunk, boolean retry) throws SftpException, IOException {
+                int start = chunk * chunkSize;
+                int chunkLength = Math.min(chunkSize, length - start);
+                // on retries, only the bytes which weren't received yet are downloaded
+                try (InputStream is = channel.get(path, null, offset + start + received[chunk])) {
+                    while (received[chunk] < chunkLength) {
+                        int read = is.read(dest, pos + start + received[chunk], chunkLength - received[chunk]);
+                        if (read == -1) {
+                            throw new EOFException(path + " is shorter than expected");
+                        }
+                        received[chunk] += read;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Transfer chunks using up to {@link #maxChannels} channels, each used by a worker which transfers chunks until
+     * there are none left. The calling thread is one of the workers.
+     */
+    private void run(final int chunks, final ChunkTransfer transfer) throws KMRuntimeException {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                ChannelSftp channel = null;
+                try {
+                    for (int chunk = next.getAndIncrement(); chunk < chunks && failure.get() == null; chunk = next.getAndIncrement()) {
+                        for (int attempt = 1; ; attempt++) {
+                            if (channel == null) {
+                                channel = channelSource.open();
+                            }
+                            try {
+                                transfer.transfer(channel, chunk, attempt > 1);
+                                break;
+                            } catch (SftpException | IOException e) {
+                                // only failures of the channel itself are retried, on a new channel
+                                if (channel.isConnected() || attempt >= MAX_ATTEMPTS) {
+                                    throw e;
+                                }
+                                logger.debug("SFTP channel failed while transferring chunk " + chunk + ", retrying: " + e.getMessage());
+                                channelSource.release(channel);
+                                channel = null;
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    if (channel != null) {
+                        channelSource.release(channel);
+                    }
+                }
+            }
+        };
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        for (int i = 1; i < Math.min(maxChannels, chunks); i++) {
+            futures.add(workers.submit(worker));
+        }
+        worker.run();
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, e);
+            } catch (ExecutionException e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+        Exception e = failure.get();
+        if (e instanceof KMRuntimeException) {
+            throw (KMRuntimeException) e;
+        } else if (e != null) {
+            throw new KMRuntimeException("SFTP transfer failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Provides the channels used by transfers.
+     */
+    public interface ChannelSource {
+        /**
+         * Open and connect a channel.
+         */
+        ChannelSftp open() throws KMRuntimeException;
+
+        /**
+         * Release a channel once a worker is done with it (or it failed).
+         */
+        void release(ChannelSftp channel);
+    }
+
+    private interface ChunkTransfer {
+        void transfer(ChannelSftp channel, int chunk, boolean retry) throws SftpException, IOException;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.kloudtek.util.io.IOUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Data read from a stream so that it can be sent more than once, and its SHA-1 is known before it's sent. Small data
+ * is kept in memory, larger data is spooled to a temporary file which is deleted on {@link #close()}.
+ */
+class SpooledData implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SpooledData.class);
+    private final byte[] data;
+    private final File file;
+    private final long size;
+    private final byte[] sha1;
+
+    private SpooledData(@Nullable byte[] data, @Nullable File file, long size, byte[] sha1) {
+        this.data = data;
+        this.file = file;
+        this.size = size;
+        this.sha1 = sha1;
+    }
+
+    /**
+     * Read a stream (which is closed).
+     *
+     * @param stream         Stream.
+     * @param spoolThreshold Size from which the data is spooled to a file.
+     * @return Data.
+     * @throws IOException If reading or spooling the data failed.
+     */
+    @NotNull
+    public static SpooledData read(InputStream stream, int spoolThreshold) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (DigestInputStream is = new DigestInputStream(stream, digest)) {
+            byte[] head = new byte[spoolThreshold];
+            int len = 0;
+            while (len < head.length) {
+                int read = is.read(head, len, head.length - len);
+                if (read == -1) {
+                    byte[] data = new byte[len];
+                    System.arraycopy(head, 0, data, 0, len);
+                    return new SpooledData(data, null, len, digest.digest());
+                }
+                len += read;
+            }
+            File file = File.createTempFile("kmspool", ".tmp");
+            try (FileOutputStream os = new FileOutputStream(file)) {
+                os.write(head);
+                long size = len + IOUtils.copy(is, os);
+                return new SpooledData(null, file, size, digest.digest());
+            } catch (IOException | RuntimeException e) {
+                delete(file);
+                throw e;
+            }
+        }
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public byte[] getSha1() {
+        return sha1;
+    }
+
+    @NotNull
+    public InputStream open() throws IOException {
+        return data != null ? new ByteArrayInputStream(data) : new BufferedInputStream(new FileInputStream(file));
+    }
+
+    /**
+     * Open part of the data.
+     *
+     * @param offset Offset of the part.
+     * @param length Length of the part.
+     * @return Stream of the part.
+     * @throws IOException If the spooled data couldn't be read.
+     */
+    @NotNull
+    public InputStream open(long offset, long length) throws IOException {
+        if (data != null) {
+            return new ByteArrayInputStream(data, (int) offset, (int) length);
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        channel.position(offset);
+        return new BoundedInputStream(new BufferedInputStream(Channels.newInputStream(channel)), length);
+    }
+
+    /**
+     * Get the data as a buffer (spooled data is memory mapped).
+     */
+    @NotNull
+    public ByteBuffer getBuffer() throws IOException {
+        if (data != null) {
+            return ByteBuffer.wrap(data);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (file != null) {
+            delete(file);
+        }
+    }
+
+    static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            logger.warn("Failed to delete temporary file " + file.getPath());
+        }
+    }
+
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        private BoundedInputStream(InputStream in, long length) {
+            super(in);
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
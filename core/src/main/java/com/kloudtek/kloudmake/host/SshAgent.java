@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+import com.kloudtek.util.io.IOUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client for the helper process used by {@link SshHost}'s agent mode. The helper is a small bash script which runs
+ * file operations and commands on the target server, exchanging a single request and response for each operation over
+ * one long-lived channel, instead of opening a channel per command.
+ * Requests are serialized, and once a transport error has occurred the agent is flagged as broken and must not be used
+ * anymore.
+ */
+public class SshAgent implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SshAgent.class);
+    static final String SCRIPT = "sshagent.sh";
+    private static final String HELLO = "KMAGENT 1";
+    private final ReentrantLock lock = new ReentrantLock();
+    private final InputStream in;
+    private final OutputStream out;
+    private final Closeable closeable;
+    private volatile boolean broken;
+
+    SshAgent(InputStream in, OutputStream out, @Nullable Closeable closeable) throws IOException {
+        this.in = new BufferedInputStream(in);
+        this.out = new BufferedOutputStream(out);
+        this.closeable = closeable;
+        String hello = readLine();
+        if (!HELLO.equals(hello)) {
+            throw new IOException("Invalid agent handshake: " + hello);
+        }
+    }
+
+    /**
+     * Upload the helper script through SFTP and start it on a channel taken from the channel pool.
+     *
+     * @param sftpChannel SFTP channel used to upload the script.
+     * @param channelPool Channel pool.
+     * @return Agent.
+     * @throws IOException If the agent failed to start.
+     */
+    public static SshAgent start(ChannelSftp sftpChannel, final SshChannelPool channelPool) throws IOException {
+        String path = "/tmp/.kloudmake-agent-" + UUID.randomUUID().toString() + ".sh";
+        try (InputStream script = getScript()) {
+            synchronized (sftpChannel) {
+                sftpChannel.put(script, path, ChannelSftp.OVERWRITE);
+            }
+        } catch (SftpException e) {
+            throw new IOException("Unable to upload agent: " + e.getMessage(), e);
+        }
+        final ChannelExec channel;
+        try {
+            channel = channelPool.acquire();
+        } catch (JSchException e) {
+            throw new IOException("Unable to open agent channel: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        try {
+            channel.setCommand("bash " + path);
+            InputStream agentOut = channel.getInputStream();
+            OutputStream agentIn = channel.getOutputStream();
+            channel.connect();
+            return new SshAgent(agentOut, agentIn, new Closeable() {
+                @Override
+                public void close() {
+                    channelPool.release(channel);
+                }
+            });
+        } catch (JSchException | IOException | RuntimeException e) {
+            channelPool.release(channel);
+            throw e instanceof IOException ? (IOException) e : new IOException("Unable to start agent: " + e.getMessage(), e);
+        }
+    }
+
+    static InputStream getScript() throws IOException {
+        InputStream script = SshAgent.class.getResourceAsStream(SCRIPT);
+        if (script == null) {
+            throw new FileNotFoundException("Agent script missing: " + SCRIPT);
+        }
+        return script;
+    }
+
+    public boolean isBroken() {
+        return broken;
+    }
+
+    /**
+     * Send a request and wait for its response.
+     *
+     * @param op   Operation.
+     * @param args Operation arguments.
+     * @return Response.
+     * @throws IOException If a transport error occurred.
+     */
+    @NotNull
+    public Response request(String op, String... args) throws IOException {
+        lock.lock();
+        try {
+            return send(op, args, null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Send a request with data appended, and wait for its response.
+     *
+     * @param op   Operation.
+     * @param data Data.
+     * @param args Operation arguments (the data length will be added after those).
+     * @return Response.
+     * @throws IOException If a transport error occurred.
+     */
+    @NotNull
+    public Response request(String op, byte[] data, String... args) throws IOException {
+        lock.lock();
+        try {
+            return send(op, args, data);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Same as {@link #request(String, String...)}, except that null is returned without doing anything if another
+     * request is in progress.
+     *
+     * @param op   Operation.
+     * @param args Operation arguments.
+     * @return Response or null if the agent is busy.
+     * @throws IOException If a transport error occurred.
+     */
+    @Nullable
+    public Response tryRequest(String op, String... args) throws IOException {
+        if (!lock.tryLock()) {
+            return null;
+        }
+        try {
+            return send(op, args, null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Response send(String op, String[] args, @Nullable byte[] data) throws IOException {
+        if (broken) {
+            throw new IOException("Agent is not available");
+        }
+        try {
+            StringBuilder line = new StringBuilder(op);
+            for (String arg : args) {
+                line.append(' ').append(Base64.getEncoder().encodeToString(arg.getBytes(StandardCharsets.UTF_8)));
+            }
+            if (data != null) {
+                line.append(' ').append(data.length);
+            }
+            out.write(line.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+            if (data != null) {
+                out.write(data);
+            }
+            out.flush();
+            String header = readLine();
+            String[] fields = header != null ? header.split(" ") : new String[0];
+            if (fields.length < 2 || fields.length > 3 || (fields.length == 3 && !fields[2].equals("file"))) {
+                throw new IOException("Invalid agent response: " + header);
+            }
+            int status;
+            byte[] payload;
+            try {
+                status = Integer.parseInt(fields[0]);
+                payload = new byte[Integer.parseInt(fields[1])];
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid agent response: " + header);
+            }
+            new DataInputStream(in).readFully(payload);
+            return new Response(status, payload, fields.length == 3);
+        } catch (IOException | RuntimeException e) {
+            broken = true;
+            throw e;
+        }
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b == -1) {
+                if (buf.size() == 0) {
+                    return null;
+                }
+                break;
+            }
+            buf.write(b);
+        }
+        return new String(buf.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        if (!broken && lock.tryLock()) {
+            try {
+                out.write("quit\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException e) {
+                logger.debug("Failed to stop agent: " + e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+        broken = true;
+        if (closeable != null) {
+            IOUtils.close(closeable);
+        } else {
+            IOUtils.close(in, out);
+        }
+    }
+
+    public static class Response {
+        private final int status;
+        private final byte[] data;
+        private final boolean file;
+
+        public Response(int status, byte[] data) {
+            this(status, data, false);
+        }
+
+        public Response(int status, byte[] data, boolean file) {
+            this.status = status;
+            this.data = data;
+            this.file = file;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public String getText() {
+            return new String(data, StandardCharsets.UTF_8);
+        }
+
+        public boolean isSuccess() {
+            return status == 0;
+        }
+
+        /**
+         * Check if the payload is the path of a file holding the output of a command, which was too large to be
+         * returned in the response.
+         */
+        public boolean isFile() {
+            return file;
+        }
+    }
+}
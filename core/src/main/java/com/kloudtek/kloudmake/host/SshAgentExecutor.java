@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.DefaultExecuteResultHandler;
+import org.apache.commons.exec.ExecuteException;
+import org.apache.commons.exec.ExecuteResultHandler;
+import org.apache.commons.exec.ExecuteStreamHandler;
+import org.apache.commons.exec.ExecuteWatchdog;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * {@link SshExecutor} which runs commands through the {@link SshAgent}, falling back to opening an exec channel when
+ * the agent is busy running another request. Output is only passed to the stream handler once the command completed.
+ * <p>The agent applies the watchdog's timeout itself. Output larger than {@link #MAX_OUTPUT} isn't returned in the
+ * agent's response, but left in a file on the server which is then read over an exec channel, so that the stream
+ * handler still gets all of it.</p>
+ */
+public class SshAgentExecutor extends SshExecutor {
+    public static final int MAX_OUTPUT = OutputCapture.DEFAULT_MEMORY_LIMIT;
+    private final SshAgent agent;
+
+    public SshAgentExecutor(SshChannelPool channelPool, SshAgent agent) {
+        super(channelPool);
+        this.agent = agent;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void execute(CommandLine commandLine, @Nullable Map env, ExecuteResultHandler executeResultHandler) throws IOException {
+        if (agent.isBroken()) {
+            super.execute(commandLine, env, executeResultHandler);
+            return;
+        }
+        String cmd = toString(commandLine, env);
+        ExecuteWatchdog watchdog = getWatchdog();
+        long timeout = watchdog instanceof TimerWatchdog ? ((TimerWatchdog) watchdog).getTimeout() : 0;
+        if (timeout > 0) {
+            // the agent kills the command itself (rounded up to the second), this only flags the timeout
+            ((TimerWatchdog) watchdog).start(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+        }
+        SshAgent.Response response;
+        try {
+            response = agent.tryRequest("exec", cmd, Long.toString(timeout > 0 ? (timeout + 999) / 1000 : 0),
+                    Integer.toString(MAX_OUTPUT));
+        } catch (IOException e) {
+            throw new ExecuteException("Agent failed to execute command: " + e.getMessage(), -1, e);
+        } finally {
+            if (timeout > 0) {
+                watchdog.stop();
+            }
+        }
+        if (response == null) {
+            super.execute(commandLine, env, executeResultHandler);
+            return;
+        }
+        if (response.isFile()) {
+            readOutputFile(response.getText());
+            executeResultHandler.onProcessComplete(response.getStatus());
+            return;
+        }
+        ExecuteStreamHandler streamHandler = getStreamHandler();
+        streamHandler.setProcessOutputStream(new ByteArrayInputStream(response.getData()));
+        streamHandler.setProcessErrorStream(new ByteArrayInputStream(new byte[0]));
+        streamHandler.start();
+        streamHandler.stop();
+        executeResultHandler.onProcessComplete(response.getStatus());
+    }
+
+    /**
+     * Pass the output of a command which was left in a file by the agent to the stream handler, and delete the file.
+     */
+    private void readOutputFile(String file) throws IOException {
+        // the command already completed, so its timeout doesn't apply to reading its output
+        ExecuteWatchdog watchdog = getWatchdog();
+        setWatchdog(null);
+        DefaultExecuteResultHandler resultHandler = new DefaultExecuteResultHandler();
+        try {
+            super.execute(CommandLine.parse("cat " + file + " && rm -f " + file), null, resultHandler);
+        } finally {
+            setWatchdog(watchdog);
+        }
+        if (resultHandler.getExitValue() != 0) {
+            throw new ExecuteException("Unable to read command output from " + file, resultHandler.getExitValue());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out exec channels multiplexed over a single SSH session, allowing several commands to run concurrently on the
+ * same connection. The number of channels open at any time is capped so as to stay within the server's MaxSessions
+ * limit, and the cap is lowered automatically if the server refuses to open a channel.
+ * Exec channels can only run a single command, so a pool slot is taken by {@link #acquire()} and freed by
+ * {@link #release(Channel)} (which also disconnects the channel).
+ */
+public class SshChannelPool {
+    private static final Logger logger = LoggerFactory.getLogger(SshChannelPool.class);
+    private final Session session;
+    private int maxChannels;
+    private int openChannels;
+
+    public SshChannelPool(Session session, int maxChannels) {
+        if (maxChannels < 1) {
+            throw new IllegalArgumentException("maxChannels must be at least 1");
+        }
+        this.session = session;
+        this.maxChannels = maxChannels;
+    }
+
+    /**
+     * Open an exec channel, waiting for one of the other channels to be released if the cap has been reached.
+     * The channel is not connected, it must be passed to {@link #release(Channel)} once the command completed (or
+     * to {@link #refused(Channel)} if it fails to connect).
+     *
+     * @return Exec channel.
+     * @throws JSchException        If the channel couldn't be opened.
+     * @throws InterruptedException If interrupted while waiting for a channel to be released.
+     */
+    public ChannelExec acquire() throws JSchException, InterruptedException {
+        return (ChannelExec) acquire("exec");
+    }
+
+    /**
+     * Open a channel of another type (ie. sftp), which takes a pool slot like exec channels do.
+     *
+     * @param type Channel type.
+     * @return Channel (not connected).
+     * @throws JSchException        If the channel couldn't be opened.
+     * @throws InterruptedException If interrupted while waiting for a channel to be released.
+     */
+    public Channel acquire(String type) throws JSchException, InterruptedException {
+        reserve();
+        try {
+            return session.openChannel(type);
+        } catch (JSchException | RuntimeException e) {
+            cancel();
+            throw e;
+        }
+    }
+
+    /**
+     * Must be called if a channel obtained through {@link #acquire()} failed to connect. If other channels are in use
+     * at that point the failure is assumed to be caused by the server's MaxSessions limit, so the cap is lowered to
+     * the number of channels currently in use.
+     *
+     * @param channel Channel which failed to connect.
+     * @return true if the caller should retry with a new channel (which will wait for another channel to be
+     * released), false otherwise.
+     */
+    public boolean refused(Channel channel) {
+        channel.disconnect();
+        synchronized (this) {
+            openChannels--;
+            notifyAll();
+            if (openChannels < 1 || !session.isConnected()) {
+                return false;
+            }
+            if (openChannels < maxChannels) {
+                logger.debug("Server refused to open channel, lowering maximum concurrent channels to {}", openChannels);
+                maxChannels = openChannels;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Disconnect a channel obtained through {@link #acquire()} and make its slot available to other callers.
+     *
+     * @param channel Channel.
+     */
+    public void release(Channel channel) {
+        channel.disconnect();
+        cancel();
+    }
+
+    public synchronized int getMaxChannels() {
+        return maxChannels;
+    }
+
+    public synchronized int getOpenChannels() {
+        return openChannels;
+    }
+
+    private synchronized void reserve() throws InterruptedException {
+        while (openChannels >= maxChannels) {
+            wait();
+        }
+        openChannels++;
+    }
+
+    private synchronized void cancel() {
+        openChannels--;
+        notifyAll();
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.kloudtek.kryptotek.DigestUtils;
+import org.apache.commons.codec.binary.Hex;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of authenticated SSH sessions shared by all {@link SshHost} instances, so that hosts connecting to the same
+ * machine with the same credentials (for example repeated host overrides) reuse a warm session instead of performing a
+ * new key exchange. Sessions are keyed on user@address:port, the fingerprint of the private key and the transport
+ * profile, are reference counted, kept alive while in use, and disconnected once they have been idle for longer than
+ * the idle timeout.
+ */
+public class SshConnectionPool {
+    private static final Logger logger = LoggerFactory.getLogger(SshConnectionPool.class);
+    public static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(2);
+    public static final int DEFAULT_KEEPALIVE_INTERVAL = (int) TimeUnit.SECONDS.toMillis(30);
+    private static final SshConnectionPool defaultPool = new SshConnectionPool();
+    private final HashMap<String, Connection> connections = new HashMap<>();
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private int keepAliveInterval = DEFAULT_KEEPALIVE_INTERVAL;
+    private ScheduledExecutorService evictionScheduler;
+
+    public static SshConnectionPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Get a connection to the specified server, either reusing an existing session or connecting a new one.
+     * The connection must be returned through {@link #release(Connection)} once no longer needed.
+     *
+     * @param user        Login user.
+     * @param address     Server address.
+     * @param port        Server port.
+     * @param keyName     Key name.
+     * @param privKey     Private key.
+     * @param pubKey      Public key.
+     * @param passphrase  Private key passphrase.
+     * @param maxSessions Maximum number of channels the server allows per session (only used if a new session is
+     *                    created).
+     * @param profile     Transport profile.
+     * @return Connection.
+     * @throws JSchException If connecting to the server failed.
+     */
+    @NotNull
+    public Connection acquire(String user, String address, int port, String keyName, byte[] privKey, @Nullable byte[] pubKey,
+                              @Nullable byte[] passphrase, int maxSessions, @NotNull SshTransportProfile profile) throws JSchException {
+        String key = user + "@" + address + ":" + port + "/" + fingerprint(privKey) + "/" + profile;
+        synchronized (this) {
+            Connection connection = connections.get(key);
+            if (connection != null) {
+                if (connection.session.isConnected()) {
+                    connection.refs++;
+                    logger.debug("Reusing SSH session {}", key);
+                    return connection;
+                }
+                connections.remove(key);
+            }
+        }
+        // connect outside of the lock so slow servers don't hold up connections to other machines
+        JSch jsch = new JSch();
+        jsch.addIdentity(keyName, privKey, pubKey, passphrase);
+        Session session = jsch.getSession(user, address, port);
+        session.setConfig("StrictHostKeyChecking", "no");
+        profile.configure(session);
+        session.setServerAliveInterval(keepAliveInterval);
+        // idle pooled sessions must not keep the JVM alive
+        session.setDaemonThread(true);
+        session.connect();
+        Connection connection = new Connection(key, session, new SshChannelPool(session, Math.max(1, maxSessions)));
+        synchronized (this) {
+            Connection existing = connections.get(key);
+            if (existing != null && existing.session.isConnected()) {
+                // another thread connected concurrently
+                existing.refs++;
+                session.disconnect();
+                return existing;
+            }
+            connections.put(key, connection);
+            logger.debug("Opened SSH session {}", key);
+            return connection;
+        }
+    }
+
+    /**
+     * Release a connection obtained through
+     * {@link #acquire(String, String, int, String, byte[], byte[], byte[], int, SshTransportProfile)}.
+     * The session is kept open until it has been idle for longer than the idle timeout.
+     *
+     * @param connection Connection.
+     */
+    public void release(@NotNull Connection connection) {
+        synchronized (this) {
+            if (--connection.refs > 0) {
+                return;
+            }
+            connection.idleSince = System.currentTimeMillis();
+            if (connections.get(connection.key) != connection || idleTimeout <= 0) {
+                connections.remove(connection.key, connection);
+            } else {
+                scheduleEviction();
+                return;
+            }
+        }
+        connection.session.disconnect();
+    }
+
+    /**
+     * Disconnect all sessions which aren't in use.
+     */
+    public void evictIdle() {
+        evict(0);
+    }
+
+    private void evict(long maxIdle) {
+        List<Connection> evicted = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Iterator<Connection> iterator = connections.values().iterator();
+            while (iterator.hasNext()) {
+                Connection connection = iterator.next();
+                if (connection.refs == 0 && (now - connection.idleSince >= maxIdle || !connection.session.isConnected())) {
+                    iterator.remove();
+                    evicted.add(connection);
+                }
+            }
+        }
+        for (Connection connection : evicted) {
+            logger.debug("Closing idle SSH session {}", connection.key);
+            connection.session.disconnect();
+        }
+    }
+
+    private synchronized void scheduleEviction() {
+        if (evictionScheduler == null) {
+            evictionScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NotNull Runnable r) {
+                    Thread thread = new Thread(r, "ssh-connection-pool-evictor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        evictionScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                evict(idleTimeout);
+            }
+        }, idleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    private static String fingerprint(@Nullable byte[] privKey) {
+        return privKey != null ? new String(Hex.encodeHex(DigestUtils.sha1(privKey))) : "nokey";
+    }
+
+    public synchronized long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Set how long an unused session is kept open.
+     *
+     * @param idleTimeout Idle timeout in milliseconds, or 0 to disconnect sessions as soon as they're released.
+     */
+    public synchronized void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public synchronized int getKeepAliveInterval() {
+        return keepAliveInterval;
+    }
+
+    /**
+     * Set the interval at which keep-alive messages are sent to the server on new sessions.
+     *
+     * @param keepAliveInterval Interval in milliseconds.
+     */
+    public synchronized void setKeepAliveInterval(int keepAliveInterval) {
+        this.keepAliveInterval = keepAliveInterval;
+    }
+
+    /**
+     * Session shared through the pool.
+     */
+    public static class Connection {
+        private final String key;
+        private final Session session;
+        private final SshChannelPool channelPool;
+        private int refs = 1;
+        private long idleSince;
+        private ChannelSftp sftpChannel;
+
+        private Connection(String key, Session session, SshChannelPool channelPool) {
+            this.key = key;
+            this.session = session;
+            this.channelPool = channelPool;
+        }
+
+        public Session getSession() {
+            return session;
+        }
+
+        public SshChannelPool getChannelPool() {
+            return channelPool;
+        }
+
+        /**
+         * Sftp channel shared by all hosts using this connection (callers must synchronize on the connection).
+         */
+        ChannelSftp getSftpChannel() {
+            return sftpChannel;
+        }
+
+        void setSftpChannel(ChannelSftp sftpChannel) {
+            this.sftpChannel = sftpChannel;
+        }
+    }
+}
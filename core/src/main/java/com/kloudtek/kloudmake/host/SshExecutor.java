@@ -7,15 +7,12 @@ package com.kloudtek.kloudmake.host;
 import com.jcraft.jsch.ChannelExec;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
-import com.kloudtek.util.ThreadUtils;
 import org.apache.commons.exec.*;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.IOException;
-import java.io.PipedInputStream;
+import java.io.*;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 
@@ -24,7 +21,7 @@ import java.util.concurrent.CountDownLatch;
  */
 public class SshExecutor implements Executor {
     private static final Logger logger = LoggerFactory.getLogger(SshExecutor.class);
-    private Session session;
+    private SshChannelPool channelPool;
     private ExecuteStreamHandler streamHandler;
     private ExecuteWatchdog watchdog;
     private int[] exitValues;
@@ -32,9 +29,13 @@ public class SshExecutor implements Executor {
     private ProcessDestroyer processDestroyer;
 
     public SshExecutor(Session session) {
-        this.session = session;
+        this(new SshChannelPool(session, Integer.MAX_VALUE));
+    }
+
+    public SshExecutor(SshChannelPool channelPool) {
+        this.channelPool = channelPool;
         this.exitValues = new int[0];
-        streamHandler = new PumpStreamHandler();
+        streamHandler = new PooledStreamHandler();
     }
 
     @Override
@@ -57,39 +58,78 @@ public class SshExecutor implements Executor {
     @SuppressWarnings("unchecked")
     @Override
     public void execute(CommandLine commandLine, @Nullable Map env, ExecuteResultHandler executeResultHandler) throws IOException {
+        String cmd = toString(commandLine, env);
+        logger.debug("SSH Exec: " + cmd);
         try {
-            ChannelExec channel = (ChannelExec) session.openChannel("exec");
-            String cmd = toString(commandLine, env);
-            logger.debug("SSH Exec: " + cmd);
-            channel.setCommand(cmd);
-            channel.setInputStream(null);
-            CountDownLatch countDownLatch = new CountDownLatch(2);
-            final PipedInputStream stderrIn = new PipedInputStream();
-            PipedStream stderrOut = new PipedStream(stderrIn, countDownLatch);
-            final PipedInputStream stdoutIn = new PipedInputStream();
-            PipedStream stdoutOut = new PipedStream(stdoutIn, countDownLatch);
-            streamHandler.setProcessErrorStream(stderrIn);
-            channel.setErrStream(stderrOut);
-            streamHandler.setProcessOutputStream(stdoutIn);
-            channel.setOutputStream(stdoutOut);
-
-            streamHandler.start();
-
-            channel.connect();
+            ChannelExec channel;
+            CountDownLatch countDownLatch;
+            while (true) {
+                channel = channelPool.acquire();
+                channel.setCommand(cmd);
+                countDownLatch = new CountDownLatch(2);
+                if (streamHandler instanceof PooledStreamHandler) {
+                    // jsch writes the output directly, so there's no need for pipes and pump threads
+                    PooledStreamHandler pooledStreamHandler = (PooledStreamHandler) streamHandler;
+                    channel.setErrStream(new LatchedOutputStream(pooledStreamHandler.getErr(), countDownLatch));
+                    channel.setOutputStream(new LatchedOutputStream(pooledStreamHandler.getOut(), countDownLatch));
+                } else {
+                    final PipedInputStream stderrIn = new PipedInputStream();
+                    PipedStream stderrOut = new PipedStream(stderrIn, countDownLatch);
+                    final PipedInputStream stdoutIn = new PipedInputStream();
+                    PipedStream stdoutOut = new PipedStream(stdoutIn, countDownLatch);
+                    streamHandler.setProcessErrorStream(stderrIn);
+                    channel.setErrStream(stderrOut);
+                    streamHandler.setProcessOutputStream(stdoutIn);
+                    channel.setOutputStream(stdoutOut);
+                }
+
+                try {
+                    channel.connect();
+                } catch (JSchException e) {
+                    if (!channelPool.refused(channel)) {
+                        throw e;
+                    }
+                    continue;
+                }
+                // the stream handler closes the channel's input (which sends EOF) once it has written all the data it
+                // has for it, or immediately if there isn't any. jsch ignores EOF on channels that aren't connected yet.
+                streamHandler.setProcessInputStream(channel.getOutputStream());
+                streamHandler.start();
+                break;
+            }
 
+            final ChannelExec runningChannel = channel;
+            if (watchdog instanceof TimerWatchdog) {
+                // disconnecting closes the channel's streams, which releases the wait below
+                ((TimerWatchdog) watchdog).start(new Runnable() {
+                    @Override
+                    public void run() {
+                        runningChannel.disconnect();
+                    }
+                });
+            }
             try {
+                // stdout is closed on remote EOF, and stderr when jsch disconnects the channel after receiving CLOSE.
+                // jsch flags the channel as closed before closing its streams, and the server sends the exit-status
+                // before CLOSE, so the exit status is known as soon as the latch is released.
                 countDownLatch.await();
             } catch (InterruptedException e) {
-                //
-            }
-            while (!channel.isClosed()) {
-                ThreadUtils.sleep(200);
+                Thread.currentThread().interrupt();
+                throw new ExecuteException("Interrupted while waiting for command to complete", -1, e);
+            } finally {
+                if (watchdog instanceof TimerWatchdog) {
+                    watchdog.stop();
+                }
+                channelPool.release(channel);
             }
 
             streamHandler.stop();
             executeResultHandler.onProcessComplete(channel.getExitStatus());
         } catch (JSchException e) {
             throw new ExecuteException(e.getMessage(), -1, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecuteException("Interrupted while waiting for an SSH channel", -1, e);
         }
     }
 
@@ -192,7 +232,7 @@ public class SshExecutor implements Executor {
         return true;
     }
 
-    private String toString(CommandLine commandLine, Map<String, String> env) {
+    protected String toString(CommandLine commandLine, Map<String, String> env) {
         StringBuilder cmd = new StringBuilder();
         if (env != null && !env.isEmpty()) {
             cmd.append("env ");
@@ -203,4 +243,32 @@ public class SshExecutor implements Executor {
         cmd.append(commandLine.toString());
         return cmd.toString();
     }
+
+    /**
+     * Stream which counts down a latch when jsch closes it, without closing the underlying stream (which is shared
+     * by stdout and stderr).
+     */
+    private static class LatchedOutputStream extends FilterOutputStream {
+        private final CountDownLatch countDownLatch;
+        private boolean closed;
+
+        private LatchedOutputStream(OutputStream out, CountDownLatch countDownLatch) {
+            super(out);
+            this.countDownLatch = countDownLatch;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                out.flush();
+                countDownLatch.countDown();
+            }
+        }
+    }
 }
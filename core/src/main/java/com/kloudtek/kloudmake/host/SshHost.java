@@ -7,20 +7,20 @@ package com.kloudtek.kloudmake.host;
 import com.jcraft.jsch.*;
 import com.kloudtek.kloudmake.exception.KMRuntimeException;
 import com.kloudtek.kloudmake.resource.core.FilePermissions;
+import com.kloudtek.kryptotek.DigestUtils;
 import com.kloudtek.util.io.IOUtils;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.exec.Executor;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 import static com.kloudtek.kloudmake.host.Host.Logging.NO;
 
@@ -29,11 +29,53 @@ import static com.kloudtek.kloudmake.host.Host.Logging.NO;
  */
 public class SshHost extends AbstractHost {
     private static final Logger logger = LoggerFactory.getLogger(SshHost.class);
-    private JSch jsch;
+    /**
+     * Default value of OpenSSH's MaxSessions setting.
+     */
+    public static final int DEFAULT_MAX_SESSIONS = 10;
+    /**
+     * Files at least this large are sent as a delta against the existing file.
+     */
+    public static final int DEFAULT_DELTA_THRESHOLD = 64 * 1024;
+    /**
+     * Suggested location of the blob cache (which is disabled by default, see {@link #setBlobCacheDir(String)}).
+     */
+    public static final String DEFAULT_BLOB_CACHE_DIR = "/var/cache/kloudmake/blobs";
+    public static final long DEFAULT_BLOB_CACHE_MAX_SIZE = 512 * 1024 * 1024;
+    public static final int DEFAULT_BLOB_CACHE_MAX_AGE = 30;
+    private static final int SPOOL_THRESHOLD = 1024 * 1024;
+    private static final String FIND_PYTHON = "command -v python3 || command -v python";
+    /**
+     * Python interpreter. Commands are passed to bash within double quotes, so this is expanded by the login shell
+     * (which is also why shell variables can't be used).
+     */
+    private static final String PYTHON = "$(" + FIND_PYTHON + ")";
     private String address;
     private int port;
     private Session session;
     private ChannelSftp sftpChannel;
+    private SshChannelPool channelPool;
+    /**
+     * Set while running an asynchronous operation.
+     */
+    private final ThreadLocal<Boolean> asyncOperation = new ThreadLocal<>();
+    private SshConnectionPool connectionPool = SshConnectionPool.getDefault();
+    private SshConnectionPool.Connection connection;
+    private boolean agentMode;
+    private volatile SshAgent agent;
+    private String stagingDir;
+    private String deltaHelper;
+    private String blobCacheDir;
+    private long blobCacheMaxSize = DEFAULT_BLOB_CACHE_MAX_SIZE;
+    private int blobCacheMaxAge = DEFAULT_BLOB_CACHE_MAX_AGE;
+    private boolean blobCachePrepared;
+    private boolean deltaSupported = true;
+    private int deltaThreshold = DEFAULT_DELTA_THRESHOLD;
+    private int maxSessions = DEFAULT_MAX_SESSIONS;
+    private SshTransportProfile transportProfile = SshTransportProfile.DEFAULT;
+    private int sftpChannels = SftpTransferEngine.DEFAULT_MAX_CHANNELS;
+    private int sftpChunkSize = SftpTransferEngine.DEFAULT_CHUNK_SIZE;
+    private final HashSet<String> resumableUploads = new HashSet<>();
     private Boolean rootUser;
     private String keyName;
     private byte[] privKey;
@@ -64,33 +106,122 @@ public class SshHost extends AbstractHost {
 
     @Override
     public synchronized void start() throws KMRuntimeException {
-        super.start();
+        if (started) {
+            return;
+        }
         try {
-            jsch = new JSch();
-            jsch.addIdentity(keyName, privKey, pubKey, passphrase);
-            session = jsch.getSession(this.loginUser, this.address, this.port);
-            session.setConfig("StrictHostKeyChecking", "no");
-            //        session.setConfig("compression.s2c", "zlib@openssh.com,zlib,none");
-            //        session.setConfig("compression.c2s", "zlib@openssh.com,zlib,none");
-            session.connect();
-            sftpChannel = (ChannelSftp) session.openChannel("sftp");
-            sftpChannel.connect();
-            executor = new SshExecutor(session);
+            connection = connectionPool.acquire(loginUser, address, port, keyName, privKey, pubKey, passphrase, maxSessions, transportProfile);
+            session = connection.getSession();
+            channelPool = connection.getChannelPool();
+            sftpChannel = getSharedSftpChannel();
             rootUser = loginUser.equals("root");
+            if (agentMode) {
+                startAgent();
+            }
         } catch (JSchException e) {
+            releaseConnection();
             throw new KMRuntimeException(e.getMessage(), e);
+        } catch (KMRuntimeException e) {
+            releaseConnection();
+            throw e;
+        }
+        // the host's facts can only be gathered once connected
+        super.start();
+    }
+
+    /**
+     * Start the agent used to perform operations with a single message exchange. The agent runs as the login user, so
+     * it's only used when logged in as root (otherwise operations must go through sudo, which the agent doesn't do).
+     * If it can't be started, operations are performed using exec channels as usual.
+     */
+    private void startAgent() {
+        if (!isRootUser()) {
+            logger.debug("Not using agent on {} since login user isn't root", this);
+            return;
+        }
+        try {
+            agent = SshAgent.start(sftpChannel, channelPool);
+            logger.debug("Started agent on {}", this);
+        } catch (IOException e) {
+            logger.warn("Unable to start agent on " + this + ", falling back to exec channels: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Send a request to the agent.
+     *
+     * @return Response, or null if the agent isn't available, in which case the operation must be performed without it.
+     */
+    @Nullable
+    private SshAgent.Response agentRequest(String op, String... args) {
+        SshAgent agent = this.agent;
+        if (agent == null || agent.isBroken()) {
+            return null;
+        }
+        try {
+            SshAgent.Response response;
+            if (asyncOperation.get() != null) {
+                // asynchronous operations use separate channels rather than waiting for the agent
+                response = agent.tryRequest(op, args);
+                if (response == null) {
+                    return null;
+                }
+            } else {
+                response = agent.request(op, args);
+            }
+            roundTrips.incrementAndGet();
+            return response;
+        } catch (IOException e) {
+            logger.warn("Agent on " + this + " failed, falling back to exec channels: " + e.getMessage());
+            return null;
         }
     }
 
     @Override
     public synchronized void close() {
-        sftpChannel.disconnect();
-        session.disconnect();
+        if (started && (!tempDirs.isEmpty() || !tempFiles.isEmpty()) && (agent == null || agent.isBroken())) {
+            HostBatch batch = batch();
+            for (String tempDir : tempDirs) {
+                batch.deleteFile(tempDir, true);
+            }
+            for (String tempFile : tempFiles) {
+                batch.deleteFile(tempFile, false);
+            }
+            try {
+                batch.execute();
+                tempDirs.clear();
+                tempFiles.clear();
+            } catch (KMRuntimeException e) {
+                logger.warn("Failed to delete temporary files: " + e.getMessage());
+            }
+        }
+        // temporary files are deleted through the connection, so it must only be released afterwards
         super.close();
+        stagingDir = null;
+        deltaHelper = null;
+        if (agent != null) {
+            agent.close();
+            agent = null;
+        }
+        // the sftp channel is shared with the other hosts using the connection, and closes along with it
+        sftpChannel = null;
+        if (connection != null) {
+            connectionPool.release(connection);
+            connection = null;
+        } else if (session != null) {
+            session.disconnect();
+        }
     }
 
     @Override
     public void deleteFile(String path, boolean recursive) throws KMRuntimeException {
+        SshAgent.Response response = agentRequest("delete", path, recursive ? "r" : "f");
+        if (response != null) {
+            if (!response.isSuccess()) {
+                throw new KMRuntimeException("Unable to delete " + path + ": " + response.getText().trim());
+            }
+            return;
+        }
         try {
             if (recursive) {
                 exec("rm -rf " + path, 0, NO);
@@ -108,6 +239,18 @@ public class SshHost extends AbstractHost {
     @NotNull
     @Override
     public FileInfo getFileInfo(String path) throws KMRuntimeException {
+        SshAgent.Response response = agentRequest("stat", path);
+        if (response != null) {
+            String[] lines = response.getText().split("\n");
+            if (!response.isSuccess()) {
+                throw new KMRuntimeException("Failed to retrieve file info for " + path + ": " + lines[0]);
+            }
+            FileInfo fileInfo = new FileInfo(path, lines[0]);
+            if (fileInfo.getType() == FileInfo.Type.SYMLINK && lines.length > 1) {
+                fileInfo.setLinkTarget(lines[1]);
+            }
+            return fileInfo;
+        }
         try {
             FileInfo fileInfo = new FileInfo(path, exec(FileInfo.UNIX_STAT_CMD + path));
             if (fileInfo.getType() == FileInfo.Type.SYMLINK) {
@@ -119,8 +262,75 @@ public class SshHost extends AbstractHost {
         }
     }
 
+    @NotNull
+    @Override
+    public Map<String, FileInfo> getFileInfos(Collection<String> paths) throws KMRuntimeException {
+        List<String> list = new ArrayList<>(paths);
+        LinkedHashMap<String, FileInfo> infos = new LinkedHashMap<>();
+        for (String[] record : bulkFileOp(list, "[ -e \"$p\" ] && s=$(" + FileInfo.UNIX_STAT_CMD + "\"$p\") && printf '%d\\t%s\\n' $i \"$s\" && " +
+                "[ -L \"$p\" ] && printf '%d\\tL%s\\n' $i \"$(readlink \"$p\")\"")) {
+            String path = list.get(Integer.parseInt(record[0]));
+            if (record[1].startsWith("L")) {
+                FileInfo fileInfo = infos.get(path);
+                if (fileInfo != null) {
+                    fileInfo.setLinkTarget(record[1].substring(1));
+                }
+            } else {
+                try {
+                    infos.put(path, new FileInfo(path, record[1]));
+                } catch (IllegalArgumentException e) {
+                    throw new KMRuntimeException("Failed to retrieve file info for " + path + ": " + e.getMessage());
+                }
+            }
+        }
+        return infos;
+    }
+
+    @NotNull
+    @Override
+    public Map<String, byte[]> getFileSha1s(Collection<String> paths) throws KMRuntimeException {
+        List<String> list = new ArrayList<>(paths);
+        LinkedHashMap<String, byte[]> sha1s = new LinkedHashMap<>();
+        for (String[] record : bulkFileOp(list, "[ -f \"$p\" ] && s=$(sha1sum < \"$p\") && printf '%d\\t%s\\n' $i \"${s%% *}\"")) {
+            try {
+                sha1s.put(list.get(Integer.parseInt(record[0])), Hex.decodeHex(record[1].toCharArray()));
+            } catch (DecoderException e) {
+                throw new KMRuntimeException("Invalid checksum returned by sha1sum: " + record[1]);
+            }
+        }
+        return sha1s;
+    }
+
+    /**
+     * Run a command for each of the specified paths (in $p, with its index in $i) in a single script, which prints
+     * records made of the path's index and a value separated by a tab.
+     */
+    private List<String[]> bulkFileOp(List<String> paths, String command) throws KMRuntimeException {
+        ArrayList<String[]> records = new ArrayList<>();
+        if (paths.isEmpty()) {
+            return records;
+        }
+        StringBuilder script = new StringBuilder("i=0\nfor p in");
+        for (String path : paths) {
+            script.append(" '").append(path.replace("'", "'\\''")).append('\'');
+        }
+        script.append("; do\n").append(command).append("\ni=$((i+1))\ndone\n");
+        ExecutionResult result = execStdin(script.toString(), defaultTimeout, 0, NO, null, null);
+        for (String line : result.getOutput().split("\n")) {
+            int idx = line.indexOf('\t');
+            if (idx != -1) {
+                records.add(new String[]{line.substring(0, idx), line.substring(idx + 1)});
+            }
+        }
+        return records;
+    }
+
     @Override
     public boolean fileExists(String path) throws KMRuntimeException {
+        SshAgent.Response response = agentRequest("exists", path);
+        if (response != null) {
+            return response.isSuccess();
+        }
         ExecutionResult result = exec("test -e " + path, null, NO);
         return result.getRetCode() == 0;
     }
@@ -132,9 +342,19 @@ public class SshHost extends AbstractHost {
 
     @Override
     public boolean mkdir(String path) throws KMRuntimeException {
+        SshAgent.Response response = agentRequest("mkdir", path);
+        if (response != null) {
+            if (!response.isSuccess()) {
+                throw new KMRuntimeException("Unable to create directory " + path + ": " + response.getText().trim());
+            }
+            return true;
+        }
         if (isRootUser()) {
             try {
-                sftpChannel.mkdir(path);
+                roundTrips.incrementAndGet();
+                synchronized (sftpChannel) {
+                    sftpChannel.mkdir(path);
+                }
                 return true;
             } catch (SftpException e) {
                 if (e.id == 2) {
@@ -155,7 +375,12 @@ public class SshHost extends AbstractHost {
     @Override
     public boolean mkdirs(String path) throws KMRuntimeException {
         if (!fileExists(path)) {
-            exec("mkdir -p " + path);
+            SshAgent.Response response = agentRequest("mkdirs", path);
+            if (response == null) {
+                exec("mkdir -p " + path);
+            } else if (!response.isSuccess()) {
+                throw new KMRuntimeException("Unable to create directory " + path + ": " + response.getText().trim());
+            }
             return true;
         }
         return false;
@@ -163,16 +388,22 @@ public class SshHost extends AbstractHost {
 
     @Override
     public byte[] getFileSha1(String path) throws KMRuntimeException {
-        String result = exec("sha1sum " + path, getDefaultSuccessRetCode(), NO).getOutput();
-        Matcher matcher = Pattern.compile("(\\S*?)\\s*" + path + "\n").matcher(result);
-        if (!matcher.find()) {
-            throw new KMRuntimeException("Invalid checksum returned by sha1sum: " + result);
+        SshAgent.Response response = agentRequest("sha1", path);
+        String result;
+        if (response != null) {
+            result = response.getText();
+            if (!response.isSuccess()) {
+                throw new KMRuntimeException(toString() + " failed to retrieve sha1 of " + path + ": " + result.trim());
+            }
+        } else {
+            // reading from stdin means the output doesn't include the path (which sha1sum would escape)
+            result = exec("sha1sum < " + path, getDefaultSuccessRetCode(), NO).getOutput();
         }
-        String checksum = matcher.group(1);
+        int idx = result.indexOf(' ');
         try {
-            return Hex.decodeHex(checksum.toCharArray());
+            return Hex.decodeHex((idx != -1 ? result.substring(0, idx) : result.trim()).toCharArray());
         } catch (DecoderException e) {
-            throw new KMRuntimeException("Error while retrieving file sha1: " + e.getMessage());
+            throw new KMRuntimeException("Invalid checksum returned by sha1sum: " + result);
         }
     }
 
@@ -182,20 +413,59 @@ public class SshHost extends AbstractHost {
     }
 
     @Override
-    public byte[] readFileData(String path) throws KMRuntimeException {
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    public byte[] readFileData(final String path) throws KMRuntimeException {
+        SshAgent.Response response = agentRequest("read", path);
+        if (response != null) {
+            if (!response.isSuccess()) {
+                throw new KMRuntimeException("Unable to read file " + path + ": " + response.getText().trim());
+            }
+            return response.getData();
+        }
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        final long[] size = {-1};
         try {
             // TODO handle files non-root user can't read
-            sftpChannel.get(path, buf);
-            return buf.toByteArray();
+            roundTrips.incrementAndGet();
+            sftp(new SftpOperation() {
+                @Override
+                public void run(ChannelSftp channel) throws SftpException {
+                    if (!isParallelSftpEnabled()) {
+                        channel.get(path, buf);
+                        return;
+                    }
+                    // the first chunk is read directly, the rest of larger files is downloaded over several channels
+                    try (InputStream is = channel.get(path)) {
+                        byte[] chunk = new byte[32768];
+                        int read;
+                        while (buf.size() < sftpChunkSize && (read = is.read(chunk, 0, Math.min(chunk.length, sftpChunkSize - buf.size()))) != -1) {
+                            buf.write(chunk, 0, read);
+                        }
+                        if (buf.size() == sftpChunkSize && is.read() != -1) {
+                            long fileSize = channel.stat(path).getSize();
+                            size[0] = fileSize > sftpChunkSize ? fileSize : -1;
+                        }
+                    } catch (IOException e) {
+                        throw new SftpException(ChannelSftp.SSH_FX_FAILURE, e.getMessage(), e);
+                    }
+                }
+            });
         } catch (SftpException e) {
             throw new KMRuntimeException("Unable to read file " + path + ": " + e.getMessage(), e);
         }
+        if (size[0] == -1) {
+            return buf.toByteArray();
+        } else if (size[0] > Integer.MAX_VALUE - 8) {
+            throw new KMRuntimeException("Unable to read file " + path + ": file is too large");
+        }
+        byte[] data = Arrays.copyOf(buf.toByteArray(), (int) size[0]);
+        getSftpTransferEngine().download(path, sftpChunkSize, data, sftpChunkSize, data.length - sftpChunkSize);
+        return data;
     }
 
     @Override
     public InputStream readFile(String path) throws KMRuntimeException {
         try {
+            roundTrips.incrementAndGet();
             return sftpChannel.get(path);
         } catch (SftpException e) {
             throw new KMRuntimeException("Unable to read file " + path + ": " + e.getMessage(), e);
@@ -204,41 +474,306 @@ public class SshHost extends AbstractHost {
 
     @Override
     public void writeToFile(String path, InputStream dataStream) throws KMRuntimeException {
-        logger.debug("Writing stream to {} via SSH");
-        String tmpfile = exec("mktemp", getDefaultTimeout(), getDefaultSuccessRetCode(), getDefaultLogging(), loginUser).getOutput().trim();
-        logger.debug("Created temporary file {} on host {}", tmpfile);
-        tempFiles.add(tmpfile);
+        logger.debug("Writing stream to {} via SSH", path);
+        try (SpooledData data = SpooledData.read(dataStream, SPOOL_THRESHOLD)) {
+            if (writeWithAgent(path, data)) {
+                return;
+            }
+            String blob = blobCacheDir != null ? prepareBlobCache() + "/" + new String(Hex.encodeHex(data.getSha1())) : null;
+            // small files are just uploaded, while large ones are looked up in the blob cache, or sent as a delta
+            if (deltaThreshold > 0 && data.getSize() >= deltaThreshold && writeLargeFile(path, data, blob)) {
+                return;
+            }
+            if (isParallelSftpEnabled() && data.getSize() > sftpChunkSize) {
+                uploadParallel(path, data, blob);
+            } else {
+                upload(path, data.open(), blob);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            throw new KMRuntimeException("Unable to write file " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Write a small file through the agent. Files which are spooled, or large enough to be sent as a delta or over
+     * several channels aren't sent to the agent (which would need to hold them in memory).
+     *
+     * @return false if the file must be uploaded instead.
+     */
+    private boolean writeWithAgent(String path, SpooledData data) throws KMRuntimeException, IOException {
+        SshAgent agent = this.agent;
+        // asynchronous writes go over their own sftp channel instead of waiting for the agent
+        if (agent == null || agent.isBroken() || asyncOperation.get() != null || data.getSize() >= SPOOL_THRESHOLD
+                || (deltaThreshold > 0 && data.getSize() >= deltaThreshold)
+                || (isParallelSftpEnabled() && data.getSize() > sftpChunkSize)) {
+            return false;
+        }
+        byte[] content = IOUtils.toByteArray(data.open());
+        try {
+            roundTrips.incrementAndGet();
+            SshAgent.Response response = agent.request("write", content, path);
+            if (!response.isSuccess()) {
+                throw new KMRuntimeException("Unable to write file " + path + ": " + response.getText().trim());
+            }
+            return true;
+        } catch (IOException e) {
+            logger.warn("Agent on " + this + " failed, falling back to exec channels: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Upload a file to the staging directory and move it to its destination.
+     */
+    private void upload(String path, final InputStream dataStream, @Nullable String blob) throws KMRuntimeException {
+        final String tmpfile = getStagingDir() + "/" + UUID.randomUUID().toString();
         try {
-            sftpChannel.put(dataStream, tmpfile, ChannelSftp.OVERWRITE);
+            roundTrips.incrementAndGet();
+            sftp(new SftpOperation() {
+                @Override
+                public void run(ChannelSftp channel) throws SftpException {
+                    channel.put(dataStream, tmpfile, ChannelSftp.OVERWRITE);
+                }
+            });
         } catch (SftpException e) {
             throw new KMRuntimeException(e.getMessage(), e);
         } finally {
             IOUtils.close(dataStream);
         }
+        ExecutionResult result = exec(replaceCommand(path, tmpfile, blob), defaultTimeout, null, NO, null);
+        if (result.getRetCode() != 0) {
+            throw new KMRuntimeException("Unable to write file " + path + ": " + result.getOutput().trim());
+        }
+        logger.debug("moved temporary file {} to final destination {}", tmpfile, path);
+    }
+
+    /**
+     * Upload a file in chunks over several sftp channels (see {@link SftpTransferEngine}), and concatenate them to a
+     * file which is moved to its destination once its checksum has been verified.
+     * <p>When logged in as root, the chunks are uploaded to the blob cache, where they're left if the upload fails so
+     * that the next attempt to write the same data resumes it (they'll otherwise expire with the cache's blobs).</p>
+     */
+    private void uploadParallel(String path, SpooledData data, @Nullable String blob) throws KMRuntimeException {
+        String sha1 = new String(Hex.encodeHex(data.getSha1()));
+        String prefix = blob != null && isRootUser() ? blob + "." + sftpChunkSize : null;
+        // the same data may be written to several files concurrently, in which case only one upload uses the
+        // resumable parts
+        synchronized (resumableUploads) {
+            if (prefix != null && !resumableUploads.add(prefix)) {
+                prefix = null;
+            }
+        }
+        boolean resume = prefix != null;
         try {
-            FileInfo oldFileInfo;
-            if (fileExists(path)) {
-                oldFileInfo = getFileInfo(path);
+            uploadParallel(path, data, blob, sha1, resume ? prefix : getStagingDir() + "/" + UUID.randomUUID().toString(), resume);
+        } finally {
+            if (resume) {
+                synchronized (resumableUploads) {
+                    resumableUploads.remove(prefix);
+                }
+            }
+        }
+    }
+
+    private void uploadParallel(String path, SpooledData data, @Nullable String blob, String sha1, String prefix, boolean resume) throws KMRuntimeException {
+        SftpTransferEngine engine = getSftpTransferEngine();
+        while (true) {
+            roundTrips.incrementAndGet();
+            List<String> parts = engine.upload(data, prefix, resume);
+            String partList = String.join(" ", parts);
+            String tmpfile = getStagingDir() + "/" + UUID.randomUUID().toString();
+            String script = "cat " + partList + " > " + tmpfile + " || { rm -f " + tmpfile + "; exit 1; }\n" +
+                    "if [ \"$(sha1sum < " + tmpfile + " | cut -c1-40)\" != " + sha1 + " ]; then rm -f " + tmpfile + " " +
+                    partList + "; exit 20; fi\n" +
+                    "rm -f " + partList + "\n" +
+                    replaceCommand(path, tmpfile, blob) + "\n";
+            ExecutionResult result = execStdin(script, defaultTimeout, null, NO, null, null);
+            if (result.getRetCode() == 0) {
+                logger.debug("Uploaded {} in {} parts", path, parts.size());
+                return;
+            } else if (result.getRetCode() == 20 && resume) {
+                // a part left by a previous upload didn't match the data, the parts have been deleted so start over
+                logger.debug("Checksum mismatch after resuming upload of {}, uploading it again", path);
+                resume = false;
             } else {
-                oldFileInfo = null;
+                throw new KMRuntimeException("Unable to write file " + path + ": " + (result.getRetCode() == 20 ?
+                        "checksum mismatch" : result.getOutput().trim()));
             }
-            exec("mv " + tmpfile + " " + path, defaultTimeout, defaultSuccessRetCode, NO, null);
-            if (oldFileInfo != null) {
-                setFileOwner(path, oldFileInfo.getOwner());
-                setFileGroup(path, oldFileInfo.getGroup());
-                setFilePerms(path, new FilePermissions(oldFileInfo.getPermissions()));
+        }
+    }
+
+    /**
+     * Write a large file without uploading it if possible. A single command copies the file from the blob cache if
+     * it's there, or otherwise returns the delta signature of the file it replaces, so that only the blocks which
+     * differ are sent (see {@link DeltaTransfer}).
+     *
+     * @return false if the file must be uploaded instead, because it isn't in the blob cache and can't be sent as a
+     * delta (the file doesn't exist, python isn't available on the server, or the delta isn't significantly smaller
+     * than the file).
+     */
+    private boolean writeLargeFile(String path, SpooledData data, @Nullable String blob) throws KMRuntimeException, IOException {
+        String helper = getDeltaHelper();
+        if (helper == null && blob == null) {
+            return false;
+        }
+        ExecutionResult result = execStdin(largeFileLookupScript(path, blob, helper), defaultTimeout, null, NO, null, null);
+        if (result.getRetCode() == 0) {
+            logger.debug("Copied {} from blob cache {}", path, blob);
+            return true;
+        } else if (result.getRetCode() == 12) {
+            logger.warn("Failed to copy " + path + " from blob cache: " + result.getOutput().trim());
+        } else if (result.getRetCode() == 10) {
+            return writeWithDelta(path, data, blob, helper, DeltaTransfer.parseSignature(result.getOutput()));
+        }
+        return false;
+    }
+
+    /**
+     * Write a file by only sending the blocks which differ from the existing file.
+     *
+     * @return false if the file must be uploaded instead, because the delta isn't significantly smaller than the file
+     * or patching failed.
+     */
+    private boolean writeWithDelta(String path, SpooledData data, @Nullable String blob, String helper,
+                                   DeltaTransfer.Signature signature) throws KMRuntimeException, IOException {
+        File delta = File.createTempFile("kmdelta", ".tmp");
+        try {
+            long deltaSize;
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(delta))) {
+                deltaSize = DeltaTransfer.encode(signature, data.getBuffer(), os);
             }
-            logger.debug("moved temporary file {} to final destination {}", tmpfile, path);
-        } catch (RuntimeException | KMRuntimeException e) {
-            try {
-                if (fileExists(tmpfile)) {
-                    deleteFile(tmpfile, false);
+            logger.debug("Delta for {} is {} bytes (file is {} bytes)", path, deltaSize, data.getSize());
+            if (deltaSize >= data.getSize() * 9 / 10) {
+                return false;
+            }
+            String tmpfile = getStagingDir() + "/" + UUID.randomUUID().toString();
+            ExecutionResult result;
+            try (InputStream is = new BufferedInputStream(new FileInputStream(delta))) {
+                result = exec(deltaPatchCommand(helper, path, tmpfile, signature.getBlockSize(), blob), defaultTimeout, null,
+                        NO, null, null, null, is);
+            }
+            if (result.getRetCode() != 0) {
+                logger.warn("Delta transfer of " + path + " to " + this + " failed, uploading whole file: " + result.getOutput().trim());
+                return false;
+            }
+            return true;
+        } finally {
+            SpooledData.delete(delta);
+        }
+    }
+
+    /**
+     * Script which copies a file from the blob cache and exits with 0 if it's there, and otherwise prints the delta
+     * signature of the file it replaces and exits with 10. It exits with 12 if copying the file failed, and 11 in
+     * other cases.
+     */
+    static String largeFileLookupScript(String path, @Nullable String blob, @Nullable String helper) {
+        StringBuilder script = new StringBuilder();
+        if (blob != null) {
+            // the file is copied next to its destination so that it can be atomically moved in place
+            script.append("if [ -f ").append(blob).append(" ]; then\n")
+                    .append("touch ").append(blob).append(" && t=$(mktemp ").append(path).append(".XXXXXX) && cp ")
+                    .append(blob).append(" $t || exit 12\n")
+                    .append(replaceCommand(path, "$t", null)).append(" || exit 12\n")
+                    .append("exit 0\nfi\n");
+        }
+        if (helper != null) {
+            script.append(deltaSignatureCommand(helper, path)).append(" && exit 10\n");
+        }
+        return script.append("exit 11\n").toString();
+    }
+
+    /**
+     * Command which prints the delta signature of a file, and fails if the file doesn't exist.
+     */
+    static String deltaSignatureCommand(String helper, String path) {
+        return "[ -f " + path + " ] && " + PYTHON + " " + helper + " sig " + path;
+    }
+
+    /**
+     * Command which rebuilds a file from the existing file and the delta read from stdin, and moves it in place.
+     */
+    static String deltaPatchCommand(String helper, String path, String tmpfile, int blockSize, @Nullable String blob) {
+        return PYTHON + " " + helper + " patch " + path + " " + tmpfile + " " + blockSize + " || { rm -f " + tmpfile +
+                "; exit 1; }; " + replaceCommand(path, tmpfile, blob);
+    }
+
+    /**
+     * Command which copies the attributes of the file being replaced to the new file (new files get the same mode as
+     * mktemp would give them) and moves it to its destination, first adding a copy of it to the blob cache if blob
+     * isn't null (or only marking the blob as used if it's already there).
+     */
+    static String replaceCommand(String path, String tmpfile, @Nullable String blob) {
+        String cache = "";
+        if (blob != null) {
+            String part = blob + "." + UUID.randomUUID().toString();
+            cache = "{ [ -f " + blob + " ] && touch " + blob + " || { cp " + tmpfile + " " + part + " 2>/dev/null && mv -f " +
+                    part + " " + blob + " || rm -f " + part + "; }; } && ";
+        }
+        return "if [ -e " + path + " ]; then chown --reference=" + path + " " + tmpfile + " && chmod --reference=" + path +
+                " " + tmpfile + "; else chmod 600 " + tmpfile + "; fi && " + cache + "mv -f " + tmpfile + " " + path +
+                " || { rm -f " + tmpfile + "; exit 1; }";
+    }
+
+    /**
+     * Get the path of the delta helper, uploading it to the staging directory on first use.
+     *
+     * @return Path of the helper, or null if python isn't available on the server.
+     */
+    @Nullable
+    private synchronized String getDeltaHelper() throws KMRuntimeException {
+        if (deltaHelper == null && deltaSupported) {
+            if (exec(FIND_PYTHON, defaultTimeout, null, NO, null).getRetCode() != 0) {
+                logger.debug("python not found on {}, delta transfers disabled", this);
+                deltaSupported = false;
+                return null;
+            }
+            String helper = getStagingDir() + "/" + DeltaTransfer.HELPER;
+            try (InputStream is = DeltaTransfer.getHelper()) {
+                roundTrips.incrementAndGet();
+                synchronized (sftpChannel) {
+                    sftpChannel.put(is, helper, ChannelSftp.OVERWRITE);
                 }
-            } catch (KMRuntimeException e1) {
-                logger.warn("Error while attempting to delete temporary file: " + e.getLocalizedMessage());
+            } catch (IOException | SftpException e) {
+                throw new KMRuntimeException("Unable to upload delta helper: " + e.getMessage(), e);
             }
-            throw e;
+            deltaHelper = helper;
         }
+        return deltaHelper;
+    }
+
+    /**
+     * Create the blob cache if it doesn't exist, and evict old blobs until it's within its size limit. This is done the
+     * first time a file is written to the host.
+     *
+     * @return Blob cache directory.
+     */
+    private synchronized String prepareBlobCache() throws KMRuntimeException {
+        if (!blobCachePrepared) {
+            String script = "mkdir -p " + blobCacheDir + " && chmod 700 " + blobCacheDir + " || exit 1\n" +
+                    "find " + blobCacheDir + " -type f -mtime +" + blobCacheMaxAge + " -delete\n" +
+                    "find " + blobCacheDir + " -type f -printf '%T@ %s %p\\n' | sort -rn | awk -v max=" + blobCacheMaxSize +
+                    " '{ total += $2 } total > max { print $3 }' | xargs -r rm -f\n";
+            ExecutionResult result = execStdin(script, defaultTimeout, null, NO, null, null);
+            if (result.getRetCode() != 0) {
+                logger.warn("Failed to prepare blob cache " + blobCacheDir + " on " + this + ": " + result.getOutput().trim());
+            }
+            blobCachePrepared = true;
+        }
+        return blobCacheDir;
+    }
+
+    /**
+     * Get the directory files are uploaded to before being moved to their destination. It's created once per host so
+     * that uploads only need locally generated names.
+     */
+    private synchronized String getStagingDir() throws KMRuntimeException {
+        if (stagingDir == null) {
+            stagingDir = exec("mktemp -d", getDefaultTimeout(), getDefaultSuccessRetCode(), getDefaultLogging(), loginUser).getOutput().trim();
+            tempDirs.add(stagingDir);
+            logger.debug("Created staging directory {} on host {}", stagingDir, this);
+        }
+        return stagingDir;
     }
 
     @Override
@@ -252,17 +787,32 @@ public class SshHost extends AbstractHost {
 
     @Override
     public void setFileOwner(String path, String owner) throws KMRuntimeException {
-        exec("chown " + owner + " " + path);
+        SshAgent.Response response = agentRequest("chown", owner, path);
+        if (response == null) {
+            exec("chown " + owner + " " + path);
+        } else if (!response.isSuccess()) {
+            throw new KMRuntimeException(toString() + " failed to chown " + path + ": " + response.getText().trim());
+        }
     }
 
     @Override
     public void setFileGroup(String path, String group) throws KMRuntimeException {
-        exec("chown :" + group + " " + path);
+        SshAgent.Response response = agentRequest("chown", ":" + group, path);
+        if (response == null) {
+            exec("chown :" + group + " " + path);
+        } else if (!response.isSuccess()) {
+            throw new KMRuntimeException(toString() + " failed to chown " + path + ": " + response.getText().trim());
+        }
     }
 
     @Override
     public void setFilePerms(String path, FilePermissions perms) throws KMRuntimeException {
-        exec("chmod " + perms.toChmodString() + " " + path);
+        SshAgent.Response response = agentRequest("chmod", perms.toChmodString(), path);
+        if (response == null) {
+            exec("chmod " + perms.toChmodString() + " " + path);
+        } else if (!response.isSuccess()) {
+            throw new KMRuntimeException(toString() + " failed to chmod " + path + ": " + response.getText().trim());
+        }
     }
 
     @Override
@@ -279,44 +829,169 @@ public class SshHost extends AbstractHost {
         return tmpfile;
     }
 
+    /**
+     * {@inheritDoc}
+     * Asynchronous operations don't wait for the agent or the host's sftp channel when they're in use by other
+     * operations: they use exec channels when the agent is busy, and transfer files over an sftp channel of their own.
+     */
+    @NotNull
+    @Override
+    protected <T> CompletableFuture<T> async(final AsyncOperation<T> operation) {
+        return super.async(new AsyncOperation<T>() {
+            @Override
+            public T run() throws KMRuntimeException {
+                asyncOperation.set(true);
+                try {
+                    return operation.run();
+                } finally {
+                    asyncOperation.remove();
+                }
+            }
+        });
+    }
+
+    /**
+     * Run an sftp operation. The host's sftp channel isn't thread safe (unlike exec channels which are opened for each
+     * command), so operations on it are serialized, except for asynchronous operations which open a channel of their
+     * own. That channel is released straight away, since the operation may need other channels from the pool next.
+     */
+    private void sftp(SftpOperation operation) throws SftpException, KMRuntimeException {
+        if (asyncOperation.get() != null) {
+            ChannelSftp channel = openSftpChannel();
+            try {
+                operation.run(channel);
+            } finally {
+                channelPool.release(channel);
+            }
+        } else {
+            synchronized (sftpChannel) {
+                operation.run(sftpChannel);
+            }
+        }
+    }
+
+    private boolean isParallelSftpEnabled() {
+        return sftpChannels > 1 && sftpChunkSize > 0;
+    }
+
+    private SftpTransferEngine getSftpTransferEngine() {
+        return new SftpTransferEngine(new SftpTransferEngine.ChannelSource() {
+            @Override
+            public ChannelSftp open() throws KMRuntimeException {
+                return openSftpChannel();
+            }
+
+            @Override
+            public void release(ChannelSftp channel) {
+                channelPool.release(channel);
+            }
+        }, sftpChannels, sftpChunkSize);
+    }
+
+    private void releaseConnection() {
+        if (connection != null) {
+            connectionPool.release(connection);
+            connection = null;
+        }
+    }
+
+    /**
+     * Hosts sharing a connection also share its main sftp channel, which is taken from the channel pool so that it
+     * counts towards the server's MaxSessions limit.
+     */
+    private ChannelSftp getSharedSftpChannel() throws KMRuntimeException {
+        synchronized (connection) {
+            ChannelSftp channel = connection.getSftpChannel();
+            if (channel != null && !channel.isConnected()) {
+                channelPool.release(channel);
+                channel = null;
+            }
+            if (channel == null) {
+                channel = openSftpChannel();
+                connection.setSftpChannel(channel);
+            }
+            return channel;
+        }
+    }
+
+    private ChannelSftp openSftpChannel() throws KMRuntimeException {
+        try {
+            while (true) {
+                ChannelSftp channel = (ChannelSftp) channelPool.acquire("sftp");
+                try {
+                    transportProfile.configure(channel);
+                    channel.connect();
+                    return channel;
+                } catch (JSchException e) {
+                    if (!channelPool.refused(channel)) {
+                        throw e;
+                    }
+                }
+            }
+        } catch (JSchException e) {
+            throw new KMRuntimeException("Unable to open sftp channel: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KMRuntimeException("Interrupted while waiting for a channel", e);
+        }
+    }
+
     @Override
     public boolean isStarted() {
         return started;
     }
 
+    @Override
+    protected Executor createExecutor(boolean input) {
+        SshAgent agent = this.agent;
+        // the agent doesn't support passing data to a command's input
+        return !input && agent != null && !agent.isBroken() ? new SshAgentExecutor(channelPool, agent) : new SshExecutor(channelPool);
+    }
+
+    @Override
+    protected Executor createExecutor(String command, String user, @Nullable Map<String, String> env, @Nullable Long timeout,
+                                      boolean input, boolean streaming) {
+        // the agent only returns a command's output once it completed
+        return streaming ? new SshExecutor(channelPool) : createExecutor(input);
+    }
+
     @NotNull
     @Override
     public ExecutionResult exec(String command, @Nullable Long timeout, @Nullable Integer expectedRetCode, Logging logging, String user, String workdir, @Nullable Map<String, String> env) throws KMRuntimeException {
         if (env == null || env.isEmpty()) {
             return super.exec(command, timeout, expectedRetCode, logging, user, workdir, env);
         } else {
-            StringBuilder script = new StringBuilder("#!/bin/bash\n\n");
+            // servers usually only accept a few variables through the channel (AcceptEnv), so they're exported by a
+            // script streamed to bash instead
+            StringBuilder script = new StringBuilder();
             for (Map.Entry<String, String> entry : env.entrySet()) {
                 script.append("export ").append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
             }
-            script.append('\n').append(command);
-            return execScript(script.toString(), ScriptType.BASH, timeout != null ? timeout : DEFAULT_TIMEOUT, expectedRetCode, logging, user);
+            script.append(command).append('\n');
+            return execStdin(script.toString(), timeout, expectedRetCode, logging, user, workdir);
         }
     }
 
     @Override
     public ExecutionResult execScript(String script, ScriptType type, long timeout, @Nullable Integer expectedRetCode, Logging logging, String user) throws KMRuntimeException {
-        String tmpFile = createTempFile();
-        try {
-            writeToFile(tmpFile, script);
-            switch (type) {
-                case BASH:
-                    String cmd = "bash " + tmpFile;
-                    logger.debug("executing: {}", cmd);
-                    return exec(cmd, timeout, expectedRetCode, logging, null);
-                default:
-                    throw new KMRuntimeException("Unsupported script type: " + type.toString());
-            }
-        } finally {
-            deleteFile(tmpFile, false);
+        switch (type) {
+            case BASH:
+                return execStdin(script, timeout, expectedRetCode, logging, user, null);
+            default:
+                throw new KMRuntimeException("Unsupported script type: " + type.toString());
         }
     }
 
+    /**
+     * Run a bash script by streaming it to the standard input of bash, so it only costs a single channel.
+     */
+    private ExecutionResult execStdin(String script, @Nullable Long timeout, @Nullable Integer expectedRetCode, Logging logging,
+                                      String user, String workdir) throws KMRuntimeException {
+        logger.debug("executing script through stdin: {}", script);
+        return exec("bash -s", timeout, expectedRetCode, logging, user, workdir, null,
+                new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)));
+    }
+
     public String getAddress() {
         return address;
     }
@@ -333,6 +1008,139 @@ public class SshHost extends AbstractHost {
         this.port = port;
     }
 
+    public boolean isAgentMode() {
+        return agentMode;
+    }
+
+    /**
+     * Enable agent mode, in which a helper process is started on the server (when the host is started) to perform
+     * file operations and commands over a single long-lived channel.
+     *
+     * @param agentMode true to enable agent mode.
+     */
+    public void setAgentMode(boolean agentMode) {
+        this.agentMode = agentMode;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Set the maximum number of channels which can be opened concurrently on the SSH connection (this should match the
+     * server's MaxSessions setting). Must be set before the host is started.
+     *
+     * @param maxSessions Maximum number of channels.
+     */
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    public String getBlobCacheDir() {
+        return blobCacheDir;
+    }
+
+    /**
+     * Set the directory in which a copy of files written to the host is kept (named after their SHA-1), so that
+     * writing the same large file again only requires copying it from there. The cache is disabled by default, as it
+     * keeps copies of every file written (including credentials) until they expire.
+     *
+     * @param blobCacheDir Directory (ie. {@link #DEFAULT_BLOB_CACHE_DIR}), or null to disable the blob cache.
+     */
+    public synchronized void setBlobCacheDir(@Nullable String blobCacheDir) {
+        this.blobCacheDir = blobCacheDir;
+        blobCachePrepared = false;
+    }
+
+    public long getBlobCacheMaxSize() {
+        return blobCacheMaxSize;
+    }
+
+    /**
+     * Set the size the blob cache is reduced to (by removing the least recently used blobs) the first time it's used.
+     *
+     * @param blobCacheMaxSize Size in bytes.
+     */
+    public void setBlobCacheMaxSize(long blobCacheMaxSize) {
+        this.blobCacheMaxSize = blobCacheMaxSize;
+    }
+
+    public int getBlobCacheMaxAge() {
+        return blobCacheMaxAge;
+    }
+
+    /**
+     * Set the age from which unused blobs are removed from the blob cache.
+     *
+     * @param blobCacheMaxAge Age in days.
+     */
+    public void setBlobCacheMaxAge(int blobCacheMaxAge) {
+        this.blobCacheMaxAge = blobCacheMaxAge;
+    }
+
+    public SshTransportProfile getTransportProfile() {
+        return transportProfile;
+    }
+
+    /**
+     * Set the SSH transport settings to use for the connection. Must be set before the host is started.
+     *
+     * @param transportProfile Transport profile.
+     */
+    public void setTransportProfile(@NotNull SshTransportProfile transportProfile) {
+        this.transportProfile = transportProfile;
+    }
+
+    public int getSftpChannels() {
+        return sftpChannels;
+    }
+
+    /**
+     * Set the maximum number of sftp channels used to transfer a large file (the channels count towards the host's
+     * maximum number of sessions).
+     *
+     * @param sftpChannels Number of channels, or 1 to transfer files over a single channel.
+     */
+    public void setSftpChannels(int sftpChannels) {
+        this.sftpChannels = sftpChannels;
+    }
+
+    public int getSftpChunkSize() {
+        return sftpChunkSize;
+    }
+
+    /**
+     * Set the size of the chunks large files are split in to be transferred over several sftp channels. Files no
+     * larger than this are transferred over a single channel.
+     *
+     * @param sftpChunkSize Size in bytes, or 0 to transfer files over a single channel.
+     */
+    public void setSftpChunkSize(int sftpChunkSize) {
+        this.sftpChunkSize = sftpChunkSize;
+    }
+
+    public int getDeltaThreshold() {
+        return deltaThreshold;
+    }
+
+    /**
+     * Set the size from which files written to the host are sent as a delta against the file they replace, rather
+     * than uploaded in full.
+     *
+     * @param deltaThreshold Size in bytes, or 0 to disable delta transfers.
+     */
+    public void setDeltaThreshold(int deltaThreshold) {
+        this.deltaThreshold = deltaThreshold;
+    }
+
+    public SshConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    public void setConnectionPool(SshConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
     public Session getSession() {
         return session;
     }
@@ -408,8 +1216,26 @@ public class SshHost extends AbstractHost {
         this.defaultUser = defaultUser;
     }
 
+    /**
+     * The identity includes the server's host key, since different machines can be reached through the same address
+     * (for example vagrant VMs behind a forwarded port).
+     */
+    @Override
+    protected String getIdentity() {
+        HostKey hostKey = session != null ? session.getHostKey() : null;
+        if (hostKey == null) {
+            return null;
+        }
+        return "ssh:" + loginUser + "@" + address + ":" + port + ":" +
+                new String(Hex.encodeHex(DigestUtils.sha1(hostKey.getKey().getBytes(StandardCharsets.UTF_8))));
+    }
+
     @Override
     public String toString() {
         return "SSH Host to " + address + " #" + hashCode();
     }
+
+    private interface SftpOperation {
+        void run(ChannelSftp channel) throws SftpException;
+    }
 }
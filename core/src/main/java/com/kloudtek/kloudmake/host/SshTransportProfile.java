@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * SSH transport settings suited to the link between kloudmake and the server.
+ */
+public enum SshTransportProfile {
+    /**
+     * JSch defaults.
+     */
+    DEFAULT(null, null, null, 0),
+    /**
+     * Fast local networks: bandwidth is cheap so CPU is saved by using AES-CTR (hardware accelerated on most CPUs)
+     * without compression. Only CTR ciphers and SHA-2 MACs are accepted.
+     */
+    LAN("aes128-ctr,aes192-ctr,aes256-ctr", "hmac-sha2-256", "none", 0),
+    /**
+     * Slow or high latency links: traffic is compressed (most of what's sent is scripts and configuration files),
+     * and more SFTP requests are kept in flight to fill the link.
+     */
+    WAN(null, null, "zlib@openssh.com,zlib,none", 64);
+    private final String ciphers;
+    private final String macs;
+    private final String compression;
+    private final int sftpBulkRequests;
+
+    SshTransportProfile(String ciphers, String macs, String compression, int sftpBulkRequests) {
+        this.ciphers = ciphers;
+        this.macs = macs;
+        this.compression = compression;
+        this.sftpBulkRequests = sftpBulkRequests;
+    }
+
+    /**
+     * Apply the profile to a session, before it's connected.
+     *
+     * @param session Session.
+     */
+    public void configure(Session session) {
+        if (ciphers != null) {
+            session.setConfig("cipher.s2c", ciphers);
+            session.setConfig("cipher.c2s", ciphers);
+        }
+        if (macs != null) {
+            session.setConfig("mac.s2c", macs);
+            session.setConfig("mac.c2s", macs);
+        }
+        if (compression != null) {
+            session.setConfig("compression.s2c", compression);
+            session.setConfig("compression.c2s", compression);
+        }
+    }
+
+    /**
+     * Apply the profile to an sftp channel.
+     *
+     * @param channel Channel.
+     * @throws JSchException If the channel couldn't be configured.
+     */
+    public void configure(ChannelSftp channel) throws JSchException {
+        if (sftpBulkRequests > 0) {
+            channel.setBulkRequests(sftpBulkRequests);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import org.apache.commons.exec.ExecuteWatchdog;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Watchdog which uses the shared {@link TimerWheel} rather than a thread of its own. It can also watch things other
+ * than processes (for example SSH channels), through {@link #start(Runnable)}.
+ */
+public class TimerWatchdog extends ExecuteWatchdog {
+    private final long timeout;
+    private final TimerWheel wheel;
+    private TimerWheel.Timeout scheduled;
+    private Runnable onTimeout;
+    private boolean timedOut;
+
+    public TimerWatchdog(long timeout) {
+        this(timeout, TimerWheel.getDefault());
+    }
+
+    public TimerWatchdog(long timeout, TimerWheel wheel) {
+        // an infinite timeout stops the parent class from creating its own thread
+        super(INFINITE_TIMEOUT);
+        this.timeout = timeout;
+        this.wheel = wheel;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public synchronized void start(Process process) {
+        super.start(process);
+        schedule(null);
+    }
+
+    /**
+     * Start watching something other than a process.
+     *
+     * @param onTimeout Task which stops what's being watched, called (after {@link #timeoutOccured}) on timeout.
+     */
+    public synchronized void start(Runnable onTimeout) {
+        schedule(onTimeout);
+    }
+
+    private void schedule(@Nullable Runnable onTimeout) {
+        this.onTimeout = onTimeout;
+        timedOut = false;
+        if (timeout > 0) {
+            scheduled = wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expired();
+                }
+            }, timeout);
+        }
+    }
+
+    private void expired() {
+        Runnable task;
+        synchronized (this) {
+            if (scheduled == null) {
+                return;
+            }
+            scheduled = null;
+            timedOut = onTimeout != null;
+            task = onTimeout;
+            timeoutOccured(null);
+        }
+        if (task != null) {
+            task.run();
+        }
+    }
+
+    @Override
+    public synchronized boolean killedProcess() {
+        return timedOut || super.killedProcess();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (scheduled != null) {
+            scheduled.cancel();
+            scheduled = null;
+        }
+        onTimeout = null;
+        super.stop();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel used for command timeouts, so that they all share a single thread (rather than each command
+ * having its own watchdog thread). Timeouts are only accurate to the wheel's tick duration, and their tasks run on
+ * the wheel's thread, so they must be quick.
+ */
+public class TimerWheel {
+    private static final Logger logger = LoggerFactory.getLogger(TimerWheel.class);
+    private static final TimerWheel defaultWheel = new TimerWheel(100, 512);
+    private final long tickMillis;
+    private final ArrayList<HashSet<Timeout>> buckets;
+    private long startTime;
+    private long tick;
+    private Thread thread;
+
+    public TimerWheel(long tickMillis, int size) {
+        this.tickMillis = tickMillis;
+        buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new HashSet<Timeout>());
+        }
+    }
+
+    public static TimerWheel getDefault() {
+        return defaultWheel;
+    }
+
+    /**
+     * Schedule a task.
+     *
+     * @param task  Task to run once the delay has elapsed (unless cancelled).
+     * @param delay Delay in milliseconds.
+     * @return Timeout, which can be cancelled.
+     */
+    @NotNull
+    public synchronized Timeout schedule(@NotNull Runnable task, long delay) {
+        if (thread == null) {
+            startTime = System.nanoTime();
+            tick = 0;
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWheel();
+                }
+            }, "kloudmake-timer-wheel");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        // round up, and always wait at least for the next tick
+        long ticks = Math.max(1, (delay + tickMillis - 1) / tickMillis);
+        long target = tick + ticks;
+        Timeout timeout = new Timeout(task, (int) (target % buckets.size()), (ticks - 1) / buckets.size());
+        buckets.get(timeout.bucket).add(timeout);
+        return timeout;
+    }
+
+    private void runWheel() {
+        ArrayList<Timeout> expired = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                long next = startTime + TimeUnit.MILLISECONDS.toNanos((tick + 1) * tickMillis);
+                long wait;
+                while ((wait = next - System.nanoTime()) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, wait);
+                    } catch (InterruptedException e) {
+                        logger.warn("Timer wheel interrupted");
+                    }
+                }
+                tick++;
+                Iterator<Timeout> iterator = buckets.get((int) (tick % buckets.size())).iterator();
+                while (iterator.hasNext()) {
+                    Timeout timeout = iterator.next();
+                    if (timeout.rounds == 0) {
+                        iterator.remove();
+                        timeout.expired = true;
+                        expired.add(timeout);
+                    } else {
+                        timeout.rounds--;
+                    }
+                }
+            }
+            for (Timeout timeout : expired) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    logger.error("Timeout task failed: " + e.getMessage(), e);
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    public class Timeout {
+        private final Runnable task;
+        private final int bucket;
+        private long rounds;
+        private boolean expired;
+
+        private Timeout(Runnable task, int bucket, long rounds) {
+            this.task = task;
+            this.bucket = bucket;
+            this.rounds = rounds;
+        }
+
+        /**
+         * Cancel the timeout.
+         *
+         * @return False if it has already expired.
+         */
+        public boolean cancel() {
+            synchronized (TimerWheel.this) {
+                buckets.get(bucket).remove(this);
+                return !expired;
+            }
+        }
+
+        public boolean isExpired() {
+            synchronized (TimerWheel.this) {
+                return expired;
+            }
+        }
+    }
+}
@@ -25,7 +25,8 @@ public abstract class UnixAbstractMetadataProvider extends AbstractHostProvider
 
     @Override
     public String getWorkingDir(Host host) throws KMRuntimeException {
-        return host.exec("pwd") + "/";
+        String workingDir = host.getFacts().getWorkingDir();
+        return workingDir != null ? workingDir + "/" : host.exec("pwd") + "/";
     }
 
     @Override
@@ -7,13 +7,19 @@ package com.kloudtek.kloudmake.java;
 import com.kloudtek.kloudmake.KMContextImpl;
 import com.kloudtek.kloudmake.Resource;
 import com.kloudtek.kloudmake.exception.KMRuntimeException;
+import com.kloudtek.kloudmake.host.Host;
 import com.kloudtek.kloudmake.host.OperatingSystem;
 
+import java.util.Map;
+import java.util.WeakHashMap;
+
 /**
- * Class that implements @OnlyIfOS annotation
+ * Class that implements @OnlyIfOS annotation.
+ * Since the result only depends on the host, it is memoised per host.
  */
 public class EnforceOnlyIfOS extends EnforceOnlyIf {
     private OperatingSystem[] operatingSystems;
+    private final Map<Host, Boolean> results = new WeakHashMap<>();
 
     public EnforceOnlyIfOS(OperatingSystem[] operatingSystems) {
         this.operatingSystems = operatingSystems;
@@ -21,7 +27,26 @@ public class EnforceOnlyIfOS extends EnforceOnlyIf {
 
     @Override
     public boolean execAllowed(KMContextImpl context, Resource resource) throws KMRuntimeException {
-        OperatingSystem hostOS = resource.getHost().getMetadata().getOperatingSystem();
+        Host host = resource.getHost();
+        Boolean allowed;
+        synchronized (results) {
+            allowed = results.get(host);
+        }
+        if (allowed == null) {
+            // the metadata is retrieved outside the lock, since it may require probing a remote host
+            allowed = execAllowed(host);
+            synchronized (results) {
+                Boolean existing = results.putIfAbsent(host, allowed);
+                if (existing != null) {
+                    allowed = existing;
+                }
+            }
+        }
+        return allowed;
+    }
+
+    private boolean execAllowed(Host host) throws KMRuntimeException {
+        OperatingSystem hostOS = host.getMetadata().getOperatingSystem();
         for (OperatingSystem os : operatingSystems) {
             if (!hostOS.equals(os)) {
                 return false;
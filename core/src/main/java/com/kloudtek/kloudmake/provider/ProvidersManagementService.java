@@ -17,6 +17,7 @@ public class ProvidersManagementService {
     protected HashMap<Class<? extends ProviderManager>, ProviderManager> providerManagers = new HashMap<>();
     protected HashMap<Class<?>, ProviderManager> providerClasses = new HashMap<>();
     protected ListHashMap<Class<?>, Object> providerImplementations = new ListHashMap<>();
+    protected final LinkedList<Reflections> pendingLibraries = new LinkedList<>();
     private KMContextImpl context;
 
     public void registerProviderManager(Class<? extends ProviderManager> clazz) throws InvalidServiceException {
@@ -36,8 +37,18 @@ public class ProvidersManagementService {
         }
     }
 
+    /**
+     * Queue a library's classes for provider registration. Provider managers and providers are only instantiated
+     * when a provider manager is first requested.
+     *
+     * @param libraries Library classes.
+     */
+    public synchronized void init(Reflections libraries) {
+        pendingLibraries.add(libraries);
+    }
+
     @SuppressWarnings("unchecked")
-    public void init(Reflections libraries) throws KMRuntimeException {
+    private void load(Reflections libraries) throws KMRuntimeException {
         Set<Class<?>> classes = libraries.getTypesAnnotatedWith(Provider.class);
         ArrayList<Class<? extends ProviderManager>> pmlist = new ArrayList<>();
         ArrayList<Class<?>> plist = new ArrayList<>();
@@ -49,15 +60,28 @@ public class ProvidersManagementService {
             }
         }
         for (Class<? extends ProviderManager> clazz : pmlist) {
+            if (providerManagers.containsKey(clazz)) {
+                continue;
+            }
             try {
                 ProviderManager providerManager = clazz.newInstance();
                 providerManagers.put(clazz, providerManager);
                 providerClasses.put(providerManager.getProviderInterface(), providerManager);
+                for (ArrayList<Object> providers : providerImplementations.values()) {
+                    for (Object provider : providers) {
+                        if (providerManager.getProviderInterface().isInstance(provider)) {
+                            providerManager.registerProvider(provider);
+                        }
+                    }
+                }
             } catch (InstantiationException | IllegalAccessException e) {
                 throw new KMRuntimeException("Unable to instantiate provider manager " + clazz.getName());
             }
         }
         for (Class<?> clazz : plist) {
+            if (providerImplementations.containsKey(clazz)) {
+                continue;
+            }
             try {
                 Object provider = clazz.newInstance();
                 providerImplementations.get(clazz).add(provider);
@@ -85,7 +109,10 @@ public class ProvidersManagementService {
     }
 
     @SuppressWarnings("unchecked")
-    public <X extends ProviderManager> X getProviderManager(Class<X> declaringClass) {
+    public synchronized <X extends ProviderManager> X getProviderManager(Class<X> declaringClass) throws KMRuntimeException {
+        while (!pendingLibraries.isEmpty()) {
+            load(pendingLibraries.removeFirst());
+        }
         return (X) providerManagers.get(declaringClass);
     }
 }
@@ -85,7 +85,7 @@ public class AptPackageProvider implements PackageProvider {
     public void update() throws KMRuntimeException {
         Date lastUpdated = (Date) host.getState(APT_UPDATE_TIMESTAMP);
         if (lastUpdated == null) {
-            host.exec(APTCMD + " update");
+            run(APTCMD + " update");
             host.setState(APT_UPDATE_TIMESTAMP, new Date());
         }
     }
@@ -102,7 +102,7 @@ public class AptPackageProvider implements PackageProvider {
         if (version != null) {
             cmd.append('=').append(version);
         }
-        exec(cmd.toString());
+        run(cmd.toString());
     }
 
     private String exec(String cmd) throws KMRuntimeException {
@@ -110,6 +110,14 @@ public class AptPackageProvider implements PackageProvider {
         return host.exec(cmd);
     }
 
+    /**
+     * Run a command whose output isn't needed (so it's never loaded in memory, apt output can be large).
+     */
+    private void run(String cmd) throws KMRuntimeException {
+        logger.debug("Executing: {}", cmd);
+        host.exec(cmd, 0, Host.Logging.ON_ERROR).close();
+    }
+
     private ExecutionResult exec(String cmd, @Nullable Integer expectedRetCode, Host.Logging logging) throws KMRuntimeException {
         logger.debug("Executing: {} expecting {} logging {}", cmd, expectedRetCode, logging);
         return host.exec(cmd, 30L * 60000L, expectedRetCode, logging, null);
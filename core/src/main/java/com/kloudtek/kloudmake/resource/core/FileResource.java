@@ -334,7 +334,8 @@ public class FileResource {
                     host.deleteFile(path, recursive);
                     logger.info("deleted {}", path);
                 }
-                break;
+                finfo = null;
+                return;
             default:
                 throw new KMRuntimeException(ensure + " not supported");
         }
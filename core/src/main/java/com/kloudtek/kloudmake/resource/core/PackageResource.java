@@ -38,7 +38,7 @@ public class PackageResource {
 
     @Execute
     public void execute() throws KMRuntimeException {
-        pkgProvider = new AptPackageProvider(host);
+        pkgProvider = createProvider(host, provider);
         pkgProvider.update();
         String installed = pkgProvider.checkCurrentlyInstalled(name);
         logger.debug("Installed version for package {} is {}", name, installed);
@@ -54,6 +54,25 @@ public class PackageResource {
         }
     }
 
+    /**
+     * Create the package provider, which unless specified is chosen from the host's package manager.
+     */
+    static PackageProvider createProvider(Host host, Provider provider) throws KMRuntimeException {
+        if (provider == null) {
+            String packageManager = host.getFacts().getPackageManager();
+            if (packageManager != null && !packageManager.equals("apt-get")) {
+                throw new KMRuntimeException("Unsupported package manager: " + packageManager);
+            }
+            provider = Provider.APT;
+        }
+        switch (provider) {
+            case APT:
+                return new AptPackageProvider(host);
+            default:
+                throw new KMRuntimeException("BUG: Unknown package provider " + provider);
+        }
+    }
+
     public enum Provider {
         APT
     }
@@ -46,7 +46,10 @@ public class ServiceLinuxImpl {
     @Execute(order = 2)
     public void findType() throws KMRuntimeException {
         if (type == null) {
-            if (host.fileExists("/etc/init.d/" + name)) {
+            if ("systemd".equals(host.getFacts().getInitSystem())) {
+                // systemd also manages services which only have an init.d script
+                type = Type.SYSTEMD;
+            } else if (host.fileExists("/etc/init.d/" + name)) {
                 type = Type.INITD;
             } else {
                 throw new KMRuntimeException("Unable to find linux service script for " + name);
@@ -56,14 +59,23 @@ public class ServiceLinuxImpl {
 
     @Verify
     public boolean checkEnabled() throws KMRuntimeException {
-        boolean status = host.exec("ls -1 /etc/rc2.d | grep '^S[0-9]*" + name + "$'", null, null).getRetCode() == 0;
+        boolean status;
+        if (type == Type.SYSTEMD) {
+            status = host.execReadOnly("systemctl is-enabled " + name, null, null).getRetCode() == 0;
+        } else {
+            status = host.execReadOnly("ls -1 /etc/rc2.d | grep '^S[0-9]*" + name + "$'", null, null).getRetCode() == 0;
+        }
         return autostart != status;
     }
 
     @Sync(order = 1)
     public void setEnabled() throws KMRuntimeException {
         String cmd = autostart ? "enable" : "disable";
-        host.exec("update-rc.d " + name + " " + cmd);
+        if (type == Type.SYSTEMD) {
+            host.exec("systemctl " + cmd + " " + name);
+        } else {
+            host.exec("update-rc.d " + name + " " + cmd);
+        }
         logger.info(StringUtils.capitalize(cmd) + "d service " + name);
     }
 
@@ -71,8 +83,10 @@ public class ServiceLinuxImpl {
     public boolean checkRunning() throws KMRuntimeException {
         switch (type) {
             case INITD:
-                boolean status = host.exec("/etc/init.d/" + name + " status", null, null).getRetCode() == 0;
+                boolean status = host.execReadOnly("/etc/init.d/" + name + " status", null, null).getRetCode() == 0;
                 return running != status;
+            case SYSTEMD:
+                return running != (host.execReadOnly("systemctl is-active " + name, null, null).getRetCode() == 0);
             default:
                 throw new KMRuntimeException("BUG: Unknown service type " + type);
         }
@@ -84,6 +98,9 @@ public class ServiceLinuxImpl {
             case INITD:
                 host.exec("/etc/init.d/" + name + " " + (running ? "start" : "stop"));
                 break;
+            case SYSTEMD:
+                host.exec("systemctl " + (running ? "start" : "stop") + " " + name);
+                break;
             default:
                 throw new KMRuntimeException("BUG: Unknown service type " + type);
         }
@@ -91,6 +108,6 @@ public class ServiceLinuxImpl {
     }
 
     public enum Type {
-        INITD
+        INITD, SYSTEMD
     }
 }
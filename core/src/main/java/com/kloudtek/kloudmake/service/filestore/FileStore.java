@@ -9,6 +9,7 @@ import com.kloudtek.kloudmake.KMContextImpl;
 import com.kloudtek.kloudmake.Startable;
 import com.kloudtek.kloudmake.annotation.*;
 import com.kloudtek.kloudmake.exception.KMRuntimeException;
+import com.kloudtek.kloudmake.host.FileHashCache;
 import com.kloudtek.kloudmake.resource.core.FileFragmentDef;
 import com.kloudtek.kryptotek.DigestUtils;
 import com.kloudtek.util.TempFile;
@@ -27,7 +28,9 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Paths;
 import java.util.*;
 
 import static com.kloudtek.util.StringUtils.*;
@@ -169,6 +172,7 @@ public class FileStore implements Startable, Closeable {
 
     public class LocalDataFile extends DataFile {
         private URL url;
+        private byte[] sha1;
 
         public LocalDataFile(String url) throws MalformedURLException {
             this.url = new URL(url);
@@ -184,10 +188,21 @@ public class FileStore implements Startable, Closeable {
         }
 
         @Override
-        public byte[] getSha1() throws IOException {
-            try (InputStream stream = getStream()) {
-                return DigestUtils.sha1(stream);
+        public synchronized byte[] getSha1() throws IOException {
+            if (sha1 == null) {
+                if (url.getProtocol().equals("file")) {
+                    try {
+                        sha1 = FileHashCache.getDefault().getSha1(Paths.get(url.toURI()));
+                    } catch (URISyntaxException | IllegalArgumentException e) {
+                        throw new IOException("Invalid file url " + url + ": " + e.getMessage(), e);
+                    }
+                } else {
+                    try (InputStream stream = getStream()) {
+                        sha1 = DigestUtils.sha1(stream);
+                    }
+                }
             }
+            return sha1;
         }
     }
 
@@ -198,6 +213,8 @@ public class FileStore implements Startable, Closeable {
         private byte[] sha1;
         private boolean cpfile;
         private File local;
+        private byte[] localFileSha1;
+        private byte[] contentSha1;
 
         public FSDataFile(@NotNull FileDefinition def) throws IOException {
             this.def = def;
@@ -227,9 +244,9 @@ public class FileStore implements Startable, Closeable {
 
         @Override
         public synchronized InputStream getStream() throws IOException {
-            if (local != null) {
-                byte[] localSha1 = DigestUtils.sha1(local);
-                if (sha1 != null && Arrays.equals(sha1, localSha1)) {
+            if (local != null && sha1 != null) {
+                byte[] localSha1 = getLocalSha1();
+                if (!Arrays.equals(sha1, localSha1)) {
                     StringBuilder err = new StringBuilder("Local data file ").append(filename)
                             .append(" did not match sha1 checksum (is ").append(new String(Hex.encode(localSha1)))
                             .append(" but expected ").append(def.getSha1());
@@ -237,6 +254,7 @@ public class FileStore implements Startable, Closeable {
                         err.append(" retrieving file from URL instead");
                         logger.warn(err.toString());
                         local = null;
+                        localFileSha1 = null;
                     } else {
                         throw new IOException(err.toString());
                     }
@@ -283,17 +301,18 @@ public class FileStore implements Startable, Closeable {
                 try (FileOutputStream os = new FileOutputStream(local)) {
                     IOUtils.copy(getMethod.getResponseBodyAsStream(), os);
                 }
+                localFileSha1 = null;
                 if (sha1 != null) {
-                    byte[] localSha1 = DigestUtils.sha1(local);
-                    if (Arrays.equals(sha1, localSha1)) {
+                    byte[] localSha1 = getLocalSha1();
+                    if (!Arrays.equals(sha1, localSha1)) {
                         throw new IOException("Retrieved file did not match sha1 checksum (is " +
                                 new String(Hex.encode(localSha1)) + " but expected " + def.getSha1());
                     }
                 }
             } else {
                 if (sha1 != null) {
-                    byte[] localSha1 = DigestUtils.sha1(local);
-                    if (Arrays.equals(sha1, localSha1)) {
+                    byte[] localSha1 = getLocalSha1();
+                    if (!Arrays.equals(sha1, localSha1)) {
                         throw new IOException("File did not match sha1 checksum, and is not retrievable (is " +
                                 new String(Hex.encode(localSha1)) + " but expected " + def.getSha1());
                     }
@@ -308,27 +327,35 @@ public class FileStore implements Startable, Closeable {
                     try {
                         template.process(vars, tmp);
                         byte[] bytes = tmp.toString().getBytes(def.getEncoding());
-                        sha1 = DigestUtils.sha1(bytes);
+                        contentSha1 = DigestUtils.sha1(bytes);
                         return new ByteArrayInputStream(bytes);
                     } catch (TemplateException e) {
                         throw new IOException(e.getMessage(), e);
                     }
                 }
             } else {
-                if (def.getSha1() != null) {
-                    sha1 = Hex.decode(def.getSha1());
-                } else {
-                    try (FileInputStream is = new FileInputStream(this.local)) {
-                        sha1 = DigestUtils.sha1(is);
-                    }
-                }
+                contentSha1 = getLocalSha1();
                 return new FileInputStream(this.local);
             }
         }
 
         @Override
-        public byte[] getSha1() throws IOException {
-            return DigestUtils.sha1(getStream());
+        public synchronized byte[] getSha1() throws IOException {
+            if (contentSha1 == null) {
+                getStream().close();
+            }
+            return contentSha1;
+        }
+
+        /**
+         * Get the checksum of the local file, which is only computed once (and only if it isn't in the
+         * {@link FileHashCache}).
+         */
+        private byte[] getLocalSha1() throws IOException {
+            if (localFileSha1 == null) {
+                localFileSha1 = FileHashCache.getDefault().getSha1(local.toPath());
+            }
+            return localFileSha1;
         }
 
         public File findUserManaged() {
@@ -0,0 +1,36 @@
+#!/bin/bash
+#
+# Copyright (c) 2015. Kelewan Technologies Ltd
+#
+# Probe used to gather a host's facts in a single command. Each fact is printed as a key=value line, facts which can't
+# be determined are left empty.
+
+echo "os=$(uname -s 2>/dev/null)"
+echo "arch=$(uname -m 2>/dev/null)"
+if [ -r /etc/os-release ]; then
+    (. /etc/os-release && echo "distribution=$ID" && echo "distributionVersion=$VERSION_ID")
+elif command -v sw_vers >/dev/null 2>&1; then
+    echo "distribution=macos"
+    echo "distributionVersion=$(sw_vers -productVersion)"
+elif command -v lsb_release >/dev/null 2>&1; then
+    echo "distribution=$(lsb_release -si | tr '[:upper:]' '[:lower:]')"
+    echo "distributionVersion=$(lsb_release -sr)"
+fi
+if [ -d /run/systemd/system ]; then
+    echo "initSystem=systemd"
+elif command -v initctl >/dev/null 2>&1 && initctl version 2>/dev/null | grep -q upstart; then
+    echo "initSystem=upstart"
+elif command -v launchctl >/dev/null 2>&1; then
+    echo "initSystem=launchd"
+elif [ -d /etc/init.d ]; then
+    echo "initSystem=sysv"
+fi
+for pm in apt-get dnf yum zypper pacman apk brew port; do
+    if command -v $pm >/dev/null 2>&1; then
+        echo "packageManager=$pm"
+        break
+    fi
+done
+echo "user=$(id -un)"
+echo "home=$HOME"
+echo "workingDir=$(pwd)"
@@ -0,0 +1,96 @@
+#
+# Copyright (c) 2015. Kelewan Technologies Ltd
+#
+# Helper used by SshHost for delta transfers (works with python 2 and 3).
+#
+# kmdelta.py sig <file>                : print "<size> <blocksize>" followed by "<adler32> <sha1>" for each block
+# kmdelta.py patch <old> <new> <bsize> : rebuild <new> from <old> and the delta read on stdin
+#
+# Delta records: 'C' <int64 block> <int32 count> copies blocks from the old file, 'D' <int32 len> <data> appends
+# literal data, and 'E' <sha1> ends the delta (exits with status 3 if the rebuilt file doesn't match the checksum).
+
+import hashlib
+import os
+import struct
+import sys
+import zlib
+
+
+def block_size(size):
+    bs = 1024
+    while bs * bs < size and bs < 131072:
+        bs *= 2
+    return bs
+
+
+def sig(path):
+    size = os.path.getsize(path)
+    bs = block_size(size)
+    out = sys.stdout
+    out.write("%d %d\n" % (size, bs))
+    f = open(path, 'rb')
+    try:
+        while True:
+            block = f.read(bs)
+            if not block:
+                break
+            out.write("%08x %s\n" % (zlib.adler32(block) & 0xffffffff, hashlib.sha1(block).hexdigest()))
+    finally:
+        f.close()
+
+
+def read_fully(stream, length):
+    data = stream.read(length)
+    while len(data) < length:
+        more = stream.read(length - len(data))
+        if not more:
+            sys.stderr.write("Truncated delta\n")
+            sys.exit(2)
+        data += more
+    return data
+
+
+def patch(old, new, bs):
+    stream = getattr(sys.stdin, 'buffer', sys.stdin)
+    digest = hashlib.sha1()
+    src = open(old, 'rb')
+    dst = open(new, 'wb')
+    try:
+        while True:
+            op = read_fully(stream, 1)
+            if op == b'C':
+                index, count = struct.unpack('>qi', read_fully(stream, 12))
+                src.seek(index * bs)
+                remaining = count * bs
+                while remaining > 0:
+                    data = src.read(min(remaining, 1048576))
+                    if not data:
+                        break
+                    dst.write(data)
+                    digest.update(data)
+                    remaining -= len(data)
+            elif op == b'D':
+                length = struct.unpack('>i', read_fully(stream, 4))[0]
+                data = read_fully(stream, length)
+                dst.write(data)
+                digest.update(data)
+            elif op == b'E':
+                if digest.digest() != read_fully(stream, 20):
+                    sys.stderr.write("Checksum mismatch\n")
+                    sys.exit(3)
+                return
+            else:
+                sys.stderr.write("Invalid delta\n")
+                sys.exit(2)
+    finally:
+        src.close()
+        dst.close()
+
+
+if __name__ == '__main__':
+    if sys.argv[1] == 'sig':
+        sig(sys.argv[2])
+    elif sys.argv[1] == 'patch':
+        patch(sys.argv[2], sys.argv[3], int(sys.argv[4]))
+    else:
+        sys.exit(2)
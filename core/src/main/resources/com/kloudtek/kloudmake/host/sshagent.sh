@@ -0,0 +1,112 @@
+#!/bin/bash
+#
+# Copyright (c) 2015. Kelewan Technologies Ltd
+#
+# Helper used by SshHost's agent mode. Requests are read from stdin, one per line: the operation followed by its
+# base64 encoded arguments (the write operation is followed by the raw file content). Each response is a line
+# containing the status and payload length, followed by the payload.
+# The exec operation takes optional timeout (in seconds) and output limit arguments: commands are killed with their
+# process group once they time out, and output over the limit is left in a file, in which case the payload is the path
+# of that file and the response line ends with "file" (the client must read and delete it).
+
+rm -f "$0"
+out=$(mktemp) || exit 1
+err=$(mktemp) || exit 1
+trap 'rm -f "$out" "$err"' EXIT
+
+dec() {
+    printf '%s' "$1" | base64 -d
+}
+
+echo "KMAGENT 1"
+while read -r op a b c; do
+    status=0
+    file=
+    : >"$out"
+    case "$op" in
+        ping)
+            ;;
+        exists)
+            test -e "$(dec "$a")" || status=1
+            ;;
+        stat)
+            p=$(dec "$a")
+            if stat -c '%F:%s:%A:%Y:%U:%G' -- "$p" >"$out" 2>&1; then
+                if [ -L "$p" ]; then
+                    readlink -- "$p" >>"$out"
+                fi
+            else
+                status=1
+            fi
+            ;;
+        sha1)
+            sha1sum <"$(dec "$a")" >"$out" 2>&1 || status=$?
+            ;;
+        read)
+            cat -- "$(dec "$a")" >"$out" 2>"$err" || { status=$?; cat "$err" >"$out"; }
+            ;;
+        write)
+            p=$(dec "$a")
+            if w=$(mktemp "$(dirname -- "$p")/.kmtmpXXXXXX" 2>"$err"); then
+                head -c "$b" >"$w"
+                # like uploads, the file is only replaced if its ownership and mode could be kept
+                if [ -e "$p" ]; then
+                    chown --reference="$p" -- "$w" && chmod --reference="$p" -- "$w"
+                fi >"$out" 2>&1 || status=$?
+                if [ "$status" -eq 0 ]; then
+                    mv -f -- "$w" "$p" >>"$out" 2>&1 || status=$?
+                fi
+                [ "$status" -eq 0 ] || rm -f -- "$w"
+            else
+                status=1
+                head -c "$b" >/dev/null
+                cat "$err" >"$out"
+            fi
+            ;;
+        chmod)
+            chmod "$(dec "$a")" -- "$(dec "$b")" >"$out" 2>&1 || status=$?
+            ;;
+        chown)
+            chown "$(dec "$a")" -- "$(dec "$b")" >"$out" 2>&1 || status=$?
+            ;;
+        mkdir)
+            mkdir -- "$(dec "$a")" >"$out" 2>&1 || status=$?
+            ;;
+        mkdirs)
+            mkdir -p -- "$(dec "$a")" >"$out" 2>&1 || status=$?
+            ;;
+        delete)
+            p=$(dec "$a")
+            if [ "$(dec "$b")" = "r" ]; then
+                rm -rf -- "$p" >"$out" 2>&1 || status=$?
+            else
+                rm -f -- "$p" >"$out" 2>&1 || rmdir -- "$p" >"$out" 2>&1 || status=$?
+            fi
+            ;;
+        exec)
+            t=$(dec "$b")
+            if [ "${t:-0}" -gt 0 ]; then
+                timeout -k 5 "$t" bash -c "$(dec "$a")" </dev/null >"$out" 2>&1
+            else
+                bash -c "$(dec "$a")" </dev/null >"$out" 2>&1
+            fi
+            status=$?
+            m=$(dec "$c")
+            if [ -n "$m" ] && [ "$(stat -c %s "$out")" -gt "$m" ]; then
+                k=$out
+                out=$(mktemp) || exit 1
+                printf '%s' "$k" >"$out"
+                file=" file"
+            fi
+            ;;
+        quit)
+            exit 0
+            ;;
+        *)
+            status=127
+            echo "Unknown operation: $op" >"$out"
+            ;;
+    esac
+    printf '%s %s%s\n' "$status" "$(stat -c %s "$out")" "$file"
+    cat "$out"
+done
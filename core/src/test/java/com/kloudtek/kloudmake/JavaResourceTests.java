@@ -8,15 +8,18 @@ import com.kloudtek.kloudmake.annotation.*;
 import com.kloudtek.kloudmake.exception.FieldInjectionException;
 import com.kloudtek.kloudmake.exception.MissingAlternativeException;
 import com.kloudtek.kloudmake.host.Host;
+import com.kloudtek.kloudmake.host.HostProvider;
 import com.kloudtek.kloudmake.host.LinuxMetadataProvider;
 import com.kloudtek.kloudmake.host.OperatingSystem;
 import com.kloudtek.kloudmake.service.credstore.CredStore;
+import com.kloudtek.kloudmake.java.EnforceOnlyIfOS;
 import com.kloudtek.kloudmake.service.filestore.FileStore;
 import com.kloudtek.kloudmake.util.ReflectionHelper;
 import org.testng.annotations.Test;
 
 import java.util.List;
 
+import static org.mockito.Mockito.*;
 import static org.testng.Assert.*;
 
 public class JavaResourceTests extends AbstractContextTest {
@@ -422,6 +425,32 @@ public class JavaResourceTests extends AbstractContextTest {
         }
     }
 
+    @Test
+    public void testOnlyIfOSMemoisedPerHost() throws Throwable {
+        HostProvider linux = mock(HostProvider.class);
+        when(linux.getOperatingSystem()).thenReturn(OperatingSystem.LINUX);
+        Host host1 = mock(Host.class);
+        when(host1.getMetadata()).thenReturn(linux);
+        Host host2 = mock(Host.class);
+        when(host2.getMetadata()).thenReturn(linux);
+        Resource r1 = mock(Resource.class);
+        when(r1.getHost()).thenReturn(host1);
+        Resource r2 = mock(Resource.class);
+        when(r2.getHost()).thenReturn(host1);
+        Resource r3 = mock(Resource.class);
+        when(r3.getHost()).thenReturn(host2);
+        EnforceOnlyIfOS onlyIf = new EnforceOnlyIfOS(new OperatingSystem[]{OperatingSystem.LINUX});
+        assertTrue(onlyIf.execAllowed(ctx, r1));
+        assertTrue(onlyIf.execAllowed(ctx, r2));
+        assertTrue(onlyIf.execAllowed(ctx, r3));
+        verify(host1, times(1)).getMetadata();
+        verify(host2, times(1)).getMetadata();
+        EnforceOnlyIfOS onlyWindows = new EnforceOnlyIfOS(new OperatingSystem[]{OperatingSystem.WINDOWS});
+        assertFalse(onlyWindows.execAllowed(ctx, r1));
+        assertFalse(onlyWindows.execAllowed(ctx, r2));
+        verify(host1, times(2)).getMetadata();
+    }
+
     @Test
     public void testResourceUsingCustomOnlyIf() throws Throwable {
         register(CustomerOnlyIf1.class, "onlyifcustom");
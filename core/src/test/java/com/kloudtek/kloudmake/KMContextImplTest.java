@@ -13,6 +13,9 @@ import com.kloudtek.kloudmake.host.LocalHost;
 import org.mockito.Mockito;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static org.mockito.Mockito.verify;
@@ -20,6 +23,13 @@ import static org.mockito.Mockito.when;
 import static org.testng.Assert.*;
 
 public class KMContextImplTest extends AbstractContextTest {
+    @Test
+    public void testLibrariesLoadedOnFirstResource() throws Throwable {
+        assertTrue(ctx.getLibraries().isEmpty());
+        resourceManager.createResource("core.file");
+        assertEquals(ctx.getLibraries().size(), 1);
+    }
+
     @Test
     public void testSimpleElementCreation() throws Throwable {
         createTestResource("test1");
@@ -72,6 +82,48 @@ public class KMContextImplTest extends AbstractContextTest {
         assertContainsSame(test3_child1.getIndirectDependencies(), test3);
     }
 
+    @Test
+    public void testResourceGraphFrozenDuringExecution() throws Throwable {
+        final Resource parent = createTestResource("parent");
+        final Resource child = createChildTestResource("child", parent);
+        final Resource dependent = createTestResource("dependent", parent);
+        final ArrayList<List<Resource>> seen = new ArrayList<>();
+        final Resource[][] dependents = new Resource[1][];
+        parent.addTask(new AbstractTask() {
+            @Override
+            public void execute(KMContextImpl context, Resource resource) throws KMRuntimeException {
+                seen.add(context.frozenResources);
+                seen.add(context.getResourceManager().getResources());
+                seen.add(context.getResourceManager().getChildrens(parent));
+                dependents[0] = ((ResourceImpl) parent).frozenDependents;
+            }
+        });
+        execute();
+        assertEquals(seen.size(), 3);
+        List<Resource> frozen = seen.get(0);
+        assertNotNull(frozen);
+        assertSame(seen.get(1), frozen);
+        assertContainsSame(frozen, parent, child, dependent);
+        assertEquals(seen.get(2), Collections.singletonList(child));
+        // childrens depend on their parent
+        assertContainsSame(Arrays.asList(dependents[0]), dependent, child);
+        // the snapshot is released after execution
+        assertNull(ctx.frozenResources);
+        assertNull(((ResourceImpl) parent).frozenChildrens);
+        assertNull(((ResourceImpl) parent).frozenDependents);
+        assertNotSame(resourceManager.getResources(), frozen);
+    }
+
+    @Test
+    public void testSetCreateAllowedReleasesLock() throws Throwable {
+        resourceManager.setCreateAllowed(false);
+        assertFalse(ctx.resourceListLock.isWriteLocked());
+        resourceManager.setCreateAllowed(true);
+        assertFalse(ctx.resourceListLock.isWriteLocked());
+        execute();
+        assertFalse(ctx.resourceListLock.isWriteLocked());
+    }
+
     @Test
     public void testDependenciesSetAsBeforeAttr() throws Throwable {
         Resource r1 = createTestResource();
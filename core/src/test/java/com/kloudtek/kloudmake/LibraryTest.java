@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake;
+
+import com.kloudtek.util.io.IOUtils;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.testng.Assert.*;
+
+public class LibraryTest {
+    @Test
+    public void testMayContainPackage() throws Exception {
+        File jar = createJar("com/kloudtek/kloudmake/resource/vagrant/package-info.class");
+        Library library = new Library(jar);
+        try {
+            assertTrue(library.mayContainPackage("vagrant"));
+            assertTrue(library.mayContainPackage("com.kloudtek.kloudmake.resource.vagrant"));
+            assertTrue(library.mayContainPackage("org.other"));
+            assertFalse(library.mayContainPackage("tomcat"));
+            assertFalse(library.mayContainPackage("org.missing"));
+        } finally {
+            library.close();
+            assertTrue(jar.delete());
+        }
+    }
+
+    @Test
+    public void testMayContainService() throws Exception {
+        File jar = createJar("com/kloudtek/kloudmake/service/filestore/FileStore.class",
+                "com/kloudtek/kloudmake/resource/vagrant/package-info.class");
+        Library library = new Library(jar);
+        try {
+            assertTrue(library.mayContainService("filestore"));
+            assertTrue(library.mayContainService("lfile"));
+            assertFalse(library.mayContainService("credstore"));
+            assertFalse(library.mayContainService("password"));
+        } finally {
+            library.close();
+            assertTrue(jar.delete());
+        }
+    }
+
+    /**
+     * Create a jar containing classes from the classpath, as well as an unrelated file in the org.other package.
+     */
+    private File createJar(String... classes) throws IOException {
+        File jar = File.createTempFile("kmlib", ".jar");
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(jar))) {
+            for (String name : classes) {
+                try (InputStream is = getClass().getClassLoader().getResourceAsStream(name)) {
+                    zip.putNextEntry(new ZipEntry(name));
+                    zip.write(IOUtils.toByteArray(is));
+                }
+            }
+            zip.putNextEntry(new ZipEntry("org/other/foo.txt"));
+            zip.write(new byte[]{0});
+        }
+        return jar;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake;
+
+import com.kloudtek.kloudmake.exception.KMRuntimeException;
+import com.kloudtek.kloudmake.exception.MissingAlternativeException;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class ResourceImplTest extends AbstractContextTest {
+    @Test
+    public void testTaskPlans() throws Exception {
+        ResourceImpl resource = (ResourceImpl) createTestResource();
+        List<String> executed = new ArrayList<>();
+        resource.addTask(new RecordingTask(executed, "exec2", 2, Stage.EXECUTE, false, null, true));
+        resource.addTask(new RecordingTask(executed, "exec1", 1, Stage.EXECUTE, false, null, true));
+        resource.addTask(new RecordingTask(executed, "post", 0, Stage.EXECUTE, true, null, true));
+        resource.addTask(new RecordingTask(executed, "cleanup", 0, Stage.CLEANUP, false, null, true));
+        resource.addTask(new RecordingTask(executed, "altunsupported", 0, Stage.EXECUTE, false, "alt", false));
+        resource.addTask(new RecordingTask(executed, "altsupported", 0, Stage.EXECUTE, false, "alt", true));
+        resource.sortTasks();
+        resource.executeTasks(Stage.EXECUTE, false);
+        assertEquals(executed, Arrays.asList("exec2", "exec1", "altsupported"));
+        executed.clear();
+        resource.executeTasks(Stage.EXECUTE, true);
+        resource.executeTasks(Stage.CLEANUP, false);
+        resource.executeTasks(Stage.INIT, false);
+        assertEquals(executed, Arrays.asList("post", "cleanup"));
+    }
+
+    @Test
+    public void testTaskAddedAfterSort() throws Exception {
+        ResourceImpl resource = (ResourceImpl) createTestResource();
+        List<String> executed = new ArrayList<>();
+        resource.addTask(new RecordingTask(executed, "first", 1, Stage.EXECUTE, false, null, true));
+        resource.sortTasks();
+        resource.addTask(new RecordingTask(executed, "added", 0, Stage.EXECUTE, false, null, true));
+        resource.executeTasks(Stage.EXECUTE, false);
+        assertEquals(executed, Arrays.asList("first", "added"));
+    }
+
+    @Test(expectedExceptions = MissingAlternativeException.class)
+    public void testMissingAlternative() throws Exception {
+        ResourceImpl resource = (ResourceImpl) createTestResource();
+        List<String> executed = new ArrayList<>();
+        resource.addTask(new RecordingTask(executed, "supported", 0, Stage.EXECUTE, false, "alt1", true));
+        resource.addTask(new RecordingTask(executed, "unsupported", 0, Stage.EXECUTE, false, "alt2", false));
+        resource.sortTasks();
+        resource.executeTasks(Stage.EXECUTE, false);
+    }
+
+    private static class RecordingTask extends AbstractTask {
+        private final List<String> executed;
+        private final String name;
+        private final boolean supported;
+
+        private RecordingTask(List<String> executed, String name, int order, Stage stage, boolean postChildren, String alternative, boolean supported) {
+            super(order, stage, postChildren);
+            this.executed = executed;
+            this.name = name;
+            this.alternative = alternative;
+            this.supported = supported;
+        }
+
+        @Override
+        public boolean supports(KMContextImpl context, Resource resource) throws KMRuntimeException {
+            return supported;
+        }
+
+        @Override
+        public void execute(KMContextImpl context, Resource resource) throws KMRuntimeException {
+            executed.add(name);
+        }
+    }
+}
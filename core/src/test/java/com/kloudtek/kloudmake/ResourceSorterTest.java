@@ -10,6 +10,7 @@ import org.testng.annotations.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public class ResourceSorterTest {
@@ -86,4 +87,21 @@ public class ResourceSorterTest {
         // Circular dependency: DataFile[7] -> DataFile[11] -> DataFile[2] -> DataFile[7]
         // Circular dependency: DataFile[7] -> DataFile[11] -> DataFile[2] -> DataFile[7]
     }
+
+    @Test
+    public void testSortKeepsCreationOrder() throws Exception {
+        KMContextImpl ctx = new KMContextImpl();
+        ResourceDefinition rf = new ResourceDefinition("test", "file");
+        ResourceImpl one = new ResourceImpl(ctx, rf, null, null, null);
+        ResourceImpl two = new ResourceImpl(ctx, rf, null, null, null);
+        ResourceImpl three = new ResourceImpl(ctx, rf, null, null, null);
+        ResourceImpl four = new ResourceImpl(ctx, rf, null, null, null);
+        four.dependencies.add(three);
+        List<Resource> list = new ArrayList<Resource>(Arrays.asList(one, two, three, four));
+        ResourceSorter.sort(list);
+        Assert.assertEquals(list, Arrays.asList(one, two, three, four));
+        list = new ArrayList<Resource>(Arrays.asList(one, two, three, four));
+        ResourceSorter.sort(list, Collections.<Resource>singleton(one));
+        Assert.assertEquals(list, Arrays.asList(two, three, four, one));
+    }
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.testng.Assert.*;
+
+public class ServiceManagerImplTest extends AbstractContextTest {
+    @Test
+    public void testMissingServiceRegistered() throws Exception {
+        ServiceManagerImpl serviceManager = (ServiceManagerImpl) ctx.getServiceManager();
+        assertNull(serviceManager.getService("testsvc"));
+        assertTrue(serviceManager.isMissing("testsvc"));
+        Object service = new Object();
+        serviceManager.registerService("testsvc", service);
+        assertFalse(serviceManager.isMissing("testsvc"));
+        assertSame(serviceManager.getService("testsvc"), service);
+        assertNull(serviceManager.getService("assigned"));
+        serviceManager.assignService("assigned", service);
+        assertSame(serviceManager.getService("Assigned"), service);
+    }
+
+    @Test
+    public void testMissingServiceLibraryRegistered() throws Exception {
+        ServiceManagerImpl serviceManager = (ServiceManagerImpl) ctx.getServiceManager();
+        assertNull(serviceManager.getService("testsvc"));
+        assertTrue(serviceManager.isMissing("testsvc"));
+        File libDir = Files.createTempDirectory("kmlib").toFile();
+        try {
+            ctx.registerLibrary(libDir);
+            assertFalse(serviceManager.isMissing("testsvc"));
+            assertNull(serviceManager.getService("testsvc"));
+            assertTrue(serviceManager.isMissing("testsvc"));
+        } finally {
+            assertTrue(libDir.delete());
+        }
+    }
+
+    @Test
+    public void testOverrides() throws Exception {
+        ServiceManagerImpl serviceManager = (ServiceManagerImpl) ctx.getServiceManager();
+        Object service = new Object();
+        Object first = new Object();
+        Object second = new Object();
+        serviceManager.registerService("testsvc", service);
+        serviceManager.addOverride("testsvc", first);
+        serviceManager.addOverride("TestSvc", second);
+        assertSame(serviceManager.getService("testsvc"), second);
+        serviceManager.removeOverride("testsvc", second);
+        assertSame(serviceManager.getService("testsvc"), first);
+        serviceManager.addOverride("testsvc", second);
+        serviceManager.removeOverride("testsvc", first);
+        assertSame(serviceManager.getService("testsvc"), second);
+        serviceManager.removeOverride("testsvc", second);
+        assertSame(serviceManager.getService("testsvc"), service);
+    }
+}
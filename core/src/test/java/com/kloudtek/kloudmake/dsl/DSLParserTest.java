@@ -13,6 +13,7 @@ import com.kloudtek.kloudmake.annotation.Function;
 import com.kloudtek.kloudmake.annotation.Param;
 import com.kloudtek.kloudmake.exception.InvalidQueryException;
 import com.kloudtek.kloudmake.exception.KMRuntimeException;
+import com.kloudtek.kloudmake.exception.MethodInvocationException;
 import com.kloudtek.kloudmake.host.LocalHost;
 import com.kloudtek.util.ReflectionUtils;
 import org.testng.annotations.Test;
@@ -162,6 +163,63 @@ public class DSLParserTest extends AbstractContextTest {
         assertEquals(service.a5, true);
     }
 
+    @Test
+    public void testInvokeMethodDefaultsAndConversion() throws Throwable {
+        CallTestService service = registerService(CallTestService.class);
+        executeDSL("convert(42)");
+        assertEquals(service.calls, "42,true,1.5");
+        executeDSL("convert('7', ratio=2.25, flag=false)");
+        assertEquals(service.calls, "42,true,1.5;7,false,2.25");
+    }
+
+    @Test
+    public void testInvokeMethodBindingReused() throws Throwable {
+        CallTestService service = registerService(CallTestService.class);
+        ctx.runScript("def rtest { convert(5, ratio=3) } rtest(id='a') {} rtest(id='b') {}");
+        execute();
+        assertEquals(service.calls, "5,true,3.0;5,true,3.0");
+    }
+
+    @Test
+    public void testInvokeMethodTooManyArguments() throws Throwable {
+        registerService(CallTestService.class);
+        try {
+            executeDSL("convert(1, true, 2, 'extra')");
+            fail("Method invoked with too many arguments");
+        } catch (ScriptException e) {
+            assertNotNull(getCause(e, MethodInvocationException.class));
+        }
+    }
+
+    @Test
+    public void testInvokeMethodErrors() throws Throwable {
+        registerService(CallTestService.class);
+        try {
+            executeDSL("fail(true)");
+            fail("Method didn't fail");
+        } catch (ScriptException e) {
+            // KMRuntimeExceptions are passed through as is
+            KMRuntimeException cause = getCause(e, KMRuntimeException.class);
+            assertEquals(cause.getMessage(), "checked failure");
+            assertNull(cause.getCause());
+        }
+        try {
+            executeDSL("fail(false)");
+            fail("Method didn't fail");
+        } catch (ScriptException e) {
+            assertTrue(getCause(e, KMRuntimeException.class).getCause() instanceof IllegalStateException);
+        }
+    }
+
+    private static <X extends Throwable> X getCause(Throwable e, Class<X> type) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (type.isInstance(cause)) {
+                return type.cast(cause);
+            }
+        }
+        return null;
+    }
+
     @Test()
     public void testVarSubFromParentsAttrs() throws Throwable {
         ctx.runScript("test.test(id='parent',attr='val') { test.test(id='child',a='foo',b=\"${a}\",c='$a',d=$a,e=$attr,f=\"${attr}bar\",g=\"bla\\${a}b\\\\o\",h='${attr}') {} }");
@@ -203,6 +261,26 @@ public class DSLParserTest extends AbstractContextTest {
         assertEquals(((Collection<?>) ReflectionUtils.get(ctx, "resources")).size(), 2);
     }
 
+    public static class CallTestService {
+        private String calls;
+
+        @Function("convert")
+        public synchronized void convert(@Param("count") int count, @Param("flag") @Default("true") boolean flag,
+                                         @Param("ratio") @Default("1.5") double ratio) {
+            String call = count + "," + flag + "," + ratio;
+            calls = calls != null ? calls + ";" + call : call;
+        }
+
+        @Function("fail")
+        public void fail(@Param("checked") boolean checked) throws KMRuntimeException {
+            if (checked) {
+                throw new KMRuntimeException("checked failure");
+            } else {
+                throw new IllegalStateException("unchecked failure");
+            }
+        }
+    }
+
     public static class TestService {
         private String a1;
         private String a2;
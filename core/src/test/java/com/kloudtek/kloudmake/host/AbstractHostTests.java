@@ -21,9 +21,13 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import static com.kloudtek.kloudmake.host.FileInfo.Type.*;
 import static com.kloudtek.kloudmake.host.Host.Logging.YES;
@@ -128,6 +132,90 @@ public abstract class AbstractHostTests {
         assertEquals(result.getRetCode(), 0);
     }
 
+    @Test(dependsOnMethods = "testWriteFileByteArraySuccessful")
+    public void testBatch() throws KMRuntimeException {
+        TestFile file = new TestFile().writeTestData();
+        TestFile dir = new TestFile();
+        long roundTrips = ((AbstractHost) host).getRoundTrips();
+        List<ExecutionResult> results = host.batch().exec("ls " + file.path).mkdirs(dir.path)
+                .exec("echo -n foo; exit 3", 3).execute();
+        assertEquals(((AbstractHost) host).getRoundTrips(), roundTrips + 1);
+        assertEquals(results.size(), 3);
+        assertEquals(normalize(results.get(0).getOutput()), file.path);
+        assertEquals(results.get(1).getRetCode(), 0);
+        assertEquals(results.get(2).getOutput(), "foo");
+        assertEquals(results.get(2).getRetCode(), 3);
+        dir.assertIsDir();
+    }
+
+    @Test(expectedExceptions = KMRuntimeException.class)
+    public void testBatchFailure() throws KMRuntimeException {
+        host.batch().exec("ls sfdafadsfsda").exec("true").execute();
+    }
+
+    @Test
+    public void testLargeBatch() throws KMRuntimeException {
+        // larger than the maximum length of a single command argument
+        StringBuilder data = new StringBuilder();
+        while (data.length() < 200000) {
+            data.append("0123456789");
+        }
+        List<ExecutionResult> results = host.batch().exec("x=" + data + "; echo ${#x}").exec("echo done").execute();
+        assertEquals(results.get(0).getOutput().trim(), Integer.toString(data.length()));
+        assertEquals(results.get(1).getOutput().trim(), "done");
+    }
+
+    @Test(dependsOnMethods = "testWriteFileByteArraySuccessful")
+    public void testBulkFileInfosAndSha1s() throws KMRuntimeException {
+        TestFile file = new TestFile().writeTestData();
+        TestFile dir = new TestFile().mkdir();
+        TestFile missing = new TestFile();
+        List<String> paths = Arrays.asList(file.path, dir.path, missing.path);
+        Map<String, FileInfo> infos = host.getFileInfos(paths);
+        assertEquals(infos.size(), 2);
+        assertEquals(infos.get(file.path).getType(), FILE);
+        assertEquals(infos.get(file.path).getSize(), testData1.length);
+        assertEquals(infos.get(dir.path).getType(), DIRECTORY);
+        Map<String, byte[]> sha1s = host.getFileSha1s(paths);
+        assertEquals(sha1s.size(), 1);
+        assertEquals(sha1s.get(file.path), testData1Sha);
+    }
+
+    @Test(dependsOnMethods = "testWriteFileByteArraySuccessful")
+    public void testAsyncOperations() throws KMRuntimeException {
+        TestFile file1 = new TestFile();
+        TestFile file2 = new TestFile();
+        CompletableFuture<Void> write1 = host.writeToFileAsync(file1.path, testData1);
+        CompletableFuture<Void> write2 = host.writeToFileAsync(file2.path, new ByteArrayInputStream(testData2));
+        CompletableFuture<String> exec = host.execAsync("echo async");
+        AbstractHost.await(CompletableFuture.allOf(write1, write2));
+        CompletableFuture<FileInfo> info = host.getFileInfoAsync(file1.path);
+        CompletableFuture<byte[]> sha1 = host.getFileSha1Async(file1.path);
+        CompletableFuture<byte[]> data = host.readFileDataAsync(file2.path);
+        assertEquals(AbstractHost.await(info).getSize(), testData1.length);
+        assertEquals(AbstractHost.await(sha1), testData1Sha);
+        assertEquals(AbstractHost.await(data), testData2);
+        assertEquals(AbstractHost.await(exec), "async\n");
+        assertFalse(AbstractHost.await(host.fileExistsAsync(new TestFile().path)));
+        try {
+            AbstractHost.await(host.execAsync("ls sfdafadsfsda", 0, YES));
+            fail("Failed command didn't throw an exception");
+        } catch (KMRuntimeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testConcurrentExecAsync() throws KMRuntimeException {
+        ArrayList<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            results.add(host.execAsync("echo " + i));
+        }
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(AbstractHost.await(results.get(i)), i + "\n");
+        }
+    }
+
     private String normalize(String str) {
         StringBuilder txt = new StringBuilder();
         for (char c : str.toCharArray()) {
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.kloudtek.kryptotek.DigestUtils;
+import org.testng.annotations.Test;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+public class CachingHostTest {
+    @Test
+    public void testFileExistsCached() throws Exception {
+        Host wrapped = mock(Host.class);
+        when(wrapped.fileExists("/foo")).thenReturn(true);
+        CachingHost host = new CachingHost(wrapped);
+        assertTrue(host.fileExists("/foo"));
+        assertTrue(host.fileExists("/foo"));
+        verify(wrapped, times(1)).fileExists("/foo");
+    }
+
+    @Test
+    public void testExecInvalidates() throws Exception {
+        Host wrapped = mock(Host.class);
+        when(wrapped.fileExists("/foo")).thenReturn(false);
+        CachingHost host = new CachingHost(wrapped);
+        assertFalse(host.fileExists("/foo"));
+        host.execReadOnly("ls /", null, null);
+        assertFalse(host.fileExists("/foo"));
+        verify(wrapped, times(1)).fileExists("/foo");
+        host.exec("touch /foo");
+        when(wrapped.fileExists("/foo")).thenReturn(true);
+        assertTrue(host.fileExists("/foo"));
+        verify(wrapped, times(2)).fileExists("/foo");
+    }
+
+    @Test
+    public void testWriteThrough() throws Exception {
+        Host wrapped = mock(Host.class);
+        when(wrapped.fileExists(anyString())).thenReturn(false);
+        CachingHost host = new CachingHost(wrapped);
+        assertFalse(host.fileExists("/foo"));
+        assertFalse(host.fileExists("/foo/bar"));
+        byte[] data = "hello".getBytes();
+        host.writeToFile("/foo/bar", data);
+        assertTrue(host.fileExists("/foo/bar"));
+        assertEquals(host.getFileSha1("/foo/bar"), DigestUtils.sha1(data));
+        assertTrue(host.fileIsSame("/foo/bar", "hello"));
+        verify(wrapped, never()).getFileSha1(anyString());
+        // the parent was created along with the file, so it must be checked again
+        host.fileExists("/foo");
+        verify(wrapped, times(2)).fileExists("/foo");
+        host.deleteFile("/foo", true);
+        assertFalse(host.fileExists("/foo/bar"));
+        assertFalse(host.fileExists("/foo"));
+        verify(wrapped, times(2)).fileExists("/foo");
+    }
+}
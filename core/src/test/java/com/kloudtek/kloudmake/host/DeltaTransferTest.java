@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.kloudtek.util.io.IOUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static com.kloudtek.kloudmake.host.Host.Logging.NO;
+import static org.testng.Assert.*;
+
+/**
+ * Runs the delta helper locally to check the encoding, and reports the size of the delta for common edits.
+ */
+public class DeltaTransferTest {
+    private static final int SIZE = 1024 * 1024;
+    private File dir;
+    private File helper;
+    private byte[] original;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("kmdelta").toFile();
+        helper = new File(dir, DeltaTransfer.HELPER);
+        try (InputStream is = DeltaTransfer.getHelper(); FileOutputStream os = new FileOutputStream(helper)) {
+            IOUtils.copy(is, os);
+        }
+        original = new byte[SIZE];
+        new Random(42).nextBytes(original);
+    }
+
+    @AfterMethod
+    public void cleanup() throws Exception {
+        new ProcessBuilder("rm", "-rf", dir.getPath()).start().waitFor();
+    }
+
+    @Test
+    public void testUnchanged() throws Exception {
+        assertTrue(transfer("unchanged", original) < 100);
+    }
+
+    @Test
+    public void testAppend() throws Exception {
+        byte[] data = new byte[SIZE + 1000];
+        System.arraycopy(original, 0, data, 0, SIZE);
+        assertTrue(transfer("append", data) < 2000);
+    }
+
+    @Test
+    public void testInsert() throws Exception {
+        byte[] data = new byte[SIZE + 7];
+        System.arraycopy(original, 0, data, 0, 1000);
+        System.arraycopy(original, 1000, data, 1007, SIZE - 1000);
+        assertTrue(transfer("insert", data) < 10000);
+    }
+
+    @Test
+    public void testModify() throws Exception {
+        byte[] data = original.clone();
+        for (int i = 0; i < 10; i++) {
+            data[i * 100000] ^= 1;
+        }
+        assertTrue(transfer("modify", data) < 10 * 5000);
+    }
+
+    @Test
+    public void testTruncate() throws Exception {
+        byte[] data = new byte[SIZE / 2 - 3];
+        System.arraycopy(original, SIZE / 2 + 3, data, 0, data.length);
+        assertTrue(transfer("truncate", data) < 5000);
+    }
+
+    @Test
+    public void testGeneratedCommands() throws Exception {
+        // runs the commands SshHost sends, so that a broken command doesn't go unnoticed as a whole file upload
+        LocalHost host = LocalHost.createStandalone();
+        File file = new File(dir, "file");
+        Files.write(file.toPath(), original);
+        ExecutionResult sig = host.exec(SshHost.deltaSignatureCommand(helper.getPath(), file.getPath()), 0, NO);
+        DeltaTransfer.Signature signature = DeltaTransfer.parseSignature(sig.getOutput());
+        assertEquals(signature.getSize(), SIZE);
+        byte[] data = original.clone();
+        data[SIZE / 2] ^= 1;
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        DeltaTransfer.encode(signature, ByteBuffer.wrap(data), delta);
+        String tmpfile = new File(dir, "tmp").getPath();
+        String cmd = SshHost.deltaPatchCommand(helper.getPath(), file.getPath(), tmpfile, signature.getBlockSize(), null);
+        ExecutionResult result = host.exec(cmd, null, 0, NO, null, null, null, new ByteArrayInputStream(delta.toByteArray()));
+        assertEquals(result.getRetCode(), 0);
+        assertEquals(Files.readAllBytes(file.toPath()), data);
+        assertFalse(new File(tmpfile).exists());
+        assertNotEquals(host.exec(SshHost.deltaSignatureCommand(helper.getPath(), tmpfile), null, NO).getRetCode(), 0);
+    }
+
+    @Test
+    public void testBlobCacheLookup() throws Exception {
+        LocalHost host = LocalHost.createStandalone();
+        File file = new File(dir, "file");
+        Files.write(file.toPath(), original);
+        File blob = new File(dir, "blob");
+        // a miss returns the signature of the file being replaced
+        String script = SshHost.largeFileLookupScript(file.getPath(), blob.getPath(), helper.getPath());
+        ExecutionResult result = host.execScript(script, Host.ScriptType.BASH, 60000, null, NO, null);
+        assertEquals(result.getRetCode(), 10);
+        assertEquals(DeltaTransfer.parseSignature(result.getOutput()).getSize(), SIZE);
+        // writing the file adds it to the cache
+        byte[] data = "cached".getBytes(StandardCharsets.UTF_8);
+        File tmpfile = new File(dir, "tmp");
+        Files.write(tmpfile.toPath(), data);
+        assertEquals(host.exec(SshHost.replaceCommand(file.getPath(), tmpfile.getPath(), blob.getPath()), null, NO).getRetCode(), 0);
+        assertEquals(Files.readAllBytes(blob.toPath()), data);
+        // a hit copies it from there
+        Files.write(file.toPath(), original);
+        result = host.execScript(script, Host.ScriptType.BASH, 60000, null, NO, null);
+        assertEquals(result.getRetCode(), 0);
+        assertEquals(Files.readAllBytes(file.toPath()), data);
+        assertEquals(host.execScript(SshHost.largeFileLookupScript(new File(dir, "missing").getPath(), null, helper.getPath()),
+                Host.ScriptType.BASH, 60000, null, NO, null).getRetCode(), 11);
+    }
+
+    private long transfer(String name, byte[] data) throws Exception {
+        File old = new File(dir, "old");
+        File patched = new File(dir, "new");
+        Files.write(old.toPath(), original);
+        Process sig = new ProcessBuilder("python3", helper.getPath(), "sig", old.getPath()).start();
+        String output = new String(IOUtils.toByteArray(sig.getInputStream()), StandardCharsets.UTF_8);
+        assertEquals(sig.waitFor(), 0);
+        DeltaTransfer.Signature signature = DeltaTransfer.parseSignature(output);
+        assertEquals(signature.getSize(), SIZE);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        long size = DeltaTransfer.encode(signature, ByteBuffer.wrap(data), delta);
+        assertEquals(size, delta.size());
+        Process patch = new ProcessBuilder("python3", helper.getPath(), "patch", old.getPath(), patched.getPath(),
+                Integer.toString(signature.getBlockSize())).start();
+        patch.getOutputStream().write(delta.toByteArray());
+        patch.getOutputStream().close();
+        assertEquals(patch.waitFor(), 0);
+        assertEquals(Files.readAllBytes(patched.toPath()), data);
+        System.out.println("Delta for " + name + ": " + size + " bytes (file is " + data.length + " bytes)");
+        return size;
+    }
+}
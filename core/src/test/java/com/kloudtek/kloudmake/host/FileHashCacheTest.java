@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.kloudtek.kryptotek.DigestUtils;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.testng.Assert.*;
+
+public class FileHashCacheTest {
+    @Test
+    public void testIndexedUntilChanged() throws Exception {
+        File index = File.createTempFile("kmhashes", ".idx");
+        Path file = File.createTempFile("kmtest", ".txt").toPath();
+        try {
+            assertTrue(index.delete());
+            FileTime modified = FileTime.fromMillis(System.currentTimeMillis() - 60000);
+            Files.write(file, "hello".getBytes());
+            Files.setLastModifiedTime(file, modified);
+            assertEquals(new FileHashCache(index).getSha1(file), DigestUtils.sha1("hello".getBytes()));
+            // same size and modification time, so the indexed checksum is still used (even after reloading the index)
+            Files.write(file, "world".getBytes());
+            Files.setLastModifiedTime(file, modified);
+            FileHashCache cache = new FileHashCache(index);
+            assertEquals(cache.getSha1(file), DigestUtils.sha1("hello".getBytes()));
+            Files.setLastModifiedTime(file, FileTime.fromMillis(modified.toMillis() + 1000));
+            assertEquals(cache.getSha1(file), DigestUtils.sha1("world".getBytes()));
+        } finally {
+            Files.delete(file);
+            index.delete();
+        }
+    }
+
+    @Test
+    public void testRecentlyModifiedNotIndexed() throws Exception {
+        File index = File.createTempFile("kmhashes", ".idx");
+        Path file = File.createTempFile("kmtest", ".txt").toPath();
+        try {
+            assertTrue(index.delete());
+            Files.write(file, "hello".getBytes());
+            assertEquals(new FileHashCache(index).getSha1(file), DigestUtils.sha1("hello".getBytes()));
+            assertFalse(index.exists());
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.jcraft.jsch.HostKey;
+import com.jcraft.jsch.Session;
+import com.kloudtek.util.TempDir;
+import org.testng.annotations.Test;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+public class HostFactsTest {
+    @Test
+    public void testParse() {
+        HostFacts facts = HostFacts.parse("os=Linux\narch=x86_64\ndistribution=ubuntu\ninitSystem=systemd\n" +
+                "packageManager=apt-get\nuser=root\nhome=/root\ndistributionVersion=\n");
+        assertEquals(facts.getOperatingSystem(), OperatingSystem.LINUX);
+        assertEquals(facts.getArchitecture(), Architecture.AMD64);
+        assertEquals(facts.getDistribution(), "ubuntu");
+        assertEquals(facts.getInitSystem(), "systemd");
+        assertEquals(facts.getPackageManager(), "apt-get");
+        assertEquals(facts.getUser(), "root");
+        assertEquals(facts.getHome(), "/root");
+        assertNull(facts.getDistributionVersion());
+    }
+
+    @Test
+    public void testGatherLocal() throws Exception {
+        HostFacts facts = HostFacts.gather(new LocalHost());
+        assertEquals(facts.getOperatingSystem(), OperatingSystem.getSystemOS());
+        assertEquals(facts.getUser(), System.getProperty("user.name"));
+        assertNotNull(facts.getHome());
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        try (TempDir dir = new TempDir("hostfacts")) {
+            HostFactsCache cache = new HostFactsCache(dir, 60000);
+            assertNull(cache.get("ssh:root@host:22"));
+            cache.put("ssh:root@host:22", HostFacts.parse("os=Linux\nhome=/root\nworkingDir=/root/project"));
+            HostFacts facts = cache.get("ssh:root@host:22");
+            assertNotNull(facts);
+            assertEquals(facts.getOperatingSystem(), OperatingSystem.LINUX);
+            assertEquals(facts.getHome(), "/root");
+            // the working directory can change from one run to the next
+            assertNull(facts.getWorkingDir());
+            assertNull(cache.get("ssh:root@otherhost:22"));
+            cache.setTtl(-1);
+            assertNull(cache.get("ssh:root@host:22"));
+            cache.setTtl(60000);
+            cache.invalidate("ssh:root@host:22");
+            assertNull(cache.get("ssh:root@host:22"));
+        }
+    }
+
+    @Test
+    public void testSshIdentityIncludesHostKey() throws Exception {
+        SshHost host = new SshHost();
+        host.setAddress("127.0.0.1");
+        host.setPort(2222);
+        assertNull(host.getIdentity());
+        host.setSession(sessionWithHostKey("AAAAB3NzaC1yc2EAAAADAQABAAABAQC1"));
+        String identity = host.getIdentity();
+        assertNotNull(identity);
+        assertEquals(host.getIdentity(), identity);
+        // a new VM behind the same forwarded port has another host key
+        host.setSession(sessionWithHostKey("AAAAB3NzaC1yc2EAAAADAQABAAABAQC2"));
+        assertNotEquals(host.getIdentity(), identity);
+    }
+
+    private static Session sessionWithHostKey(String key) {
+        HostKey hostKey = mock(HostKey.class);
+        when(hostKey.getKey()).thenReturn(key);
+        Session session = mock(Session.class);
+        when(session.getHostKey()).thenReturn(hostKey);
+        return session;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.kloudtek.util.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Compares LocalHost's file operations with plain stream based ones, for files from 1KB to 1GB. Not run by default,
+ * use: mvn test -pl core -Dtest=LocalHostFileBenchmark -Dtest.excludedGroups=vagrant
+ */
+@Test(groups = "benchmark")
+public class LocalHostFileBenchmark {
+    private static final Logger logger = LoggerFactory.getLogger(LocalHostFileBenchmark.class);
+    private static final long[] SIZES = {1024, 1024 * 1024, 64 * 1024 * 1024, 1024 * 1024 * 1024};
+
+    public void benchmark() throws Exception {
+        LocalHost host = LocalHost.createStandalone();
+        for (long size : SIZES) {
+            File source = createFile(size);
+            File target = File.createTempFile("kmbench", ".bin");
+            try {
+                int runs = (int) Math.max(1, Math.min(100, 256L * 1024 * 1024 / size));
+                long start = System.nanoTime();
+                for (int i = 0; i < runs; i++) {
+                    try (FileInputStream is = new FileInputStream(source); FileOutputStream os = new FileOutputStream(target)) {
+                        IOUtils.copy(is, os);
+                    }
+                }
+                long streamCopy = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < runs; i++) {
+                    try (FileInputStream is = new FileInputStream(source)) {
+                        host.writeToFile(target.getPath(), is);
+                    }
+                }
+                long hostCopy = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < runs; i++) {
+                    MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                    try (FileInputStream is = new FileInputStream(source)) {
+                        byte[] buffer = new byte[8192];
+                        for (int len = is.read(buffer); len != -1; len = is.read(buffer)) {
+                            digest.update(buffer, 0, len);
+                        }
+                    }
+                    digest.digest();
+                }
+                long streamSha1 = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < runs; i++) {
+                    host.getFileSha1(source.getPath());
+                }
+                long hostSha1 = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < runs * 10; i++) {
+                    host.getFileInfo(source.getPath());
+                }
+                long info = System.nanoTime() - start;
+                logger.info(String.format("%,d bytes: copy %.2fms (stream %.2fms), sha1 %.2fms (stream %.2fms), info %.3fms",
+                        size, ms(hostCopy, runs), ms(streamCopy, runs), ms(hostSha1, runs), ms(streamSha1, runs), ms(info, runs * 10)));
+            } finally {
+                source.delete();
+                target.delete();
+            }
+        }
+    }
+
+    private static double ms(long nanos, int runs) {
+        return nanos / 1000000.0 / runs;
+    }
+
+    private static File createFile(long size) throws Exception {
+        File file = File.createTempFile("kmbench", ".bin");
+        byte[] block = new byte[1024 * 1024];
+        new Random().nextBytes(block);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            for (long written = 0; written < size; written += block.length) {
+                raf.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        return file;
+    }
+}
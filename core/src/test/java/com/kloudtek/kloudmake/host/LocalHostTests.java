@@ -4,8 +4,60 @@
 
 package com.kloudtek.kloudmake.host;
 
+import com.kloudtek.kryptotek.DigestUtils;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Random;
+
+import static org.testng.Assert.*;
+
 public class LocalHostTests extends AbstractHostTests {
     public LocalHostTests() {
         super(Type.LOCAL);
     }
+
+    @Test
+    public void testReplaceFilePreservesPermissions() throws Exception {
+        LocalHost host = LocalHost.createStandalone();
+        File file = File.createTempFile("kmtest", ".txt");
+        try {
+            Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-r-----"));
+            host.writeToFile(file.getPath(), "replaced");
+            assertEquals(host.readTextFile(file.getPath()), "replaced");
+            assertEquals(host.getFileInfo(file.getPath()).getPermissions(), "rw-r-----");
+            assertEquals(file.getParentFile().listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.startsWith("." + file.getName()) && name.endsWith(".kmtmp");
+                }
+            }).length, 0);
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testTransferFromLocalFileAndMappedSha1() throws Exception {
+        LocalHost host = LocalHost.createStandalone();
+        byte[] data = new byte[5 * 1024 * 1024];
+        new Random().nextBytes(data);
+        File source = File.createTempFile("kmtest", ".bin");
+        File target = File.createTempFile("kmtest", ".bin");
+        try {
+            Files.write(source.toPath(), data);
+            try (FileInputStream is = new FileInputStream(source)) {
+                host.writeToFile(target.getPath(), is);
+            }
+            assertEquals(Files.readAllBytes(target.toPath()), data);
+            assertEquals(host.getFileSha1(target.getPath()), DigestUtils.sha1(data));
+        } finally {
+            assertTrue(source.delete());
+            assertTrue(target.delete());
+        }
+    }
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static com.kloudtek.kloudmake.host.Host.Logging.NO;
+import static org.testng.Assert.*;
+
+public class LocalShellTest {
+    private LocalHost host;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setup() {
+        host = LocalHost.createStandalone();
+        host.setPersistentShell(true);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void cleanup() {
+        host.close();
+    }
+
+    @Test
+    public void testExec() throws Exception {
+        assertEquals(host.exec("echo hello"), "hello\n");
+        assertEquals(host.exec("printf 'no newline'"), "no newline");
+        assertEquals(host.exec("printf KMEND; echo \"it's\" quoted"), "KMENDit's quoted\n");
+        assertEquals(host.exec("echo error >&2"), "error\n");
+        assertEquals(host.exec("cd /; export FOO=bar; exit 0"), "");
+        assertEquals(host.exec("echo $FOO"), "\n");
+        assertEquals(host.exec("pwd", "/"), "/\n");
+        assertEquals(host.exec("read line; echo $?"), "1\n");
+        ExecutionResult result = host.exec("echo failed; exit 3", null, NO);
+        assertEquals(result.getRetCode(), 3);
+        assertEquals(result.getOutput(), "failed\n");
+        assertEquals(host.exec("echo after"), "after\n");
+    }
+
+    @Test
+    public void testTimeoutKillsCommand() throws Exception {
+        host.setDefaultTimeout(500);
+        long start = System.currentTimeMillis();
+        // the background sleep keeps the output open unless the whole process group is killed
+        ExecutionResult result = host.exec("sleep 600 & sleep 600", null, NO);
+        assertTrue(System.currentTimeMillis() - start < 10000, "Command wasn't killed on timeout");
+        assertNotEquals(result.getRetCode(), 0);
+        assertEquals(host.exec("echo alive"), "alive\n");
+    }
+
+    /**
+     * Reports the time taken to run the same commands with and without a persistent shell.
+     */
+    @Test(groups = "benchmark")
+    public void testForkOverhead() throws Exception {
+        int count = 200;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            host.exec("test -d " + File.separator);
+        }
+        long shell = System.nanoTime() - start;
+        host.setPersistentShell(false);
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            host.exec("test -d " + File.separator);
+        }
+        long fork = System.nanoTime() - start;
+        System.out.println(count + " commands: " + (shell / 1000000) + "ms with persistent shell, " + (fork / 1000000) + "ms with a process per command");
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.kloudtek.kloudmake.host.Host.Logging.NO;
+import static org.testng.Assert.*;
+
+public class OutputCaptureTest {
+    @Test
+    public void testInMemory() throws Exception {
+        final ArrayList<String> lines = new ArrayList<>();
+        OutputCapture capture = new OutputCapture(100, false, new OutputCapture.LineListener() {
+            @Override
+            public void onLine(String line) {
+                lines.add(line);
+            }
+        });
+        capture.write("hello\r\nwor".getBytes());
+        capture.write("ld\nlast".getBytes());
+        capture.close();
+        assertFalse(capture.isTruncated());
+        assertEquals(capture.getText(), "hello\r\nworld\nlast");
+        assertEquals(lines.toString(), "[hello, world, last]");
+    }
+
+    @Test
+    public void testHeadAndTail() throws Exception {
+        OutputCapture capture = new OutputCapture(10, false, null);
+        capture.write("0123456789".getBytes());
+        capture.write("abcdefghij".getBytes());
+        capture.write("KLMNOPQRST".getBytes());
+        capture.close();
+        assertTrue(capture.isTruncated());
+        assertEquals(capture.getSize(), 30);
+        assertEquals(capture.getText(), "0123456789\n[... 10 bytes omitted ...]\nKLMNOPQRST");
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        OutputCapture capture = new OutputCapture(10, true, null);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            String line = "line " + i + "\n";
+            expected.append(line);
+            capture.write(line.getBytes());
+        }
+        capture.close();
+        assertFalse(capture.isTruncated());
+        assertEquals(capture.getText(), expected.toString());
+        final AtomicInteger count = new AtomicInteger();
+        capture.forEachLine(new OutputCapture.LineListener() {
+            @Override
+            public void onLine(String line) {
+                count.incrementAndGet();
+            }
+        });
+        assertEquals(count.get(), 100);
+        capture.discard();
+    }
+
+    @Test
+    public void testExecKeepsSpilledOutput() throws Exception {
+        LocalHost host = LocalHost.createStandalone();
+        host.setOutputMemoryLimit(1000);
+        ExecutionResult result = host.exec("seq 1 10000", 0, NO);
+        assertFalse(result.isOutputTruncated());
+        assertEquals(result.getOutput().split("\n").length, 10000);
+        assertFalse(result.isOutputTruncated());
+    }
+
+    @Test
+    public void testDroppedResultDeletesSpillFile() throws Exception {
+        OutputCapture capture = new OutputCapture(10, true, null);
+        capture.write("more than ten bytes".getBytes());
+        capture.close();
+        new ExecutionResult().setCapture(capture);
+        assertTrue(capture.isSpilled());
+        for (int i = 0; i < 50 && capture.isSpilled(); i++) {
+            System.gc();
+            Thread.sleep(20);
+            ExecutionResult.discardDropped();
+        }
+        assertFalse(capture.isSpilled());
+    }
+
+    @Test
+    public void testExecStreaming() throws Exception {
+        LocalHost host = LocalHost.createStandalone();
+        host.setOutputMemoryLimit(1024);
+        final AtomicInteger count = new AtomicInteger();
+        ExecutionResult result = host.execStreaming("seq 1 10000", 0, NO, new OutputCapture.LineListener() {
+            @Override
+            public void onLine(String line) {
+                count.incrementAndGet();
+            }
+        });
+        assertEquals(count.get(), 10000);
+        assertTrue(result.getOutput().endsWith("\n9999\n10000\n"));
+        assertEquals(result.getOutput().split("\n").length, 10000);
+    }
+}
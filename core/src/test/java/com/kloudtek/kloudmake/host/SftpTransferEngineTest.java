@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.SftpProgressMonitor;
+import com.kloudtek.kloudmake.exception.KMRuntimeException;
+import com.kloudtek.util.io.IOUtils;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+/**
+ * Tests the transfer engine against in-memory channels which add a fixed latency to each transfer.
+ */
+public class SftpTransferEngineTest {
+    private static final int CHUNK = 64 * 1024;
+    private static final int LATENCY = 100;
+
+    @Test
+    public void testParallelUpload() throws Exception {
+        FakeServer server = new FakeServer();
+        SftpTransferEngine engine = new SftpTransferEngine(server, 4, CHUNK);
+        byte[] data = randomData(CHUNK * 8 + 1000);
+        long start = System.currentTimeMillis();
+        List<String> parts;
+        try (SpooledData spooled = SpooledData.read(new ByteArrayInputStream(data), 1024)) {
+            parts = engine.upload(spooled, "/tmp/file", false);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(parts.size(), 9);
+        assertEquals(server.concat(parts), data);
+        // 9 chunks over 4 channels take 3 round trips, rather than 9 over a single channel
+        assertTrue(elapsed < LATENCY * 6, "Upload took " + elapsed + "ms");
+        assertTrue(server.opened.get() <= 4);
+    }
+
+    @Test
+    public void testResumeAfterDisconnect() throws Exception {
+        FakeServer server = new FakeServer();
+        server.failures.set(2);
+        SftpTransferEngine engine = new SftpTransferEngine(server, 2, CHUNK);
+        byte[] data = randomData(CHUNK * 4);
+        try (SpooledData spooled = SpooledData.read(new ByteArrayInputStream(data), data.length + 1)) {
+            List<String> parts = engine.upload(spooled, "/tmp/file", false);
+            assertEquals(server.concat(parts), data);
+        }
+        // the failed chunks were resumed from half way, so no data was sent twice
+        assertEquals(server.sent.get(), data.length);
+    }
+
+    @Test
+    public void testResumePartsOfPreviousUpload() throws Exception {
+        FakeServer server = new FakeServer();
+        byte[] data = randomData(CHUNK * 3);
+        server.files.put("/tmp/file.part0", slice(data, 0, CHUNK));
+        server.files.put("/tmp/file.part1", slice(data, CHUNK, CHUNK / 2));
+        // longer than the chunk, so it must be uploaded again
+        server.files.put("/tmp/file.part2", new byte[CHUNK + 1]);
+        SftpTransferEngine engine = new SftpTransferEngine(server, 2, CHUNK);
+        try (SpooledData spooled = SpooledData.read(new ByteArrayInputStream(data), 1024)) {
+            List<String> parts = engine.upload(spooled, "/tmp/file", true);
+            assertEquals(server.concat(parts), data);
+        }
+        assertEquals(server.sent.get(), CHUNK / 2 + CHUNK);
+    }
+
+    @Test
+    public void testParallelDownload() throws Exception {
+        FakeServer server = new FakeServer();
+        byte[] data = randomData(CHUNK * 8 + 1000);
+        server.files.put("/tmp/file", data);
+        server.failures.set(1);
+        SftpTransferEngine engine = new SftpTransferEngine(server, 4, CHUNK);
+        byte[] dest = new byte[data.length];
+        System.arraycopy(data, 0, dest, 0, 1000);
+        long start = System.currentTimeMillis();
+        engine.download("/tmp/file", 1000, dest, 1000, data.length - 1000);
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(dest, data);
+        assertTrue(elapsed < LATENCY * 6, "Download took " + elapsed + "ms");
+    }
+
+    @Test(expectedExceptions = KMRuntimeException.class)
+    public void testDownloadMissingFile() throws Exception {
+        new SftpTransferEngine(new FakeServer(), 4, CHUNK).download("/tmp/missing", 0, new byte[CHUNK * 2], 0, CHUNK * 2);
+    }
+
+    private static byte[] randomData(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] slice(byte[] data, int offset, int length) {
+        byte[] slice = new byte[length];
+        System.arraycopy(data, offset, slice, 0, length);
+        return slice;
+    }
+
+    /**
+     * In-memory sftp server. Each transfer waits for {@link #LATENCY}, and the first {@link #failures} transfers
+     * disconnect their channel half way through.
+     */
+    private static class FakeServer implements SftpTransferEngine.ChannelSource {
+        private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicInteger opened = new AtomicInteger();
+        private final AtomicInteger sent = new AtomicInteger();
+
+        @Override
+        public ChannelSftp open() {
+            opened.incrementAndGet();
+            final ChannelSftp channel = mock(ChannelSftp.class);
+            final boolean[] connected = {true};
+            try {
+                when(channel.isConnected()).thenAnswer(new Answer<Boolean>() {
+                    @Override
+                    public Boolean answer(InvocationOnMock invocation) {
+                        return connected[0];
+                    }
+                });
+                doAnswer(new Answer<Void>() {
+                    @Override
+                    public Void answer(InvocationOnMock invocation) throws Throwable {
+                        InputStream is = (InputStream) invocation.getArguments()[0];
+                        String path = (String) invocation.getArguments()[1];
+                        int mode = (Integer) invocation.getArguments()[2];
+                        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                        byte[] existing = files.get(path);
+                        if (mode == ChannelSftp.RESUME && existing != null) {
+                            if (is.skip(existing.length) != existing.length) {
+                                throw new SftpException(ChannelSftp.SSH_FX_FAILURE, "failed to resume for " + path);
+                            }
+                            buf.write(existing);
+                        }
+                        Thread.sleep(LATENCY);
+                        byte[] data = IOUtils.toByteArray(is);
+                        if (failures.getAndDecrement() > 0) {
+                            buf.write(data, 0, data.length / 2);
+                            files.put(path, buf.toByteArray());
+                            sent.addAndGet(data.length / 2);
+                            connected[0] = false;
+                            throw new SftpException(ChannelSftp.SSH_FX_CONNECTION_LOST, "connection lost");
+                        }
+                        buf.write(data);
+                        files.put(path, buf.toByteArray());
+                        sent.addAndGet(data.length);
+                        return null;
+                    }
+                }).when(channel).put(any(InputStream.class), anyString(), anyInt());
+                when(channel.get(anyString(), any(SftpProgressMonitor.class), anyLong())).thenAnswer(new Answer<InputStream>() {
+                    @Override
+                    public InputStream answer(InvocationOnMock invocation) throws Throwable {
+                        String path = (String) invocation.getArguments()[0];
+                        long skip = (Long) invocation.getArguments()[2];
+                        byte[] data = files.get(path);
+                        if (data == null) {
+                            throw new SftpException(ChannelSftp.SSH_FX_NO_SUCH_FILE, "No such file");
+                        }
+                        Thread.sleep(LATENCY);
+                        if (failures.getAndDecrement() > 0) {
+                            connected[0] = false;
+                            // returns part of the data, then fails
+                            return new FilterInputStream(new ByteArrayInputStream(data, (int) skip, CHUNK / 2)) {
+                                @Override
+                                public int read(byte[] b, int off, int len) throws IOException {
+                                    int read = super.read(b, off, len);
+                                    if (read == -1) {
+                                        throw new IOException("connection lost");
+                                    }
+                                    return read;
+                                }
+                            };
+                        }
+                        return new ByteArrayInputStream(data, (int) skip, data.length - (int) skip);
+                    }
+                });
+            } catch (SftpException e) {
+                throw new IllegalStateException(e);
+            }
+            return channel;
+        }
+
+        @Override
+        public void release(ChannelSftp channel) {
+        }
+
+        private byte[] concat(List<String> parts) throws Exception {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            for (String part : parts) {
+                buf.write(files.get(part));
+            }
+            return buf.toByteArray();
+        }
+    }
+}
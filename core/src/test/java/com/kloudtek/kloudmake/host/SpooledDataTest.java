@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.kloudtek.kryptotek.DigestUtils;
+import com.kloudtek.util.io.IOUtils;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+
+public class SpooledDataTest {
+    @Test
+    public void testMemoryAndSpooled() throws Exception {
+        byte[] data = new byte[10000];
+        new Random(1).nextBytes(data);
+        check(data, 20000);
+        check(data, 10000);
+        check(data, 100);
+    }
+
+    private static void check(byte[] data, int threshold) throws Exception {
+        try (SpooledData spooled = SpooledData.read(new ByteArrayInputStream(data), threshold)) {
+            assertEquals(spooled.getSize(), data.length);
+            assertEquals(spooled.getSha1(), DigestUtils.sha1(data));
+            try (InputStream is = spooled.open()) {
+                assertEquals(IOUtils.toByteArray(is), data);
+            }
+            ByteBuffer buffer = spooled.getBuffer();
+            byte[] copy = new byte[buffer.remaining()];
+            buffer.get(copy);
+            assertEquals(copy, data);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.kloudtek.kryptotek.DigestUtils;
+import com.kloudtek.util.io.IOUtils;
+import org.apache.commons.codec.binary.Hex;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import static org.testng.Assert.*;
+
+/**
+ * Runs the agent script locally to check the protocol.
+ */
+public class SshAgentTest {
+    private Process process;
+    private SshAgent agent;
+    private File dir;
+
+    @BeforeMethod
+    public void startAgent() throws Exception {
+        dir = Files.createTempDirectory("kmagent").toFile();
+        File script = new File(dir, "agent.sh");
+        try (InputStream is = SshAgent.getScript(); FileOutputStream os = new FileOutputStream(script)) {
+            IOUtils.copy(is, os);
+        }
+        process = new ProcessBuilder("bash", script.getPath()).start();
+        agent = new SshAgent(process.getInputStream(), process.getOutputStream(), null);
+        assertFalse(script.exists());
+    }
+
+    @AfterMethod
+    public void stopAgent() throws Exception {
+        agent.close();
+        process.waitFor();
+        new ProcessBuilder("rm", "-rf", dir.getPath()).start().waitFor();
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        String path = new File(dir, "some file").getPath();
+        byte[] data = "hello\nworld\u0000\n\n".getBytes("UTF-8");
+        assertFalse(agent.request("exists", path).isSuccess());
+        assertTrue(agent.request("write", data, path).isSuccess());
+        assertTrue(agent.request("exists", path).isSuccess());
+        assertEquals(agent.request("read", path).getData(), data);
+        String sha1 = agent.request("sha1", path).getText().split("\\s")[0];
+        assertEquals(sha1, new String(Hex.encodeHex(DigestUtils.sha1(data))));
+        assertTrue(agent.request("chmod", "0640", path).isSuccess());
+        FileInfo fileInfo = new FileInfo(path, agent.request("stat", path).getText());
+        assertEquals(fileInfo.getType(), FileInfo.Type.FILE);
+        assertEquals(fileInfo.getSize(), data.length);
+        assertEquals(fileInfo.getPermissions(), "-rw-r-----");
+        assertTrue(agent.request("delete", path, "f").isSuccess());
+        assertFalse(agent.request("exists", path).isSuccess());
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        String path = new File(dir, "missing").getPath();
+        SshAgent.Response response = agent.request("read", path);
+        assertFalse(response.isSuccess());
+        assertTrue(response.getText().contains("No such file"));
+        assertFalse(agent.request("write", new byte[]{1, 2, 3}, new File(path, "file").getPath()).isSuccess());
+        assertTrue(agent.request("ping").isSuccess());
+    }
+
+    @Test
+    public void testExec() throws Exception {
+        SshAgent.Response response = agent.request("exec", "echo out; echo err >&2; exit 3");
+        assertEquals(response.getStatus(), 3);
+        assertEquals(response.getText(), "out\nerr\n");
+        assertTrue(agent.request("mkdirs", new File(dir, "a/b").getPath()).isSuccess());
+        assertTrue(new File(dir, "a/b").isDirectory());
+    }
+
+    @Test
+    public void testExecTimeout() throws Exception {
+        long start = System.currentTimeMillis();
+        SshAgent.Response response = agent.request("exec", "echo started; sleep 600 & sleep 600", "1", "", "");
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(response.getStatus(), 124);
+        assertEquals(response.getText(), "started\n");
+        assertTrue(agent.request("ping").isSuccess());
+    }
+
+    @Test
+    public void testExecOutputLimit() throws Exception {
+        SshAgent.Response response = agent.request("exec", "seq 1 100000", "0", "1000");
+        assertTrue(response.isSuccess());
+        assertTrue(response.isFile());
+        File file = new File(response.getText());
+        try {
+            String text = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+            assertTrue(text.startsWith("1\n2\n3\n"));
+            assertTrue(text.endsWith("99999\n100000\n"));
+            assertEquals(text.split("\n").length, 100000);
+        } finally {
+            assertTrue(file.delete());
+        }
+        response = agent.request("exec", "seq 1 3", "0", "1000");
+        assertFalse(response.isFile());
+        assertEquals(response.getText(), "1\n2\n3\n");
+    }
+}
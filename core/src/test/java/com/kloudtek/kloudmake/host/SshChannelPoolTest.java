@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.Session;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.*;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+public class SshChannelPoolTest {
+    @Test
+    public void testAcquireWaitsForRelease() throws Exception {
+        Session session = mockSession();
+        final SshChannelPool pool = new SshChannelPool(session, 2);
+        ChannelExec first = pool.acquire();
+        pool.acquire();
+        assertEquals(pool.getOpenChannels(), 2);
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            Future<ChannelExec> third = executorService.submit(new Callable<ChannelExec>() {
+                @Override
+                public ChannelExec call() throws Exception {
+                    return pool.acquire();
+                }
+            });
+            try {
+                third.get(200, TimeUnit.MILLISECONDS);
+                fail("Acquired more channels than allowed");
+            } catch (TimeoutException e) {
+                // expected
+            }
+            pool.release(first);
+            assertNotNull(third.get(5, TimeUnit.SECONDS));
+            verify(first).disconnect();
+            assertEquals(pool.getOpenChannels(), 2);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRefusedLowersCap() throws Exception {
+        Session session = mockSession();
+        SshChannelPool pool = new SshChannelPool(session, 5);
+        ChannelExec first = pool.acquire();
+        pool.acquire();
+        ChannelExec third = pool.acquire();
+        assertTrue(pool.refused(third));
+        assertEquals(pool.getMaxChannels(), 2);
+        assertEquals(pool.getOpenChannels(), 2);
+        pool.release(first);
+        pool.acquire();
+        assertEquals(pool.getOpenChannels(), 2);
+    }
+
+    @Test
+    public void testRefusedWithoutOtherChannels() throws Exception {
+        SshChannelPool pool = new SshChannelPool(mockSession(), 5);
+        assertFalse(pool.refused(pool.acquire()));
+        assertEquals(pool.getMaxChannels(), 5);
+        assertEquals(pool.getOpenChannels(), 0);
+    }
+
+    private static Session mockSession() throws Exception {
+        Session session = mock(Session.class);
+        when(session.isConnected()).thenReturn(true);
+        when(session.openChannel("exec")).thenAnswer(invocation -> mock(ChannelExec.class));
+        return session;
+    }
+}
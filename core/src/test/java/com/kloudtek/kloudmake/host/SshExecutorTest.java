@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.jcraft.jsch.ChannelExec;
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.DefaultExecuteResultHandler;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+public class SshExecutorTest {
+    /**
+     * Checks that a command completes as soon as jsch closes the channel, rather than after a polling interval.
+     */
+    @Test
+    public void testCompletionLatency() throws Exception {
+        final ChannelExec channel = mock(ChannelExec.class);
+        final OutputStream[] streams = new OutputStream[2];
+        final AtomicLong closedAt = new AtomicLong();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                streams[0] = (OutputStream) invocation.getArguments()[0];
+                return null;
+            }
+        }).when(channel).setOutputStream(any(OutputStream.class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                streams[1] = (OutputStream) invocation.getArguments()[0];
+                return null;
+            }
+        }).when(channel).setErrStream(any(OutputStream.class));
+        when(channel.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        when(channel.getExitStatus()).thenReturn(3);
+        // simulates jsch's session thread: output, remote EOF (closes stdout), then CLOSE (closes stderr)
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(50);
+                            streams[0].write("hello\n".getBytes());
+                            streams[0].close();
+                            closedAt.set(System.nanoTime());
+                            streams[1].close();
+                        } catch (Exception e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                }.start();
+                return null;
+            }
+        }).when(channel).connect();
+        SshChannelPool pool = mock(SshChannelPool.class);
+        when(pool.acquire()).thenReturn(channel);
+        SshExecutor executor = new SshExecutor(pool);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        executor.setStreamHandler(new PooledStreamHandler(out, new ByteArrayOutputStream(), null));
+        DefaultExecuteResultHandler resultHandler = new DefaultExecuteResultHandler();
+        executor.execute(CommandLine.parse("echo hello"), null, resultHandler);
+        long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - closedAt.get());
+        assertTrue(resultHandler.hasResult());
+        assertEquals(resultHandler.getExitValue(), 3);
+        assertEquals(out.toString(), "hello\n");
+        assertTrue(latency < 50, "Command completed " + latency + "ms after the channel was closed");
+        verify(pool).release(channel);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.Session;
+import org.testng.annotations.Test;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+public class SshTransportProfileTest {
+    @Test
+    public void testConfigure() {
+        Session lan = mock(Session.class);
+        SshTransportProfile.LAN.configure(lan);
+        verify(lan).setConfig(eq("cipher.c2s"), startsWith("aes128-ctr"));
+        verify(lan).setConfig("compression.c2s", "none");
+        Session wan = mock(Session.class);
+        SshTransportProfile.WAN.configure(wan);
+        verify(wan).setConfig("compression.s2c", "zlib@openssh.com,zlib,none");
+        verify(wan, never()).setConfig(eq("cipher.c2s"), anyString());
+        Session defaults = mock(Session.class);
+        SshTransportProfile.DEFAULT.configure(defaults);
+        verifyZeroInteractions(defaults);
+    }
+
+    @Test
+    public void testLanAlgorithmsAreSupported() throws Exception {
+        Session session = new JSch().getSession("test", "localhost");
+        SshTransportProfile.LAN.configure(session);
+        for (String key : new String[]{"cipher.c2s", "cipher.s2c", "mac.c2s", "mac.s2c"}) {
+            for (String algorithm : session.getConfig(key).split(",")) {
+                assertNotNull(JSch.getConfig(algorithm), algorithm + " isn't supported by JSch");
+                assertFalse(algorithm.contains("cbc") || algorithm.contains("md5") || algorithm.equals("hmac-sha1"), algorithm);
+            }
+        }
+        assertEquals(session.getConfig("compression.c2s"), "none");
+    }
+
+    @Test
+    public void testConfigureChannel() throws Exception {
+        ChannelSftp wan = mock(ChannelSftp.class);
+        SshTransportProfile.WAN.configure(wan);
+        verify(wan).setBulkRequests(64);
+        ChannelSftp lan = mock(ChannelSftp.class);
+        SshTransportProfile.LAN.configure(lan);
+        verifyZeroInteractions(lan);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.host;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.kloudtek.kloudmake.host.Host.Logging.NO;
+import static org.testng.Assert.*;
+
+public class TimerWheelTest {
+    @Test
+    public void testScheduleAndCancel() throws Exception {
+        TimerWheel wheel = new TimerWheel(10, 8);
+        final CountDownLatch latch = new CountDownLatch(2);
+        final AtomicInteger cancelledRuns = new AtomicInteger();
+        Runnable countDown = new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+        long start = System.nanoTime();
+        wheel.schedule(countDown, 20);
+        // longer than a full rotation of the wheel
+        wheel.schedule(countDown, 150);
+        TimerWheel.Timeout cancelled = wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                cancelledRuns.incrementAndGet();
+            }
+        }, 50);
+        assertTrue(cancelled.cancel());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+        assertEquals(cancelledRuns.get(), 0);
+        assertFalse(cancelled.isExpired());
+    }
+
+    @Test
+    public void testExecTimeout() throws Exception {
+        LocalHost host = LocalHost.createStandalone();
+        long start = System.currentTimeMillis();
+        ExecutionResult result = host.exec("sleep 10", 300L, null, NO, null);
+        assertNotEquals(result.getRetCode(), 0);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(host.exec("echo ok"), "ok\n");
+    }
+}
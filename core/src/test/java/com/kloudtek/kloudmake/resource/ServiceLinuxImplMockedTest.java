@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2015. Kelewan Technologies Ltd
+ */
+
+package com.kloudtek.kloudmake.resource;
+
+import com.kloudtek.kloudmake.host.ExecutionResult;
+import com.kloudtek.kloudmake.host.Host;
+import com.kloudtek.kloudmake.host.HostFacts;
+import com.kloudtek.kloudmake.resource.core.ServiceLinuxImpl;
+import com.kloudtek.kloudmake.util.ReflectionHelper;
+import org.testng.annotations.Test;
+
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+public class ServiceLinuxImplMockedTest {
+    @Test
+    public void testSystemdFromFacts() throws Exception {
+        Host host = mock(Host.class);
+        when(host.getFacts()).thenReturn(HostFacts.parse("os=Linux\ninitSystem=systemd"));
+        ExecutionResult inactive = new ExecutionResult();
+        inactive.setRetCode(3);
+        when(host.execReadOnly(eq("systemctl is-active nginx"), anyInt(), any(Host.Logging.class))).thenReturn(inactive);
+        ServiceLinuxImpl service = new ServiceLinuxImpl("nginx", null, true, true);
+        ReflectionHelper.set(service, "host", host);
+        service.findType();
+        assertEquals(ReflectionHelper.get(service, "type"), ServiceLinuxImpl.Type.SYSTEMD);
+        verify(host, never()).fileExists(anyString());
+        assertTrue(service.checkRunning());
+        service.setRunning();
+        verify(host).exec("systemctl start nginx");
+    }
+
+    @Test
+    public void testInitdWithoutSystemd() throws Exception {
+        Host host = mock(Host.class);
+        when(host.getFacts()).thenReturn(HostFacts.parse("os=Linux\ninitSystem=sysv"));
+        when(host.fileExists("/etc/init.d/nginx")).thenReturn(true);
+        ServiceLinuxImpl service = new ServiceLinuxImpl("nginx", null, true, true);
+        ReflectionHelper.set(service, "host", host);
+        service.findType();
+        assertEquals(ReflectionHelper.get(service, "type"), ServiceLinuxImpl.Type.INITD);
+    }
+}